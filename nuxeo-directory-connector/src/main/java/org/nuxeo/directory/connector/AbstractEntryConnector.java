@@ -18,8 +18,13 @@
  */
 package org.nuxeo.directory.connector;
 
+import java.io.Serializable;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.nuxeo.ecm.directory.DirectoryException;
@@ -44,11 +49,35 @@ public abstract class AbstractEntryConnector implements EntryConnector {
         return password.equals(pwd);
     }
 
+    public Map<String, Map<String, Object>> getEntryMaps(List<String> ids) {
+        Map<String, Map<String, Object>> maps = new LinkedHashMap<String, Map<String, Object>>();
+        for (String id : ids) {
+            Map<String, Object> map = getEntryMap(id);
+            if (map != null) {
+                maps.put(id, map);
+            }
+        }
+        return maps;
+    }
+
+    public Iterator<Entry<String, Map<String, Object>>> queryEntries(Map<String, Serializable> filter,
+            Set<String> fulltext) {
+        List<String> ids = queryEntryIds(filter, fulltext);
+        if (ids == null) {
+            return null;
+        }
+        return getEntryMaps(ids).entrySet().iterator();
+    }
+
     public void close() {
         // TODO Auto-generated method stub
 
     }
 
+    public void shutdown() {
+        close();
+    }
+
     public void commit() {
         // TODO Auto-generated method stub
 
@@ -45,6 +45,8 @@ public class ConnectorBasedDirectory extends AbstractDirectory {
 
     public ConnectorBasedDirectorySession session;
 
+    protected volatile TranslationPlan translationPlan;
+
     public ConnectorBasedDirectory(ConnectorBasedDirectoryDescriptor descriptor) throws DirectoryException {
         super(descriptor);
         this.schemaSet = new HashSet<String>();
@@ -65,6 +67,21 @@ public class ConnectorBasedDirectory extends AbstractDirectory {
         return (ConnectorBasedDirectoryDescriptor) descriptor;
     }
 
+    /**
+     * Returns the translation of connector maps into entries, compiled on first use.
+     *
+     * @since 8.2
+     */
+    public TranslationPlan getTranslationPlan() {
+        TranslationPlan plan = translationPlan;
+        if (plan == null) {
+            Schema schema = Framework.getLocalService(SchemaManager.class).getSchema(getSchema());
+            plan = new TranslationPlan(schema, getDescriptor().getMapping());
+            translationPlan = plan;
+        }
+        return plan;
+    }
+
     @Override
     public Session getSession() {
         if (session == null) {
@@ -79,6 +96,7 @@ public class ConnectorBasedDirectory extends AbstractDirectory {
             session.close();
         }
         session = null;
+        getDescriptor().shutdownConnector();
     }
 
 }
@@ -70,6 +70,18 @@ public class ConnectorBasedDirectoryDescriptor extends BaseDirectoryDescriptor {
         return connector;
     }
 
+    /**
+     * Closes the connector for good, a new one is created by the next call to {@link #getConnector()}.
+     *
+     * @since 8.2
+     */
+    public void shutdownConnector() {
+        if (connector != null) {
+            connector.shutdown();
+            connector = null;
+        }
+    }
+
     public Map<String, String> getParameters() {
         return parameters;
     }
@@ -22,6 +22,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -32,14 +33,10 @@ import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.PropertyException;
 import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
 import org.nuxeo.ecm.core.api.model.PropertyNotFoundException;
-import org.nuxeo.ecm.core.schema.SchemaManager;
-import org.nuxeo.ecm.core.schema.types.Field;
-import org.nuxeo.ecm.core.schema.types.Schema;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.Reference;
 import org.nuxeo.ecm.directory.Session;
-import org.nuxeo.runtime.api.Framework;
 
 /**
  * Session for Directories based on a contributed connector
@@ -91,19 +88,7 @@ public class ConnectorBasedDirectorySession extends BaseSession implements Sessi
     }
 
     protected Map<String, Object> translate(Map<String, Object> map) {
-        Schema schema = Framework.getLocalService(SchemaManager.class).getSchema(directory.getSchema());
-        Map<String, Object> newMap = new HashMap<>();
-
-        Map<String, String> mapping = getDirectory().getDescriptor().getMapping();
-        for (Field field : schema.getFields()) {
-            String fieldId = field.getName().getLocalName();
-            if (mapping.containsKey(fieldId)) {
-                newMap.put(fieldId, field.getType().encode(map.get(mapping.get(fieldId))));
-            } else {
-                newMap.put(fieldId, map.get(fieldId));
-            }
-        }
-        return newMap;
+        return getDirectory().getTranslationPlan().translate(map);
     }
 
     public DocumentModel getEntry(String id, boolean fetchReferences) throws DirectoryException {
@@ -113,7 +98,16 @@ public class ConnectorBasedDirectorySession extends BaseSession implements Sessi
         if (map == null) {
             return null;
         }
+        return toEntry(id, map, fetchReferences);
+    }
 
+    /**
+     * Builds the entry from the map returned by the connector.
+     *
+     * @since 8.2
+     */
+    protected DocumentModel toEntry(String id, Map<String, Object> map, boolean fetchReferences)
+            throws DirectoryException {
         // manage translation
         map = translate(map);
 
@@ -141,9 +135,18 @@ public class ConnectorBasedDirectorySession extends BaseSession implements Sessi
     }
 
     public DocumentModelList getEntries() throws DirectoryException {
+        return toEntries(connector.getEntryIds(), true);
+    }
+
+    /**
+     * Gets the entries with the given ids in a single call to the connector.
+     *
+     * @since 8.2
+     */
+    protected DocumentModelList toEntries(List<String> ids, boolean fetchReferences) throws DirectoryException {
         DocumentModelList list = new DocumentModelListImpl();
-        for (String id : connector.getEntryIds()) {
-            list.add(getEntry(id));
+        for (Entry<String, Map<String, Object>> e : connector.getEntryMaps(ids).entrySet()) {
+            list.add(toEntry(e.getKey(), e.getValue(), fetchReferences));
         }
         return list;
     }
@@ -192,10 +195,18 @@ public class ConnectorBasedDirectorySession extends BaseSession implements Sessi
             filt.put(fieldName, e.getValue());
         }
 
-        List<String> ids = connector.queryEntryIds(filt, fulltext);
-        if (ids != null) {
-            for (String id : ids) {
-                results.add(getEntry(id));
+        Iterator<Entry<String, Map<String, Object>>> entries = connector.queryEntries(filt, fulltext);
+        if (entries == null) {
+            // connector only returning ids
+            List<String> ids = connector.queryEntryIds(filt, fulltext);
+            if (ids != null) {
+                entries = connector.getEntryMaps(ids).entrySet().iterator();
+            }
+        }
+        if (entries != null) {
+            while (entries.hasNext()) {
+                Entry<String, Map<String, Object>> e = entries.next();
+                results.add(toEntry(e.getKey(), e.getValue(), fetchReferences));
             }
         }
 
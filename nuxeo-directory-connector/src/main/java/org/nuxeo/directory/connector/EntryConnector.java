@@ -19,8 +19,11 @@
 package org.nuxeo.directory.connector;
 
 import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.nuxeo.ecm.directory.DirectoryException;
@@ -35,10 +38,48 @@ public interface EntryConnector {
 
     List<String> getEntryIds();
 
+    /**
+     * Gets the entries with the given ids, in the order of the ids, the ids having no entry being left out.
+     *
+     * @since 8.2
+     */
+    default Map<String, Map<String, Object>> getEntryMaps(List<String> ids) {
+        Map<String, Map<String, Object>> maps = new LinkedHashMap<String, Map<String, Object>>();
+        for (String id : ids) {
+            Map<String, Object> map = getEntryMap(id);
+            if (map != null) {
+                maps.put(id, map);
+            }
+        }
+        return maps;
+    }
+
     List<String> queryEntryIds(Map<String, Serializable> filter, Set<String> fulltext);
 
+    /**
+     * Gets the entries matching a query, by id, or {@code null} if the query is not supported.
+     * <p>
+     * Connectors evaluating queries on full entries return them directly, others get them from the ids returned by
+     * {@link #queryEntryIds(Map, Set)}. Returns {@code null} by default, the entries are then read from the ids.
+     *
+     * @since 8.2
+     */
+    default Iterator<Entry<String, Map<String, Object>>> queryEntries(Map<String, Serializable> filter,
+            Set<String> fulltext) {
+        return null;
+    }
+
     void close();
 
+    /**
+     * Releases the resources held for the lifetime of the directory, such as background threads. Unlike
+     * {@link #close()}, which ends a use of the directory, the connector is not used anymore afterwards.
+     *
+     * @since 8.2
+     */
+    default void shutdown() {
+    }
+
     void commit();
 
     void rollback();
@@ -19,59 +19,517 @@
 package org.nuxeo.directory.connector;
 
 import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * This is a helper class that provides a simplistic implementation of the directory search API using a full in memory
- * search. This can be useful for testing service that does not support any search feature. However, please note that
- * this can not scale !
- *
- * @author <a href="mailto:tdelprat@nuxeo.com">Tiry</a>
+ * Evaluates queries on the entries of a connector by scanning them.
+ * <p>
+ * Equality filters can be answered by inverted indexes (value -> positions of the matching entries) instead, for the
+ * fields given to {@link #setIndexedFields(Collection)} and, if {@link #setAdaptiveIndexThreshold(int)} is set, for
+ * the fields used in that many queries. Full-text filters (matching values starting with the expected one, ignoring
+ * case) on the {@link EntryConnector#getFullTextConfig() full-text fields} of the connector are answered by a sorted
+ * index of the lowercased values of the field. Indexes are built from the current entries of the connector, which
+ * must call {@link #invalidate()} when its entries change.
+ * <p>
+ * The indexes are built once by concurrent first queries. Each invalidation starts a new generation, and indexes built
+ * for a previous one, for instance by a query started before the invalidation, are never used by later queries.
  */
 public class InMemorySearchHelper {
 
     protected final EntryConnector connector;
 
+    protected Set<String> indexedFields = Collections.emptySet();
+
+    protected int adaptiveIndexThreshold;
+
+    protected final ConcurrentMap<String, AtomicInteger> fieldQueryCounts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    protected volatile IndexState indexState;
+
+    /** Incremented by each invalidation. */
+    protected final AtomicLong generation = new AtomicLong();
+
+    /** Serializes the builds of the index state. */
+    protected final Object buildLock = new Object();
+
+    /**
+     * The indexes built on a given list of entries.
+     *
+     * @since 8.2
+     */
+    protected static class IndexState {
+
+        protected final List<String> ids;
+
+        /** The generation of the helper the entries were read in. */
+        protected final long generation;
+
+        /** Field -> value -> ascending positions in {@link #ids}. */
+        protected final ConcurrentMap<String, Map<Object, int[]>> fieldIndexes =
+                new ConcurrentHashMap<String, Map<Object, int[]>>();
+
+        /** Full-text field -> prefix index. */
+        protected final ConcurrentMap<String, PrefixIndex> prefixIndexes =
+                new ConcurrentHashMap<String, PrefixIndex>();
+
+        protected IndexState(List<String> ids, long generation) {
+            this.ids = ids;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Lowercased values of a field sorted in ascending order, with the position of their entry, answering prefix
+     * queries by a binary search followed by a range scan.
+     *
+     * @since 8.2
+     */
+    protected static class PrefixIndex {
+
+        protected final String[] keys;
+
+        protected final int[] positions;
+
+        protected PrefixIndex(String[] keys, int[] positions) {
+            this.keys = keys;
+            this.positions = positions;
+        }
+
+        /**
+         * Returns the ascending positions of the entries whose value starts with the given lowercased prefix.
+         */
+        protected int[] lookup(String prefix) {
+            int from = Arrays.binarySearch(keys, prefix);
+            if (from < 0) {
+                from = -from - 1;
+            } else {
+                // first of the keys equal to the prefix
+                while (from > 0 && keys[from - 1].equals(prefix)) {
+                    from--;
+                }
+            }
+            int to = from;
+            while (to < keys.length && keys[to].startsWith(prefix)) {
+                to++;
+            }
+            int[] result = Arrays.copyOfRange(positions, from, to);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
     public InMemorySearchHelper(EntryConnector connector) {
         this.connector = connector;
     }
 
-    public List<String> queryEntryIds(Map<String, Serializable> filter, Set<String> fulltext) {
+    /**
+     * Sets the fields whose equality filters are always answered by an index.
+     *
+     * @since 8.2
+     */
+    public void setIndexedFields(Collection<String> fields) {
+        indexedFields = new HashSet<String>(fields);
+        invalidate();
+    }
+
+    /**
+     * Sets the number of queries filtering on a field after which the field gets indexed, {@code 0} to only index the
+     * configured fields.
+     *
+     * @since 8.2
+     */
+    public void setAdaptiveIndexThreshold(int threshold) {
+        adaptiveIndexThreshold = threshold;
+    }
 
-        List<String> ids = new ArrayList<String>();
+    /**
+     * Drops the indexes, to be called when the entries of the connector change.
+     *
+     * @since 8.2
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        indexState = null;
+    }
+
+    /**
+     * Builds the configured indexes now rather than on the first query.
+     *
+     * @since 8.2
+     */
+    public void prepare() {
+        if (isFieldIndexingEnabled() || !connector.getFullTextConfig().isEmpty()) {
+            getIndexState();
+        }
+    }
 
-        // do the search
-        data_loop: for (String id : connector.getEntryIds()) {
+    protected boolean isFieldIndexingEnabled() {
+        return !indexedFields.isEmpty() || adaptiveIndexThreshold > 0;
+    }
+
+    /**
+     * Returns the fields having an equality index, configured or built after enough queries.
+     *
+     * @since 8.2
+     */
+    public Set<String> getIndexedFieldsInUse() {
+        Set<String> fields = new HashSet<String>(indexedFields);
+        IndexState state = indexState;
+        if (state != null && state.generation == generation.get()) {
+            fields.addAll(state.fieldIndexes.keySet());
+        }
+        return fields;
+    }
 
+    public List<String> queryEntryIds(Map<String, Serializable> filter, Set<String> fulltext) {
+        Candidates candidates = selectCandidates(filter, fulltext);
+        List<String> result = new ArrayList<String>();
+        if (candidates == null) {
+            return result;
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            String id = candidates.getId(i);
+            if (candidates.filter.isEmpty()) {
+                result.add(id);
+                continue;
+            }
             Map<String, Object> map = connector.getEntryMap(id);
-            for (Entry<String, Serializable> e : filter.entrySet()) {
-                String fieldName = e.getKey();
-                Object expected = e.getValue();
-                Object value = map.get(fieldName);
-                if (value == null) {
-                    if (expected != null) {
-                        continue data_loop;
+            if (map != null && matches(map, candidates.filter, fulltext)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entries matching the filter, by id, reading each candidate entry only once.
+     *
+     * @since 8.2
+     */
+    public Iterator<Entry<String, Map<String, Object>>> queryEntries(Map<String, Serializable> filter,
+            final Set<String> fulltext) {
+        final Candidates candidates = selectCandidates(filter, fulltext);
+        if (candidates == null) {
+            return Collections.<Entry<String, Map<String, Object>>> emptyIterator();
+        }
+        return new Iterator<Entry<String, Map<String, Object>>>() {
+
+            protected int index;
+
+            protected Entry<String, Map<String, Object>> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && index < candidates.size()) {
+                    String id = candidates.getId(index++);
+                    Map<String, Object> map = connector.getEntryMap(id);
+                    if (map != null && matches(map, candidates.filter, fulltext)) {
+                        next = new SimpleImmutableEntry<String, Map<String, Object>>(id, map);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Entry<String, Map<String, Object>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<String, Map<String, Object>> entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * The entries that may match a filter, and the part of the filter they still have to be checked against.
+     *
+     * @since 8.2
+     */
+    protected static class Candidates {
+
+        protected final List<String> ids;
+
+        /** Positions of the candidates in {@link #ids}, or {@code null} for all of them. */
+        protected final int[] positions;
+
+        protected final Map<String, Serializable> filter;
+
+        protected Candidates(List<String> ids, int[] positions, Map<String, Serializable> filter) {
+            this.ids = ids;
+            this.positions = positions;
+            this.filter = filter;
+        }
+
+        protected int size() {
+            return positions == null ? ids.size() : positions.length;
+        }
+
+        protected String getId(int i) {
+            return ids.get(positions == null ? i : positions[i]);
+        }
+    }
+
+    /**
+     * Selects the candidate entries using the indexes.
+     *
+     * @return the candidates, or {@code null} if no entry can match
+     * @since 8.2
+     */
+    protected Candidates selectCandidates(Map<String, Serializable> filter, Set<String> fulltext) {
+        boolean fieldIndexing = isFieldIndexingEnabled();
+        Set<String> prefixIndexed = connector.getFullTextConfig();
+        if (!fieldIndexing && !usesPrefixIndex(filter, fulltext, prefixIndexed)) {
+            return new Candidates(connector.getEntryIds(), null, filter);
+        }
+
+        IndexState state = getIndexState();
+        List<int[]> postings = new ArrayList<int[]>();
+        Map<String, Serializable> remaining = new HashMap<String, Serializable>();
+        for (Entry<String, Serializable> e : filter.entrySet()) {
+            String fieldName = e.getKey();
+            Serializable expected = e.getValue();
+            int[] posting;
+            if (fulltext != null && fulltext.contains(fieldName)) {
+                if (expected == null || !(fieldIndexing || prefixIndexed.contains(fieldName))) {
+                    remaining.put(fieldName, expected);
+                    continue;
+                }
+                posting = getPrefixIndex(state, fieldName).lookup(expected.toString().toLowerCase());
+            } else {
+                Map<Object, int[]> index = fieldIndexing ? getFieldIndex(state, fieldName) : null;
+                if (index == null) {
+                    remaining.put(fieldName, expected);
+                    continue;
+                }
+                posting = index.get(expected);
+            }
+            if (posting == null || posting.length == 0) {
+                return null;
+            }
+            postings.add(posting);
+        }
+        return new Candidates(state.ids, postings.isEmpty() ? null : intersect(postings), remaining);
+    }
+
+    /**
+     * Checks if the filter has a full-text filter on one of the given fields.
+     */
+    protected static boolean usesPrefixIndex(Map<String, Serializable> filter, Set<String> fulltext,
+            Set<String> prefixIndexed) {
+        if (fulltext == null || prefixIndexed.isEmpty()) {
+            return false;
+        }
+        for (Entry<String, Serializable> e : filter.entrySet()) {
+            if (e.getValue() != null && fulltext.contains(e.getKey()) && prefixIndexed.contains(e.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected boolean matches(Map<String, Object> map, Map<String, Serializable> filter, Set<String> fulltext) {
+        for (Entry<String, Serializable> e : filter.entrySet()) {
+            String fieldName = e.getKey();
+            Object expected = e.getValue();
+            Object value = map.get(fieldName);
+            if (value == null) {
+                if (expected != null) {
+                    return false;
+                }
+            } else {
+                if (fulltext != null && fulltext.contains(fieldName)) {
+                    if (!value.toString().toLowerCase().startsWith(expected.toString().toLowerCase())) {
+                        return false;
                     }
                 } else {
-                    if (fulltext != null && fulltext.contains(fieldName)) {
-                        if (!value.toString().toLowerCase().startsWith(expected.toString().toLowerCase())) {
-                            continue data_loop;
-                        }
-                    } else {
-                        if (!value.equals(expected)) {
-                            continue data_loop;
-                        }
+                    if (!value.equals(expected)) {
+                        return false;
                     }
                 }
             }
-            // this entry matches
-            ids.add(id);
         }
-        return ids;
+        return true;
+    }
+
+    protected IndexState getIndexState() {
+        IndexState state = indexState;
+        if (state != null && state.generation == generation.get()) {
+            return state;
+        }
+        synchronized (buildLock) {
+            // read before the entries, an invalidation during the build
+            // makes the state built of a previous generation
+            long current = generation.get();
+            state = indexState;
+            if (state != null && state.generation == current) {
+                return state;
+            }
+            state = new IndexState(new ArrayList<String>(connector.getEntryIds()), current);
+            for (String field : indexedFields) {
+                state.fieldIndexes.put(field, buildFieldIndex(state.ids, field));
+            }
+            for (String field : connector.getFullTextConfig()) {
+                state.prefixIndexes.put(field, buildPrefixIndex(state.ids, field));
+            }
+            indexState = state;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the index of a field, building it if the field is configured or queried often enough, or {@code null}.
+     */
+    protected Map<Object, int[]> getFieldIndex(IndexState state, String field) {
+        Map<Object, int[]> index = state.fieldIndexes.get(field);
+        if (index != null || adaptiveIndexThreshold <= 0) {
+            return index;
+        }
+        AtomicInteger count = fieldQueryCounts.get(field);
+        if (count == null) {
+            AtomicInteger existing = fieldQueryCounts.putIfAbsent(field, count = new AtomicInteger());
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        if (count.incrementAndGet() < adaptiveIndexThreshold) {
+            return null;
+        }
+        synchronized (state) {
+            index = state.fieldIndexes.get(field);
+            if (index == null) {
+                index = buildFieldIndex(state.ids, field);
+                state.fieldIndexes.put(field, index);
+            }
+        }
+        return index;
+    }
+
+    protected Map<Object, int[]> buildFieldIndex(List<String> ids, String field) {
+        Map<Object, List<Integer>> lists = new HashMap<Object, List<Integer>>();
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, Object> map = connector.getEntryMap(ids.get(i));
+            if (map == null) {
+                continue;
+            }
+            Object value = map.get(field);
+            List<Integer> list = lists.get(value);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                lists.put(value, list);
+            }
+            list.add(Integer.valueOf(i));
+        }
+        Map<Object, int[]> index = new HashMap<Object, int[]>((int) (lists.size() / 0.75f) + 1);
+        for (Entry<Object, List<Integer>> e : lists.entrySet()) {
+            List<Integer> list = e.getValue();
+            int[] posting = new int[list.size()];
+            for (int i = 0; i < posting.length; i++) {
+                posting[i] = list.get(i).intValue();
+            }
+            index.put(e.getKey(), posting);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the prefix index of a full-text field, building it on first use.
+     *
+     * @since 8.2
+     */
+    protected PrefixIndex getPrefixIndex(IndexState state, String field) {
+        PrefixIndex index = state.prefixIndexes.get(field);
+        if (index == null) {
+            synchronized (state) {
+                index = state.prefixIndexes.get(field);
+                if (index == null) {
+                    index = buildPrefixIndex(state.ids, field);
+                    state.prefixIndexes.put(field, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    protected PrefixIndex buildPrefixIndex(List<String> ids, String field) {
+        final List<String> keys = new ArrayList<String>(ids.size());
+        List<Integer> order = new ArrayList<Integer>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, Object> map = connector.getEntryMap(ids.get(i));
+            Object value = map == null ? null : map.get(field);
+            // entries without value never match a prefix
+            keys.add(value == null ? null : value.toString().toLowerCase());
+            if (value != null) {
+                order.add(Integer.valueOf(i));
+            }
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return keys.get(i1.intValue()).compareTo(keys.get(i2.intValue()));
+            }
+        });
+        String[] sortedKeys = new String[order.size()];
+        int[] positions = new int[order.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = order.get(i).intValue();
+            sortedKeys[i] = keys.get(positions[i]);
+        }
+        return new PrefixIndex(sortedKeys, positions);
+    }
+
+    /**
+     * Intersects ascending posting lists, starting with the smallest one.
+     */
+    protected static int[] intersect(List<int[]> postings) {
+        Collections.sort(postings, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] p1, int[] p2) {
+                return Integer.compare(p1.length, p2.length);
+            }
+        });
+        int[] result = postings.get(0);
+        for (int p = 1; p < postings.size() && result.length > 0; p++) {
+            int[] other = postings.get(p);
+            int[] next = new int[result.length];
+            int size = 0;
+            int from = 0;
+            for (int position : result) {
+                int found = Arrays.binarySearch(other, from, other.length, position);
+                if (found >= 0) {
+                    next[size++] = position;
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            result = Arrays.copyOf(next, size);
+        }
+        return result;
     }
 
 }
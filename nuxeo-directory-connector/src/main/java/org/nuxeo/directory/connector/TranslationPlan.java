@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thierry Delprat
+ */
+package org.nuxeo.directory.connector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.ecm.core.schema.types.primitives.StringType;
+
+/**
+ * Translation of the maps returned by a connector into directory entry properties, compiled once from the schema and
+ * the mapping of the directory.
+ * <p>
+ * Each field of the schema is a step reading a key of the connector map: the mapped key, whose value is encoded
+ * according to the field type, or the field name, whose value is copied as is.
+ *
+ * @since 8.2
+ */
+public class TranslationPlan {
+
+    protected interface Converter {
+        Object convert(Object value);
+    }
+
+    protected static final Converter IDENTITY = new Converter() {
+        @Override
+        public Object convert(Object value) {
+            return value;
+        }
+    };
+
+    protected static class EncodingConverter implements Converter {
+
+        protected final Type type;
+
+        protected EncodingConverter(Type type) {
+            this.type = type;
+        }
+
+        @Override
+        public Object convert(Object value) {
+            return type.encode(value);
+        }
+    }
+
+    /**
+     * Encoding to a string field, skipping the encoding of values already being strings.
+     */
+    protected static class StringConverter extends EncodingConverter {
+
+        protected StringConverter(Type type) {
+            super(type);
+        }
+
+        @Override
+        public Object convert(Object value) {
+            return value instanceof String ? value : type.encode(value);
+        }
+    }
+
+    protected final String[] targetFields;
+
+    protected final String[] sourceKeys;
+
+    protected final Converter[] converters;
+
+    public TranslationPlan(Schema schema, Map<String, String> mapping) {
+        List<String> targets = new ArrayList<String>();
+        List<String> sources = new ArrayList<String>();
+        List<Converter> steps = new ArrayList<Converter>();
+        for (Field field : schema.getFields()) {
+            String fieldId = field.getName().getLocalName();
+            String sourceKey = mapping.get(fieldId);
+            targets.add(fieldId);
+            if (sourceKey != null) {
+                sources.add(sourceKey);
+                Type type = field.getType();
+                steps.add(type instanceof StringType ? new StringConverter(type) : new EncodingConverter(type));
+            } else {
+                sources.add(fieldId);
+                steps.add(IDENTITY);
+            }
+        }
+        targetFields = targets.toArray(new String[targets.size()]);
+        sourceKeys = sources.toArray(new String[sources.size()]);
+        converters = steps.toArray(new Converter[steps.size()]);
+    }
+
+    public Map<String, Object> translate(Map<String, Object> map) {
+        Map<String, Object> newMap = new HashMap<String, Object>((int) (targetFields.length / 0.75f) + 1);
+        for (int i = 0; i < targetFields.length; i++) {
+            newMap.put(targetFields[i], converters[i].convert(map.get(sourceKeys[i])));
+        }
+        return newMap;
+    }
+
+}
@@ -21,6 +21,8 @@ package org.nuxeo.directory.connector.json;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,12 +46,51 @@ public abstract class BaseJSONDirectoryConnector extends AbstractEntryConnector
 
     protected ObjectMapper objectMapper = null;
 
+    protected MapType mapType = null;
+
+    /**
+     * Validators of the last response read by {@link #callIfModified(String)}, by URL.
+     *
+     * @since 8.2
+     */
+    protected final ConcurrentMap<String, Validators> validators = new ConcurrentHashMap<String, Validators>();
+
     protected static final Log log = LogFactory.getLog(BaseJSONDirectoryConnector.class);
 
     public BaseJSONDirectoryConnector() {
         super();
     }
 
+    /**
+     * The {@code ETag} and {@code Last-Modified} headers of a response, sent back to only get the resource again if it
+     * changed.
+     *
+     * @since 8.2
+     */
+    protected static class Validators {
+
+        protected final String etag;
+
+        protected final String lastModified;
+
+        protected Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the validators of a response, or {@code null} if it has none.
+         */
+        protected static Validators of(ClientResponse response) {
+            String etag = response.getHeaders().getFirst("ETag");
+            String lastModified = response.getHeaders().getFirst("Last-Modified");
+            if (etag == null && lastModified == null) {
+                return null;
+            }
+            return new Validators(etag, lastModified);
+        }
+    }
+
     protected ObjectMapper getMapper() {
         if (objectMapper == null) {
             objectMapper = new ObjectMapper();
@@ -57,37 +98,136 @@ public abstract class BaseJSONDirectoryConnector extends AbstractEntryConnector
         return objectMapper;
     }
 
+    /**
+     * Returns the type JSON objects are read as.
+     *
+     * @since 8.2
+     */
+    protected MapType getMapType() {
+        if (mapType == null) {
+            mapType = getMapper().getTypeFactory().constructMapType(Map.class, String.class, Object.class);
+        }
+        return mapType;
+    }
+
     protected Map<String, Object> readAsMap(JsonNode node) throws IOException {
-        MapType type = getMapper().getTypeFactory().constructMapType(Map.class, String.class, Object.class);
-        return getMapper().readValue(node, type);
+        return getMapper().readValue(node, getMapType());
+    }
+
+    /**
+     * Returns the HTTP client, shared by all the sessions of the directory and by background loads, created on first
+     * use.
+     *
+     * @since 8.2
+     */
+    protected synchronized Client getClient() {
+        if (client == null) {
+            client = Client.create();
+        }
+        return client;
     }
 
     protected JsonNode call(String url) {
-        WebResource webResource = client.resource(url);
-        ClientResponse response = webResource.accept("application/json").get(ClientResponse.class);
+        return readTree(get(url, null));
+    }
+
+    /**
+     * Calls a URL, sending the validators of the previous response so that the remote service can answer that the
+     * resource did not change.
+     *
+     * @return the response, or {@code null} if the resource is not modified since the previous call
+     * @since 8.2
+     */
+    protected JsonNode callIfModified(String url) {
+        ClientResponse response = get(url, validators.get(url));
+        if (response == null) {
+            return null;
+        }
+        Validators current = Validators.of(response);
+        JsonNode node = readTree(response);
+        setValidators(url, current);
+        return node;
+    }
+
+    /**
+     * Remembers the validators of the response read from a URL, to be sent by the next conditional GET.
+     *
+     * @since 8.2
+     */
+    protected void setValidators(String url, Validators current) {
+        if (current != null) {
+            validators.put(url, current);
+        } else {
+            validators.remove(url);
+        }
+    }
 
+    /**
+     * Forgets the validators of a URL, so that the next call to {@link #callIfModified(String)} gets the resource
+     * again, typically when its previous response could not be used.
+     *
+     * @since 8.2
+     */
+    protected void forgetValidators(String url) {
+        validators.remove(url);
+    }
+
+    /**
+     * Does a GET on a URL, conditional if validators are given.
+     *
+     * @return the response, or {@code null} if the resource is not modified
+     * @since 8.2
+     */
+    protected ClientResponse get(String url, Validators conditions) {
+        WebResource.Builder request = getClient().resource(url).accept("application/json");
+        if (conditions != null) {
+            if (conditions.etag != null) {
+                request.header("If-None-Match", conditions.etag);
+            }
+            if (conditions.lastModified != null) {
+                request.header("If-Modified-Since", conditions.lastModified);
+            }
+        }
+        ClientResponse response = request.get(ClientResponse.class);
+
+        if (response.getStatus() == 304 && conditions != null) {
+            response.close();
+            return null;
+        }
         if (response.getStatus() != 200) {
+            response.close();
             throw new NuxeoException("Failed to call remote service: HTTP error code: " + response.getStatus());
         }
+        return response;
+    }
 
+    protected JsonNode readTree(ClientResponse response) {
         try {
             return getMapper().readTree(response.getEntityInputStream());
         } catch (IOException e) {
             throw new NuxeoException("Error while reading JSON response", e);
+        } finally {
+            response.close();
         }
-
     }
 
     @Override
     public void init(ConnectorBasedDirectoryDescriptor descriptor) {
-        client = Client.create();
         params = descriptor.getParameters();
     }
 
+    /**
+     * Releases the HTTP client. This is not done by {@link #close()}, which is called at the end of each session while
+     * other sessions or a background load may still use the client.
+     */
     @Override
-    public void close() {
-        if (client != null) {
-            client.destroy();
+    public void shutdown() {
+        super.shutdown();
+        synchronized (this) {
+            if (client != null) {
+                client.destroy();
+                client = null;
+            }
         }
     }
 
@@ -18,45 +18,232 @@
  */
 package org.nuxeo.directory.connector.json;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.type.MapType;
+import org.nuxeo.common.Environment;
+import org.nuxeo.directory.connector.AbstractEntryConnector;
 import org.nuxeo.directory.connector.ConnectorBasedDirectoryDescriptor;
 import org.nuxeo.directory.connector.EntryConnector;
 import org.nuxeo.directory.connector.InMemorySearchHelper;
+import org.nuxeo.ecm.core.api.NuxeoException;
 
-public class JsonInMemoryDirectoryConnector extends BaseJSONDirectoryConnector implements EntryConnector {
+import com.sun.jersey.api.client.ClientResponse;
 
-    public ArrayList<HashMap<String, Object>> results;
+public class JsonInMemoryDirectoryConnector extends BaseJSONDirectoryConnector implements EntryConnector {
 
-    protected final InMemorySearchHelper searchHelper;
+    /**
+     * Number of queries filtering on a field after which the field is indexed, unless set by the
+     * {@code adaptiveIndexThreshold} parameter.
+     *
+     * @since 8.2
+     */
+    public static final int DEFAULT_ADAPTIVE_INDEX_THRESHOLD = 3;
 
     protected String idField;
 
-    public JsonInMemoryDirectoryConnector() {
-        searchHelper = new InMemorySearchHelper(this);
+    protected Set<String> indexedFields = Collections.emptySet();
+
+    protected int adaptiveIndexThreshold = DEFAULT_ADAPTIVE_INDEX_THRESHOLD;
+
+    /**
+     * The loaded entries, replaced as a whole by each load.
+     *
+     * @since 8.2
+     */
+    protected volatile Snapshot snapshot = new Snapshot(Collections.<String, Map<String, Object>> emptyMap(),
+            Collections.<String> emptySet());
+
+    protected final Object refreshLock = new Object();
+
+    protected ScheduledExecutorService refresher;
+
+    protected JsonSnapshotFile snapshotFile;
+
+    /**
+     * Entries loaded at a given time, with their indexes. A snapshot is never modified once built, so that readers
+     * always see a consistent dataset while a new one is being loaded.
+     *
+     * @since 8.2
+     */
+    protected static class Snapshot extends AbstractEntryConnector {
+
+        protected final Map<String, Map<String, Object>> entriesById;
+
+        protected final List<String> entryIds;
+
+        protected final Set<String> fullTextConfig;
+
+        protected final InMemorySearchHelper searchHelper;
+
+        protected Snapshot(Map<String, Map<String, Object>> entriesById, Set<String> fullTextConfig) {
+            this.entriesById = entriesById;
+            this.entryIds = Collections.unmodifiableList(new ArrayList<String>(entriesById.keySet()));
+            this.fullTextConfig = fullTextConfig;
+            this.searchHelper = new InMemorySearchHelper(this);
+        }
+
+        public List<String> getEntryIds() {
+            return entryIds;
+        }
+
+        public Map<String, Object> getEntryMap(String id) {
+            return entriesById.get(id);
+        }
+
+        public boolean hasEntry(String id) {
+            return entriesById.containsKey(id);
+        }
+
+        public List<String> queryEntryIds(Map<String, Serializable> filter, Set<String> fulltext) {
+            return searchHelper.queryEntryIds(filter, fulltext);
+        }
+
+        @Override
+        public Iterator<Entry<String, Map<String, Object>>> queryEntries(Map<String, Serializable> filter,
+                Set<String> fulltext) {
+            return searchHelper.queryEntries(filter, fulltext);
+        }
+
+        @Override
+        public Set<String> getFullTextConfig() {
+            return fullTextConfig;
+        }
+    }
+
+    /**
+     * Returns the field of the response holding the array of entries.
+     *
+     * @since 8.2
+     */
+    protected String getResultsFieldName() {
+        return "results";
     }
 
+    /**
+     * Returns the array of entries of the response.
+     *
+     * @deprecated since 8.2, entries are streamed from the {@link #getResultsFieldName()} field of the response. This
+     *             method is only called, on the whole response read as a tree, by subclasses overriding it.
+     */
+    @Deprecated
     protected JsonNode extractResult(JsonNode responseAsJson) {
-        return responseAsJson.get("results");
+        return responseAsJson.get(getResultsFieldName());
+    }
+
+    /**
+     * Whether a subclass still overrides {@link #extractResult(JsonNode)}, in which case the response is read as a
+     * tree.
+     */
+    protected boolean overridesExtractResult() {
+        for (Class<?> klass = getClass(); klass != JsonInMemoryDirectoryConnector.class; klass = klass.getSuperclass()) {
+            try {
+                klass.getDeclaredMethod("extractResult", JsonNode.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // check the superclass
+            }
+        }
+        return false;
     }
 
+    /**
+     * Reads the entries from the remote service.
+     *
+     * @return the entries, or {@code null} if they did not change since the previous call
+     */
     protected ArrayList<HashMap<String, Object>> getJsonStream() {
-        ArrayList<HashMap<String, Object>> mapList = new ArrayList<HashMap<String, Object>>();
+        String url = params.get("url");
+        if (overridesExtractResult()) {
+            JsonNode responseAsJson = callIfModified(url);
+            return responseAsJson == null ? null : readResults(extractResult(responseAsJson));
+        }
+        ClientResponse response = get(url, validators.get(url));
+        if (response == null) {
+            return null;
+        }
+        Validators current = Validators.of(response);
+        ArrayList<HashMap<String, Object>> mapList;
+        try {
+            mapList = readResults(response.getEntityInputStream());
+        } catch (IOException e) {
+            throw new NuxeoException("Error while reading JSON response", e);
+        } finally {
+            response.close();
+        }
+        setValidators(url, current);
+        return mapList;
+    }
 
-        JsonNode responseAsJson = call(params.get("url"));
+    /**
+     * Reads the entries one at a time from the {@link #getResultsFieldName()} array of a JSON response, without
+     * building the tree of the whole response. The other fields of the response are skipped. The entries read are all
+     * kept in the returned list until the snapshot is built.
+     *
+     * @since 8.2
+     */
+    protected ArrayList<HashMap<String, Object>> readResults(InputStream in) throws IOException {
+        String resultsFieldName = getResultsFieldName();
+        JsonParser parser = getMapper().getJsonFactory().createJsonParser(in);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new NuxeoException("Expected a JSON object as response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (!resultsFieldName.equals(fieldName)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (token != JsonToken.START_ARRAY) {
+                    throw new NuxeoException("Expected an array in field '" + resultsFieldName + "' of the response");
+                }
+                ArrayList<HashMap<String, Object>> mapList = new ArrayList<HashMap<String, Object>>();
+                MapType type = getMapType();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        throw new NuxeoException("Unexpected end of the JSON response");
+                    }
+                    if (token != JsonToken.START_OBJECT) {
+                        log.warn("Ignoring entry not being a JSON object: " + parser.getText());
+                        parser.skipChildren();
+                        continue;
+                    }
+                    Map<String, Object> map = getMapper().readValue(parser, type);
+                    mapList.add((HashMap<String, Object>) map);
+                }
+                return mapList;
+            }
+            throw new NuxeoException("No field '" + resultsFieldName + "' in the response");
+        } finally {
+            parser.close();
+        }
+    }
 
-        JsonNode resultsNode = extractResult(responseAsJson);
+    protected ArrayList<HashMap<String, Object>> readResults(JsonNode resultsNode) {
+        ArrayList<HashMap<String, Object>> mapList = new ArrayList<HashMap<String, Object>>();
         for (int i = 0; i < resultsNode.size(); i++) {
             try {
                 Map<String, Object> map = new HashMap<String, Object>();
@@ -69,53 +256,236 @@ public class JsonInMemoryDirectoryConnector extends BaseJSONDirectoryConnector i
         return mapList;
     }
 
-    public List<String> getEntryIds() {
-
-        List<String> ids = new ArrayList<String>();
-        if (results != null) {
-            for (int i = 0; i < results.size(); i++) {
-                ids.add(results.get(i).get(idField).toString());
+    /**
+     * Indexes the loaded entries by id and builds their search indexes. The first entry wins when several ones have
+     * the same id, entries without id are ignored.
+     * <p>
+     * The fields indexed after enough queries on the previous snapshot are indexed right away.
+     *
+     * @since 8.2
+     */
+    protected Snapshot buildSnapshot(List<HashMap<String, Object>> entries, Snapshot previous) {
+        Map<String, Map<String, Object>> index = new LinkedHashMap<String, Map<String, Object>>(
+                (int) (entries.size() / 0.75f) + 1);
+        for (HashMap<String, Object> entry : entries) {
+            Object id = entry.get(idField);
+            if (id == null) {
+                log.warn(String.format("Ignoring entry without id field '%s': %s", idField, entry));
+                continue;
+            }
+            String key = id.toString();
+            if (!index.containsKey(key)) {
+                index.put(key, Collections.unmodifiableMap(entry));
             }
         }
-        return ids;
+        Snapshot newSnapshot = new Snapshot(Collections.unmodifiableMap(index), getFullTextConfig());
+        Set<String> fields = new HashSet<String>(indexedFields);
+        if (previous != null) {
+            fields.addAll(previous.searchHelper.getIndexedFieldsInUse());
+        }
+        newSnapshot.searchHelper.setIndexedFields(fields);
+        newSnapshot.searchHelper.setAdaptiveIndexThreshold(adaptiveIndexThreshold);
+        newSnapshot.searchHelper.prepare();
+        return newSnapshot;
     }
 
-    public Map<String, Object> getEntryMap(String id) {
-        Map<String, Object> rc = new HashMap<String, Object>();
-        rc = null;
-        if (results != null) {
-            for (int i = 0; i < results.size(); i++) {
-                if (results.get(i).get(idField).toString().equals(id)) {
-                    rc = results.get(i);
-                    break;
-                }
+    /**
+     * Loads the remote dataset again. The current entries are served until the new ones are loaded and indexed, and
+     * kept if loading fails or if the remote service answers that they did not change.
+     *
+     * @since 8.2
+     */
+    public void refresh() {
+        synchronized (refreshLock) {
+            ArrayList<HashMap<String, Object>> entries = getJsonStream();
+            if (entries == null) {
+                log.debug("Entries not modified since last load from " + params.get("url"));
+                return;
+            }
+            try {
+                snapshot = buildSnapshot(entries, snapshot);
+            } catch (RuntimeException e) {
+                // the validators describe entries we don't have
+                forgetValidators(params.get("url"));
+                throw e;
             }
+            saveSnapshotFile(snapshot);
         }
-        return rc;
     }
 
-    public boolean hasEntry(String id) {
-        if (results != null) {
-            for (int i = 0; i < results.size(); i++) {
-                if (results.get(i).get(idField).equals(id)) {
-                    return true;
-                }
+    /**
+     * Returns the file keeping a copy of the last loaded dataset, given by the {@code snapshotFile} parameter,
+     * {@code directory-connector/<directory>.snapshot} in the data directory by default, or {@code null} if the
+     * {@code snapshot} parameter is {@code false}. Without a data directory, the snapshot is disabled unless the
+     * {@code snapshotFile} parameter is set, a shared temporary directory could mix up the snapshots of several
+     * instances.
+     *
+     * @since 8.2
+     */
+    protected JsonSnapshotFile getSnapshotFile(ConnectorBasedDirectoryDescriptor descriptor) {
+        if ("false".equals(params.get("snapshot"))) {
+            return null;
+        }
+        String path = params.get("snapshotFile");
+        if (path != null && !path.trim().isEmpty()) {
+            return new JsonSnapshotFile(new File(path.trim()));
+        }
+        Environment env = Environment.getDefault();
+        if (env == null || env.getData() == null) {
+            log.info(String.format("No data directory, snapshot of directory %s disabled unless snapshotFile is set",
+                    descriptor.name));
+            return null;
+        }
+        return new JsonSnapshotFile(new File(new File(env.getData(), "directory-connector"), descriptor.name
+                + ".snapshot"));
+    }
+
+    /**
+     * Serves the dataset of the snapshot file, if it was loaded from the same URL.
+     *
+     * @return {@code true} if the snapshot file was loaded
+     * @since 8.2
+     */
+    protected boolean loadSnapshotFile() {
+        if (snapshotFile == null) {
+            return false;
+        }
+        String url = params.get("url");
+        try {
+            JsonSnapshotFile.Content content = snapshotFile.read();
+            if (content == null) {
+                return false;
+            }
+            if (url == null ? content.url != null : !url.equals(content.url)) {
+                log.info(String.format("Ignoring snapshot %s loaded from another URL: %s", snapshotFile.getPath(),
+                        content.url));
+                return false;
             }
+            synchronized (refreshLock) {
+                snapshot = buildSnapshot(content.entries, null);
+                setValidators(url, content.validators);
+            }
+            log.info(String.format("Loaded %d entries from snapshot %s", Integer.valueOf(snapshot.entryIds.size()),
+                    snapshotFile.getPath()));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to load snapshot " + snapshotFile.getPath(), e);
+            return false;
         }
-        return false;
+    }
+
+    /**
+     * Replaces the snapshot file with the given dataset, logging failures since the dataset is served anyway.
+     *
+     * @since 8.2
+     */
+    protected void saveSnapshotFile(Snapshot saved) {
+        if (snapshotFile == null) {
+            return;
+        }
+        String url = params.get("url");
+        try {
+            snapshotFile.write(url, validators.get(url), saved.entriesById.values());
+        } catch (IOException e) {
+            log.warn("Unable to save snapshot " + snapshotFile.getPath(), e);
+        }
+    }
+
+    public List<String> getEntryIds() {
+        return snapshot.getEntryIds();
+    }
+
+    public Map<String, Object> getEntryMap(String id) {
+        return snapshot.getEntryMap(id);
+    }
+
+    public boolean hasEntry(String id) {
+        return snapshot.hasEntry(id);
     }
 
     @Override
     public void init(ConnectorBasedDirectoryDescriptor descriptor) {
         super.init(descriptor);
-        results = this.getJsonStream();
         idField = descriptor.idField;
+        String indexedFieldsParam = params.get("indexedFields");
+        if (indexedFieldsParam != null && !indexedFieldsParam.trim().isEmpty()) {
+            indexedFields = new HashSet<String>(Arrays.asList(indexedFieldsParam.trim().split("\\s*,\\s*")));
+        }
+        String adaptiveIndexThresholdParam = params.get("adaptiveIndexThreshold");
+        if (adaptiveIndexThresholdParam != null) {
+            adaptiveIndexThreshold = Integer.parseInt(adaptiveIndexThresholdParam.trim());
+        }
+        String refreshIntervalParam = params.get("refreshInterval");
+        long refreshInterval = refreshIntervalParam == null ? 0 : Long.parseLong(refreshIntervalParam.trim());
+        snapshotFile = getSnapshotFile(descriptor);
+        if (loadSnapshotFile()) {
+            // serve the local copy right away, and revalidate it against the remote service
+            scheduleRefresh(0, refreshInterval);
+        } else {
+            refresh();
+            if (refreshInterval > 0) {
+                scheduleRefresh(refreshInterval, refreshInterval);
+            }
+        }
+    }
+
+    /**
+     * Reloads the remote dataset in the background after {@code delay} milliseconds, then every {@code interval}
+     * milliseconds if it is positive.
+     *
+     * @since 8.2
+     */
+    protected synchronized void scheduleRefresh(long delay, long interval) {
+        final String name = "Nuxeo-" + getClass().getSimpleName() + "-refresh";
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    // keep serving the current entries, and try again next time
+                    log.warn("Failed to refresh entries from " + params.get("url"), e);
+                }
+            }
+        };
+        if (interval > 0) {
+            refresher.scheduleWithFixedDelay(task, delay, interval, TimeUnit.MILLISECONDS);
+        } else {
+            refresher.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
 
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (refresher != null) {
+                refresher.shutdownNow();
+                refresher = null;
+            }
+        }
+        // wait for a refresh in progress, so that it does not use the released client
+        synchronized (refreshLock) {
+            super.shutdown();
+        }
     }
 
     @Override
     public List<String> queryEntryIds(Map<String, Serializable> filter, Set<String> fulltext) {
-        return searchHelper.queryEntryIds(filter, fulltext);
+        return snapshot.queryEntryIds(filter, fulltext);
+    }
+
+    @Override
+    public Iterator<Entry<String, Map<String, Object>>> queryEntries(Map<String, Serializable> filter,
+            Set<String> fulltext) {
+        return snapshot.queryEntries(filter, fulltext);
     }
 
 }
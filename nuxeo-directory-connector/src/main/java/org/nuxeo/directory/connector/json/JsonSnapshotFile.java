@@ -0,0 +1,327 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thierry Delprat
+ */
+package org.nuxeo.directory.connector.json;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.nuxeo.directory.connector.json.BaseJSONDirectoryConnector.Validators;
+
+/**
+ * Local copy of the last dataset loaded by a {@link JsonInMemoryDirectoryConnector}, so that it can serve entries on
+ * startup before, or without, reaching the remote service.
+ * <p>
+ * The file starts with a header (magic number, version, payload length and CRC32 of the payload), followed by the
+ * payload: the URL the dataset was loaded from, its validators ({@code ETag} and {@code Last-Modified}) and the entries,
+ * each value being written as a type tag followed by its content. Only the types produced by JSON parsing are
+ * supported: strings, numbers, booleans, lists and maps.
+ * <p>
+ * The file is written to a temporary file which atomically replaces the previous one, and memory-mapped to be read.
+ *
+ * @since 8.2
+ */
+public class JsonSnapshotFile {
+
+    protected static final int MAGIC = 0x4e584a53; // NXJS
+
+    protected static final int VERSION = 1;
+
+    /** Magic number, version, payload length and CRC. */
+    protected static final int HEADER_SIZE = 16;
+
+    protected static final String TMP_SUFFIX = ".tmp";
+
+    protected static final byte NULL = 0;
+
+    protected static final byte STRING = 1;
+
+    protected static final byte LONG = 2;
+
+    protected static final byte INTEGER = 3;
+
+    protected static final byte BOOLEAN = 4;
+
+    protected static final byte DOUBLE = 5;
+
+    protected static final byte BIG_INTEGER = 6;
+
+    protected static final byte BIG_DECIMAL = 7;
+
+    protected static final byte LIST = 8;
+
+    protected static final byte MAP = 9;
+
+    /**
+     * A dataset read from the file.
+     */
+    public static class Content {
+
+        public final String url;
+
+        public final Validators validators;
+
+        public final ArrayList<HashMap<String, Object>> entries;
+
+        protected Content(String url, Validators validators, ArrayList<HashMap<String, Object>> entries) {
+            this.url = url;
+            this.validators = validators;
+            this.entries = entries;
+        }
+    }
+
+    protected final Path path;
+
+    public JsonSnapshotFile(File file) {
+        path = file.toPath();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Reads the dataset.
+     *
+     * @return the dataset, or {@code null} if there is no file
+     */
+    public Content read() throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to be mapped: " + path);
+            }
+            if (size < HEADER_SIZE) {
+                throw new IOException("Truncated header in snapshot " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a JSON connector snapshot: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported version %d of snapshot %s", version, path));
+            }
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length != size - HEADER_SIZE) {
+                throw new IOException("Truncated snapshot " + path);
+            }
+            ByteBuffer payload = buffer.slice();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Corrupted snapshot " + path);
+            }
+            String url = readNullableString(payload);
+            String etag = readNullableString(payload);
+            String lastModified = readNullableString(payload);
+            Validators validators = etag == null && lastModified == null ? null
+                    : new Validators(etag, lastModified);
+            int count = payload.getInt();
+            ArrayList<HashMap<String, Object>> entries = new ArrayList<HashMap<String, Object>>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(readMap(payload));
+            }
+            return new Content(url, validators, entries);
+        }
+    }
+
+    /**
+     * Replaces the dataset.
+     */
+    public void write(String url, Validators validators, Collection<? extends Map<String, Object>> entries)
+            throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmpPath = path.resolveSibling(path.getFileName() + TMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                // not closed, which would close the channel before the header is written
+                DataOutputStream out = new DataOutputStream(
+                        new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)), crc));
+                writeNullableString(out, url);
+                writeNullableString(out, validators == null ? null : validators.etag);
+                writeNullableString(out, validators == null ? null : validators.lastModified);
+                out.writeInt(entries.size());
+                for (Map<String, Object> entry : entries) {
+                    writeMap(out, entry);
+                }
+                out.flush();
+                long length = channel.size() - HEADER_SIZE;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot too large to be mapped: " + path);
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt((int) length).putInt((int) crc.getValue()).flip();
+                long position = 0;
+                while (header.hasRemaining()) {
+                    position += channel.write(header, position);
+                }
+                channel.force(true);
+            }
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    protected static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            writeString(out, e.getKey().toString());
+            writeValue(out, e.getValue());
+        }
+    }
+
+    protected static HashMap<String, Object> readMap(ByteBuffer in) throws IOException {
+        int size = in.getInt();
+        HashMap<String, Object> map = new LinkedHashMap<String, Object>((int) (size / 0.75f) + 1);
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    protected static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong(((Long) value).longValue());
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INTEGER);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((Boolean) value).booleanValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof List) {
+            List<?> items = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(items.size());
+            for (Object item : items) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(MAP);
+            writeMap(out, (Map<?, ?>) value);
+        } else {
+            throw new IOException(String.format("Unsupported value type '%s' in JSON connector snapshot",
+                    value.getClass().getName()));
+        }
+    }
+
+    protected static Object readValue(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case LONG:
+            return Long.valueOf(in.getLong());
+        case INTEGER:
+            return Integer.valueOf(in.getInt());
+        case BOOLEAN:
+            return Boolean.valueOf(in.get() != 0);
+        case DOUBLE:
+            return Double.valueOf(in.getDouble());
+        case BIG_INTEGER:
+            return new BigInteger(readString(in));
+        case BIG_DECIMAL:
+            return new BigDecimal(readString(in));
+        case LIST:
+            int size = in.getInt();
+            List<Object> items = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                items.add(readValue(in));
+            }
+            return items;
+        case MAP:
+            return readMap(in);
+        default:
+            throw new IOException("Unknown value type tag " + tag);
+        }
+    }
+
+    protected static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    protected static String readNullableString(ByteBuffer in) {
+        return in.get() != 0 ? readString(in) : null;
+    }
+
+}
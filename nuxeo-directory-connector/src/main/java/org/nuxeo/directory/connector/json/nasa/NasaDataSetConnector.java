@@ -21,15 +21,35 @@ package org.nuxeo.directory.connector.json.nasa;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.codehaus.jackson.JsonNode;
 import org.nuxeo.directory.connector.json.BaseJSONDirectoryConnector;
+import org.nuxeo.ecm.core.api.NuxeoException;
 
 public class NasaDataSetConnector extends BaseJSONDirectoryConnector {
 
+    /**
+     * Maximum number of data sets fetched concurrently, unless set by the {@code maxConcurrentRequests} parameter.
+     *
+     * @since 8.2
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+    protected ExecutorService executor;
+
     @Override
     public boolean hasEntry(String id) {
         return getEntryMap(id) != null;
@@ -51,6 +71,84 @@ public class NasaDataSetConnector extends BaseJSONDirectoryConnector {
         }
     }
 
+    /**
+     * Fetches the data sets concurrently, the API having no call returning several data sets by id.
+     */
+    @Override
+    public Map<String, Map<String, Object>> getEntryMaps(List<String> ids) {
+        if (ids.size() <= 1) {
+            return super.getEntryMaps(ids);
+        }
+        ExecutorService executorService = getExecutor();
+        List<Future<Map<String, Object>>> futures = new ArrayList<>(ids.size());
+        for (final String id : ids) {
+            futures.add(executorService.submit(new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() {
+                    return getEntryMap(id);
+                }
+            }));
+        }
+        Map<String, Map<String, Object>> maps = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                Map<String, Object> map = futures.get(i).get();
+                if (map != null) {
+                    maps.put(ids.get(i), map);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while fetching data sets", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new NuxeoException("Unable to fetch data sets", e.getCause());
+        } finally {
+            for (Future<Map<String, Object>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return maps;
+    }
+
+    protected synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            String maxConcurrentRequests = params.get("maxConcurrentRequests");
+            int poolSize = maxConcurrentRequests == null ? DEFAULT_MAX_CONCURRENT_REQUESTS
+                    : Integer.parseInt(maxConcurrentRequests.trim());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        protected final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Nuxeo-NasaDataSetConnector-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the fetching threads, which are shared by all the sessions of the directory.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        super.shutdown();
+    }
+
     @Override
     public List<String> getEntryIds() {
         return new ArrayList<String>();
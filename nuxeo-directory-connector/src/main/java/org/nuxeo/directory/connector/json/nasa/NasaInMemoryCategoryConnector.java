@@ -18,23 +18,28 @@
  */
 package org.nuxeo.directory.connector.json.nasa;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashMap;
 
-import org.codehaus.jackson.JsonNode;
 import org.nuxeo.directory.connector.json.JsonInMemoryDirectoryConnector;
 
 public class NasaInMemoryCategoryConnector extends JsonInMemoryDirectoryConnector {
 
     @Override
-    protected JsonNode extractResult(JsonNode responseAsJson) {
-        return responseAsJson.get("categories");
+    protected String getResultsFieldName() {
+        return "categories";
     }
 
     @Override
-    public Map<String, Object> getEntryMap(String id) {
-        Map<String, Object> entry = super.getEntryMap(id);
-        // add the obsolete flag so that the default directory filters will work
-        entry.put("obsolete", new Long(0));
-        return entry;
+    protected ArrayList<HashMap<String, Object>> getJsonStream() {
+        ArrayList<HashMap<String, Object>> entries = super.getJsonStream();
+        if (entries == null) {
+            return null;
+        }
+        for (HashMap<String, Object> entry : entries) {
+            // add the obsolete flag so that the default directory filters will work
+            entry.put("obsolete", Long.valueOf(0));
+        }
+        return entries;
     }
 }
@@ -22,8 +22,10 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.nuxeo.directory.connector.AbstractEntryConnector;
@@ -71,6 +73,12 @@ public class DummyTestConnector extends AbstractEntryConnector implements EntryC
         return searchHelper.queryEntryIds(filter, fulltext);
     }
 
+    @Override
+    public Iterator<Entry<String, Map<String, Object>>> queryEntries(Map<String, Serializable> filter,
+            Set<String> fulltext) {
+        return searchHelper.queryEntries(filter, fulltext);
+    }
+
     public boolean hasEntry(String id) {
         return params.keySet().contains(id);
     }
@@ -127,6 +127,8 @@ public class TestConnectorDirectory extends NXRuntimeTestCase {
         DocumentModel entry = session.getEntry("358317744");
         assertNotNull(entry);
         assertEquals("The Sea", (String) entry.getProperty("itunes", "trackName"));
+        assertTrue(session.hasEntry("358317744"));
+        assertFalse(session.hasEntry("unknown"));
 
     }
 
@@ -0,0 +1,251 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thierry Delprat
+ */
+package org.nuxeo.directory.connector.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.directory.connector.AbstractEntryConnector;
+import org.nuxeo.directory.connector.InMemorySearchHelper;
+
+public class TestInMemorySearchHelper {
+
+    protected static class MapConnector extends AbstractEntryConnector {
+
+        protected final Map<String, Map<String, Object>> entries = new LinkedHashMap<String, Map<String, Object>>();
+
+        protected final InMemorySearchHelper searchHelper = new InMemorySearchHelper(this);
+
+        protected Set<String> fullTextConfig = Collections.emptySet();
+
+        protected int reads;
+
+        protected final AtomicInteger listings = new AtomicInteger();
+
+        /** Run after the ids are listed, before they are returned. */
+        protected Runnable afterListing;
+
+        protected void add(String id, String parent, Long obsolete, String label) {
+            Map<String, Object> entry = new HashMap<String, Object>();
+            entry.put("id", id);
+            entry.put("parent", parent);
+            entry.put("obsolete", obsolete);
+            entry.put("label", label);
+            entries.put(id, entry);
+        }
+
+        @Override
+        public boolean hasEntry(String id) {
+            return entries.containsKey(id);
+        }
+
+        @Override
+        public Map<String, Object> getEntryMap(String id) {
+            reads++;
+            return entries.get(id);
+        }
+
+        @Override
+        public Set<String> getFullTextConfig() {
+            return fullTextConfig;
+        }
+
+        @Override
+        public List<String> getEntryIds() {
+            listings.incrementAndGet();
+            List<String> ids = new ArrayList<String>(entries.keySet());
+            if (afterListing != null) {
+                afterListing.run();
+            }
+            return ids;
+        }
+
+        @Override
+        public List<String> queryEntryIds(Map<String, Serializable> filter, Set<String> fulltext) {
+            return searchHelper.queryEntryIds(filter, fulltext);
+        }
+    }
+
+    protected MapConnector connector;
+
+    @Before
+    public void setUp() {
+        connector = new MapConnector();
+        connector.add("1", "europe", Long.valueOf(0), "France");
+        connector.add("2", "europe", Long.valueOf(1), "Finland");
+        connector.add("3", "asia", Long.valueOf(0), "Japan");
+        connector.add("4", null, Long.valueOf(0), "Frankfurt");
+        connector.add("5", "europe", Long.valueOf(0), "Germany");
+    }
+
+    protected List<String> query(Object... keyValues) {
+        return query(Collections.<String> emptySet(), keyValues);
+    }
+
+    protected List<String> query(Set<String> fulltext, Object... keyValues) {
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            filter.put((String) keyValues[i], (Serializable) keyValues[i + 1]);
+        }
+        return connector.queryEntryIds(filter, fulltext);
+    }
+
+    protected void checkQueries() {
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), query());
+        assertEquals(Arrays.asList("1", "2", "5"), query("parent", "europe"));
+        assertEquals(Arrays.asList("1", "5"), query("parent", "europe", "obsolete", Long.valueOf(0)));
+        assertEquals(Arrays.asList("4"), query("parent", null));
+        assertEquals(Collections.emptyList(), query("parent", "america"));
+        assertEquals(Arrays.asList("1"),
+                query(Collections.singleton("label"), "parent", "europe", "obsolete", Long.valueOf(0), "label", "fr"));
+    }
+
+    @Test
+    public void testScan() {
+        checkQueries();
+    }
+
+    @Test
+    public void testConfiguredIndexes() {
+        connector.searchHelper.setIndexedFields(Arrays.asList("parent", "obsolete"));
+        checkQueries();
+    }
+
+    @Test
+    public void testPrefixIndex() {
+        // no equality index configured
+        connector.fullTextConfig = Collections.singleton("label");
+        Set<String> fulltext = Collections.singleton("label");
+        assertEquals(Arrays.asList("1", "2", "4"), query(fulltext, "label", "f"));
+        // answered by the index alone once built
+        int reads = connector.reads;
+        assertEquals(Arrays.asList("1", "4"), query(fulltext, "label", "FRA"));
+        assertEquals(reads, connector.reads);
+        assertEquals(Arrays.asList("1"), query(fulltext, "label", "france"));
+        assertEquals(Arrays.asList("1"), query(fulltext, "label", "fr", "parent", "europe"));
+        assertEquals(Collections.emptyList(), query(fulltext, "label", "x"));
+    }
+
+    @Test
+    public void testQueryEntries() {
+        connector.searchHelper.setIndexedFields(Arrays.asList("parent"));
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        filter.put("parent", "europe");
+        filter.put("obsolete", Long.valueOf(0));
+        Iterator<Entry<String, Map<String, Object>>> entries = connector.searchHelper.queryEntries(filter, null);
+        List<String> labels = new ArrayList<String>();
+        while (entries.hasNext()) {
+            Entry<String, Map<String, Object>> entry = entries.next();
+            assertEquals(entry.getKey(), entry.getValue().get("id"));
+            labels.add((String) entry.getValue().get("label"));
+        }
+        assertEquals(Arrays.asList("France", "Germany"), labels);
+
+        filter.put("parent", "america");
+        assertFalse(connector.searchHelper.queryEntries(filter, null).hasNext());
+    }
+
+    @Test
+    public void testAdaptiveIndexes() {
+        connector.searchHelper.setAdaptiveIndexThreshold(2);
+        checkQueries();
+        checkQueries();
+
+        // indexes are rebuilt once invalidated
+        connector.add("6", "europe", Long.valueOf(0), "Italy");
+        connector.searchHelper.invalidate();
+        assertEquals(Arrays.asList("1", "5", "6"), query("parent", "europe", "obsolete", Long.valueOf(0)));
+    }
+
+    @Test
+    public void testConcurrentFirstQueriesBuildIndexesOnce() throws Exception {
+        connector.searchHelper.setIndexedFields(Arrays.asList("parent"));
+        connector.afterListing = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<List<String>> results = Collections.synchronizedList(new ArrayList<List<String>>());
+        for (int i = 0; i < 4; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results.add(query("parent", "europe"));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, connector.listings.get());
+        assertEquals(4, results.size());
+        for (List<String> result : results) {
+            assertEquals(Arrays.asList("1", "2", "5"), result);
+        }
+    }
+
+    @Test
+    public void testIndexesBuiltBeforeInvalidationAreNotKept() {
+        connector.searchHelper.setIndexedFields(Arrays.asList("parent"));
+        // the entries change while the indexes are built from the previous ones
+        connector.afterListing = new Runnable() {
+            @Override
+            public void run() {
+                connector.afterListing = null;
+                connector.add("6", "europe", Long.valueOf(0), "Italy");
+                connector.searchHelper.invalidate();
+            }
+        };
+        assertEquals(Arrays.asList("1", "2", "5"), query("parent", "europe"));
+        assertEquals(Arrays.asList("1", "2", "5", "6"), query("parent", "europe"));
+        assertEquals(2, connector.listings.get());
+    }
+
+}
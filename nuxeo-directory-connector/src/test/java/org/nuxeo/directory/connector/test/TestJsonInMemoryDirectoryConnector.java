@@ -0,0 +1,430 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thierry Delprat
+ */
+package org.nuxeo.directory.connector.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.directory.connector.ConnectorBasedDirectoryDescriptor;
+import org.nuxeo.directory.connector.EntryConnector;
+import org.nuxeo.directory.connector.json.JsonInMemoryDirectoryConnector;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandler;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+public class TestJsonInMemoryDirectoryConnector {
+
+    /**
+     * Serves queued datasets instead of calling the remote service: a list of entries, an exception to throw, or
+     * {@code null} when the dataset did not change.
+     */
+    protected static class StubConnector extends JsonInMemoryDirectoryConnector {
+
+        protected final Queue<Object> responses = new ConcurrentLinkedQueue<Object>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected ArrayList<HashMap<String, Object>> getJsonStream() {
+            Object response = responses.poll();
+            if (response instanceof RuntimeException) {
+                throw (RuntimeException) response;
+            }
+            return (ArrayList<HashMap<String, Object>>) response;
+        }
+
+        protected EntryConnector getSnapshot() {
+            return snapshot;
+        }
+
+        protected Client getCurrentClient() {
+            return client;
+        }
+
+        protected Client getOrCreateClient() {
+            return getClient();
+        }
+    }
+
+    /**
+     * Answers the HTTP calls with queued responses, recording the {@code If-None-Match} header sent.
+     */
+    protected static class HttpStubConnector extends JsonInMemoryDirectoryConnector {
+
+        protected final Queue<ClientResponse> responses = new ConcurrentLinkedQueue<ClientResponse>();
+
+        protected final List<Object> sentEtags = Collections.synchronizedList(new ArrayList<Object>());
+
+        protected boolean failBuild;
+
+        @Override
+        protected synchronized Client getClient() {
+            return new Client(new ClientHandler() {
+                @Override
+                public ClientResponse handle(ClientRequest request) {
+                    sentEtags.add(request.getHeaders().getFirst("If-None-Match"));
+                    return responses.poll();
+                }
+            });
+        }
+
+        @Override
+        protected Snapshot buildSnapshot(List<HashMap<String, Object>> entries, Snapshot previous) {
+            if (failBuild) {
+                throw new NuxeoException("Unable to index entries");
+            }
+            return super.buildSnapshot(entries, previous);
+        }
+
+        protected EntryConnector getSnapshot() {
+            return snapshot;
+        }
+    }
+
+    /**
+     * Exposes the streaming of the entries out of a response.
+     */
+    protected static class ResultsStubConnector extends JsonInMemoryDirectoryConnector {
+
+        protected String resultsFieldName = "results";
+
+        @Override
+        protected String getResultsFieldName() {
+            return resultsFieldName;
+        }
+
+        protected ArrayList<HashMap<String, Object>> read(String body) throws IOException {
+            return readResults(stream(body));
+        }
+    }
+
+    protected ConnectorBasedDirectoryDescriptor descriptor;
+
+    protected StubConnector connector;
+
+    @Before
+    public void setUp() {
+        descriptor = new ConnectorBasedDirectoryDescriptor();
+        descriptor.name = "stub";
+        descriptor.idField = "id";
+        descriptor.getParameters().put("url", "http://localhost/entries");
+        descriptor.getParameters().put("snapshot", "false");
+        connector = new StubConnector();
+    }
+
+    @After
+    public void tearDown() {
+        connector.shutdown();
+    }
+
+    protected static ArrayList<HashMap<String, Object>> entries(String... ids) {
+        ArrayList<HashMap<String, Object>> entries = new ArrayList<HashMap<String, Object>>();
+        for (String id : ids) {
+            HashMap<String, Object> entry = new HashMap<String, Object>();
+            entry.put("id", id);
+            entry.put("label", "label" + id);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    protected static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static ClientResponse response(int status, String etag, String body) {
+        InBoundHeaders headers = new InBoundHeaders();
+        if (etag != null) {
+            headers.add("ETag", etag);
+        }
+        return new ClientResponse(status, headers, stream(body), null);
+    }
+
+    protected void waitForEntry(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!connector.hasEntry(id) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(connector.hasEntry(id));
+    }
+
+    @Test
+    public void testRefreshSwapsSnapshot() {
+        connector.responses.add(entries("1", "2"));
+        connector.init(descriptor);
+        assertEquals(Arrays.asList("1", "2"), connector.getEntryIds());
+
+        EntryConnector previous = connector.getSnapshot();
+        connector.responses.add(entries("2", "3"));
+        connector.refresh();
+        assertEquals(Arrays.asList("2", "3"), connector.getEntryIds());
+        assertFalse(connector.hasEntry("1"));
+        assertEquals("label3", connector.getEntryMap("3").get("label"));
+
+        // readers holding the previous snapshot still see the previous dataset as a whole
+        assertEquals(Arrays.asList("1", "2"), previous.getEntryIds());
+        assertNotNull(previous.getEntryMap("1"));
+        assertNull(previous.getEntryMap("3"));
+    }
+
+    @Test
+    public void testFailedRefreshKeepsSnapshot() {
+        connector.responses.add(entries("1", "2"));
+        connector.init(descriptor);
+        EntryConnector loaded = connector.getSnapshot();
+
+        connector.responses.add(new NuxeoException("Failed to call remote service: HTTP error code: 500"));
+        try {
+            connector.refresh();
+            fail("Should fail to refresh");
+        } catch (NuxeoException e) {
+            // expected
+        }
+        assertSame(loaded, connector.getSnapshot());
+        assertEquals(Arrays.asList("1", "2"), connector.getEntryIds());
+
+        // not modified
+        connector.refresh();
+        assertSame(loaded, connector.getSnapshot());
+    }
+
+    @Test
+    public void testBackgroundRefreshOutlivesSessions() throws Exception {
+        descriptor.getParameters().put("refreshInterval", "10");
+        connector.responses.add(entries("1"));
+        connector.init(descriptor);
+        Client client = connector.getOrCreateClient();
+
+        connector.responses.add(entries("1", "2"));
+        waitForEntry("2");
+
+        // each session closes the shared connector, the refresh goes on with the same client
+        connector.close();
+        assertSame(client, connector.getCurrentClient());
+        connector.responses.add(new NuxeoException("Failed to call remote service: HTTP error code: 503"));
+        connector.responses.add(entries("3"));
+        waitForEntry("3");
+        assertEquals(Arrays.asList("3"), connector.getEntryIds());
+
+        connector.shutdown();
+        assertNull(connector.getCurrentClient());
+    }
+
+    @Test
+    public void testNotModifiedKeepsSnapshot() {
+        HttpStubConnector http = new HttpStubConnector();
+        try {
+            http.responses.add(response(200, "\"v1\"", "{\"results\": [{\"id\": \"1\"}]}"));
+            http.init(descriptor);
+            EntryConnector loaded = http.getSnapshot();
+            assertEquals(Arrays.asList("1"), http.getEntryIds());
+
+            http.responses.add(response(304, null, ""));
+            http.refresh();
+            assertSame(loaded, http.getSnapshot());
+
+            http.responses.add(response(200, "\"v2\"", "{\"results\": [{\"id\": \"2\"}]}"));
+            http.refresh();
+            assertEquals(Arrays.asList("2"), http.getEntryIds());
+
+            // the validators of the last response read are sent back
+            assertEquals(Arrays.asList(null, "\"v1\"", "\"v1\""), http.sentEtags);
+        } finally {
+            http.shutdown();
+        }
+    }
+
+    @Test
+    public void testValidatorsForgottenWhenBuildFails() {
+        HttpStubConnector http = new HttpStubConnector();
+        try {
+            http.responses.add(response(200, "\"v1\"", "{\"results\": [{\"id\": \"1\"}]}"));
+            http.init(descriptor);
+            EntryConnector loaded = http.getSnapshot();
+
+            http.failBuild = true;
+            http.responses.add(response(200, "\"v2\"", "{\"results\": [{\"id\": \"2\"}]}"));
+            try {
+                http.refresh();
+                fail("Should fail to build the snapshot");
+            } catch (NuxeoException e) {
+                // expected
+            }
+            assertSame(loaded, http.getSnapshot());
+
+            // the entries are read again, not answered as not modified
+            http.failBuild = false;
+            http.responses.add(response(200, "\"v2\"", "{\"results\": [{\"id\": \"2\"}]}"));
+            http.refresh();
+            assertEquals(Arrays.asList("2"), http.getEntryIds());
+            assertEquals(Arrays.asList(null, "\"v1\"", null), http.sentEtags);
+        } finally {
+            http.shutdown();
+        }
+    }
+
+    @Test
+    public void testSnapshotFileServedOnStartup() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        File file = new File(dir, "stub.snapshot");
+        descriptor.getParameters().remove("snapshot");
+        descriptor.getParameters().put("snapshotFile", file.getPath());
+        HttpStubConnector http = new HttpStubConnector();
+        try {
+            http.responses.add(response(200, "\"v1\"", "{\"results\": [{\"id\": \"1\"}, {\"id\": \"2\"}]}"));
+            http.init(descriptor);
+            assertTrue(file.exists());
+        } finally {
+            http.shutdown();
+        }
+
+        // the remote service fails, the entries of the snapshot are served
+        http = new HttpStubConnector();
+        try {
+            http.responses.add(response(500, null, ""));
+            http.init(descriptor);
+            assertEquals(Arrays.asList("1", "2"), http.getEntryIds());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (http.sentEtags.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // revalidated with the validators of the snapshot
+            assertEquals(Arrays.asList("\"v1\""), http.sentEtags);
+            assertEquals(Arrays.asList("1", "2"), http.getEntryIds());
+
+            EntryConnector loaded = http.getSnapshot();
+            http.responses.add(response(304, null, ""));
+            http.refresh();
+            assertSame(loaded, http.getSnapshot());
+
+            http.responses.add(response(200, "\"v2\"", "{\"results\": [{\"id\": \"3\"}]}"));
+            http.refresh();
+            assertEquals(Arrays.asList("3"), http.getEntryIds());
+        } finally {
+            http.shutdown();
+        }
+
+        // a snapshot saved from another URL is not served
+        descriptor.getParameters().put("url", "http://localhost/other");
+        http = new HttpStubConnector();
+        try {
+            http.responses.add(response(200, "\"w1\"", "{\"results\": [{\"id\": \"4\"}]}"));
+            http.init(descriptor);
+            assertEquals(Arrays.asList("4"), http.getEntryIds());
+            assertEquals(Collections.singletonList(null), http.sentEtags);
+        } finally {
+            http.shutdown();
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testNoSnapshotWithoutDataDirectory() {
+        descriptor.name = "stub" + System.nanoTime();
+        descriptor.getParameters().remove("snapshot");
+        connector.responses.add(entries("1"));
+        connector.init(descriptor);
+        assertEquals(Arrays.asList("1"), connector.getEntryIds());
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"), "directory-connector");
+        assertFalse(new File(tmpDir, descriptor.name + ".snapshot").exists());
+    }
+
+    @Test
+    public void testReadResultsSkipsOtherFields() throws Exception {
+        ResultsStubConnector reader = new ResultsStubConnector();
+        ArrayList<HashMap<String, Object>> entries = reader.read("{\"count\": 2, \"meta\": {\"results\": [1]}, "
+                + "\"results\": [{\"id\": \"1\", \"tags\": [\"a\", \"b\"]}, {\"id\": \"2\"}], "
+                + "\"links\": [{\"next\": null}]}");
+        assertEquals(2, entries.size());
+        assertEquals("1", entries.get(0).get("id"));
+        assertEquals(Arrays.asList("a", "b"), entries.get(0).get("tags"));
+        assertEquals("2", entries.get(1).get("id"));
+
+        reader.resultsFieldName = "items";
+        entries = reader.read("{\"results\": [{\"id\": \"1\"}], \"items\": [{\"id\": \"3\"}]}");
+        assertEquals(1, entries.size());
+        assertEquals("3", entries.get(0).get("id"));
+    }
+
+    @Test
+    public void testReadResultsSkipsNonObjectEntries() throws Exception {
+        ResultsStubConnector reader = new ResultsStubConnector();
+        ArrayList<HashMap<String, Object>> entries = reader.read(
+                "{\"results\": [1, {\"id\": \"1\"}, \"x\", [{\"id\": \"nested\"}], null, {\"id\": \"2\"}]}");
+        assertEquals(2, entries.size());
+        assertEquals("1", entries.get(0).get("id"));
+        assertEquals("2", entries.get(1).get("id"));
+    }
+
+    @Test
+    public void testReadResultsInvalidResponses() throws Exception {
+        ResultsStubConnector reader = new ResultsStubConnector();
+        try {
+            reader.read("{\"count\": 0, \"items\": []}");
+            fail("Should fail without results field");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage().contains("No field 'results'"));
+        }
+        try {
+            reader.read("{\"results\": {\"id\": \"1\"}}");
+            fail("Should fail without results array");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage().contains("Expected an array"));
+        }
+        try {
+            reader.read("[{\"id\": \"1\"}]");
+            fail("Should fail without response object");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage().contains("Expected a JSON object"));
+        }
+        try {
+            reader.read("{\"results\": [{\"id\": \"1\"}, {\"id\": \"2\"}");
+            fail("Should fail on a truncated response");
+        } catch (IOException | NuxeoException e) {
+            // the parser may report the end of input itself
+        }
+    }
+
+}
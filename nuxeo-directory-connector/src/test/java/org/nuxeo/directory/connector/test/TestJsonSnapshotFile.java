@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thierry Delprat
+ */
+package org.nuxeo.directory.connector.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.directory.connector.json.JsonSnapshotFile;
+
+public class TestJsonSnapshotFile {
+
+    protected File file;
+
+    protected JsonSnapshotFile snapshotFile;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("connector-", ".snapshot");
+        file.delete();
+        file.deleteOnExit();
+        snapshotFile = new JsonSnapshotFile(file);
+    }
+
+    protected static List<Map<String, Object>> entries() {
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("id", "mars");
+        entry.put("label", "Mars \u00e9t\u00e9");
+        entry.put("count", Integer.valueOf(42));
+        entry.put("size", Long.valueOf(1L << 40));
+        entry.put("ratio", Double.valueOf(0.5));
+        entry.put("visible", Boolean.TRUE);
+        entry.put("parent", null);
+        entry.put("tags", Arrays.asList("planet", Integer.valueOf(4)));
+        entry.put("position", Collections.singletonMap("x", Double.valueOf(1.5)));
+        List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+        entries.add(entry);
+        entries.add(Collections.<String, Object> singletonMap("id", "venus"));
+        return entries;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        assertNull(snapshotFile.read());
+
+        List<Map<String, Object>> entries = entries();
+        snapshotFile.write("http://example.com/api", null, entries);
+        JsonSnapshotFile.Content content = snapshotFile.read();
+        assertEquals("http://example.com/api", content.url);
+        assertNull(content.validators);
+        assertEquals(entries, content.entries);
+
+        // replaced as a whole
+        snapshotFile.write("http://example.com/api", null, entries.subList(1, 2));
+        assertEquals(entries.subList(1, 2), snapshotFile.read().entries);
+    }
+
+    @Test
+    public void testCorruptedFile() throws IOException {
+        snapshotFile.write("http://example.com/api", null, entries());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+        try {
+            snapshotFile.read();
+            fail("Corrupted snapshot should not be read");
+        } catch (IOException e) {
+            assertEquals("Corrupted snapshot " + file.toPath(), e.getMessage());
+        }
+    }
+
+}
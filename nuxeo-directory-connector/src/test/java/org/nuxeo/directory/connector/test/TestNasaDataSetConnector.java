@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thierry Delprat
+ */
+package org.nuxeo.directory.connector.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.directory.connector.json.nasa.NasaDataSetConnector;
+
+public class TestNasaDataSetConnector {
+
+    /**
+     * Serves the data sets without calling the API, the first ids being the slowest to answer.
+     */
+    protected static class StubDataSetConnector extends NasaDataSetConnector {
+
+        protected StubDataSetConnector() {
+            params = new HashMap<String, String>();
+            params.put("maxConcurrentRequests", "3");
+        }
+
+        @Override
+        public Map<String, Object> getEntryMap(String id) {
+            if ("missing".equals(id)) {
+                return null;
+            }
+            try {
+                Thread.sleep(50 / Integer.parseInt(id));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("id", id);
+            return map;
+        }
+
+        protected ExecutorService getCurrentExecutor() {
+            return executor;
+        }
+    }
+
+    protected StubDataSetConnector connector;
+
+    @Before
+    public void setUp() {
+        connector = new StubDataSetConnector();
+    }
+
+    @Test
+    public void testGetEntryMapsKeepsOrderAndSkipsMissingIds() {
+        Map<String, Map<String, Object>> maps = connector.getEntryMaps(Arrays.asList("1", "missing", "5", "2", "10"));
+        assertEquals(Arrays.asList("1", "5", "2", "10"), new ArrayList<String>(maps.keySet()));
+        assertEquals("5", maps.get("5").get("id"));
+
+        assertTrue(connector.getEntryMaps(Collections.singletonList("missing")).isEmpty());
+        assertEquals(Collections.singleton("3"), connector.getEntryMaps(Collections.singletonList("3")).keySet());
+    }
+
+    @Test
+    public void testFetchingThreadsOutliveSessions() {
+        connector.getEntryMaps(Arrays.asList("1", "2"));
+        ExecutorService executor = connector.getCurrentExecutor();
+
+        // each session closes the shared connector
+        connector.close();
+        assertEquals(executor, connector.getCurrentExecutor());
+        assertEquals(2, connector.getEntryMaps(Arrays.asList("1", "2")).size());
+        assertEquals(executor, connector.getCurrentExecutor());
+
+        connector.shutdown();
+        assertTrue(executor.isShutdown());
+        assertNull(connector.getCurrentExecutor());
+    }
+
+}
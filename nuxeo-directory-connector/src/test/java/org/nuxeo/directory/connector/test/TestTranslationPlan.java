@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thierry Delprat
+ */
+package org.nuxeo.directory.connector.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.directory.connector.TranslationPlan;
+import org.nuxeo.ecm.core.schema.Namespace;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.core.schema.types.SchemaImpl;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.ecm.core.schema.types.constraints.Constraint;
+import org.nuxeo.ecm.core.schema.types.primitives.LongType;
+import org.nuxeo.ecm.core.schema.types.primitives.StringType;
+
+public class TestTranslationPlan {
+
+    protected Schema schema;
+
+    protected Map<String, String> mapping;
+
+    @Before
+    public void setUp() {
+        SchemaImpl schemaImpl = new SchemaImpl("connector", Namespace.DEFAULT_NS);
+        addField(schemaImpl, "username", StringType.INSTANCE);
+        addField(schemaImpl, "label", StringType.INSTANCE);
+        addField(schemaImpl, "missing", StringType.INSTANCE);
+        addField(schemaImpl, "count", LongType.INSTANCE);
+        addField(schemaImpl, "description", StringType.INSTANCE);
+        addField(schemaImpl, "size", LongType.INSTANCE);
+        schema = schemaImpl;
+
+        mapping = new HashMap<String, String>();
+        mapping.put("username", "login");
+        mapping.put("label", "number");
+        mapping.put("missing", "absent");
+        mapping.put("count", "total");
+    }
+
+    protected static void addField(SchemaImpl schema, String name, Type type) {
+        schema.addField(name, type, null, 0, Collections.<Constraint> emptyList());
+    }
+
+    /**
+     * The translation done for each entry before the plan was compiled.
+     */
+    protected Map<String, Object> translateByField(Map<String, Object> map) {
+        Map<String, Object> newMap = new HashMap<>();
+        for (Field field : schema.getFields()) {
+            String fieldId = field.getName().getLocalName();
+            if (mapping.containsKey(fieldId)) {
+                newMap.put(fieldId, field.getType().encode(map.get(mapping.get(fieldId))));
+            } else {
+                newMap.put(fieldId, map.get(fieldId));
+            }
+        }
+        return newMap;
+    }
+
+    @Test
+    public void testSameAsEncodingEachField() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("login", "toto");
+        // not a string, mapped to a string field
+        map.put("number", Long.valueOf(12));
+        map.put("total", Long.valueOf(42));
+        // unmapped fields are copied as is, whatever their type
+        map.put("description", Long.valueOf(7));
+        map.put("size", "big");
+        map.put("ignored", "value");
+
+        TranslationPlan plan = new TranslationPlan(schema, mapping);
+        Map<String, Object> translated = plan.translate(map);
+        assertEquals(translateByField(map), translated);
+        assertEquals(6, translated.size());
+        assertEquals("toto", translated.get("username"));
+        assertEquals(StringType.INSTANCE.encode(Long.valueOf(12)), translated.get("label"));
+        assertEquals(StringType.INSTANCE.encode(null), translated.get("missing"));
+        assertSame(map.get("description"), translated.get("description"));
+        assertSame(map.get("size"), translated.get("size"));
+    }
+
+    @Test
+    public void testNullValues() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("login", null);
+
+        Map<String, Object> translated = new TranslationPlan(schema, mapping).translate(map);
+        assertEquals(translateByField(map), translated);
+        assertTrue(translated.containsKey("description"));
+        assertEquals(null, translated.get("description"));
+    }
+
+}
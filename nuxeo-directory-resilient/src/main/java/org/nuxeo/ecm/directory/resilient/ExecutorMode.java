@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * The kind of threads running the background calls of a resilient directory, see {@link ResilientExecutors}.
+ *
+ * @since 8.2
+ */
+public enum ExecutorMode {
+
+    /**
+     * A bounded pool of platform threads.
+     */
+    PLATFORM("platform"),
+
+    /**
+     * One virtual thread per call, the number of in-flight calls being bounded. Falls back to {@link #PLATFORM} if the
+     * JVM does not support virtual threads.
+     */
+    VIRTUAL("virtual"),
+
+    /**
+     * {@link #VIRTUAL} if the JVM supports virtual threads, {@link #PLATFORM} otherwise.
+     */
+    AUTO("auto");
+
+    private final String value;
+
+    private ExecutorMode(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static ExecutorMode fromValue(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return AUTO;
+        }
+        for (ExecutorMode mode : values()) {
+            if (mode.value.equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        throw new DirectoryException(String.format("Unknown executor mode '%s'", value));
+    }
+
+}
@@ -21,17 +21,36 @@
 
 package org.nuxeo.ecm.directory.resilient;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.core.schema.types.Schema;
 import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.PasswordHelper;
 import org.nuxeo.ecm.directory.Reference;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
@@ -44,6 +63,37 @@ import org.nuxeo.runtime.api.Framework;
  */
 public class ResilientDirectory extends AbstractDirectory {
 
+    private static final Log log = LogFactory.getLog(ResilientDirectory.class);
+
+    /**
+     * Default number of platform threads running the background tasks of a resilient directory.
+     *
+     * @since 8.2
+     */
+    public static final int ASYNC_POOL_SIZE = 4;
+
+    /**
+     * Default maximum number of pending background tasks, further tasks are rejected.
+     *
+     * @since 8.2
+     */
+    public static final int ASYNC_QUEUE_SIZE = 1000;
+
+    /**
+     * Number of locks serializing the synchronization of entries on slaves.
+     *
+     * @since 8.2
+     */
+    public static final int SYNC_LOCK_STRIPES = 64;
+
+    /**
+     * Maximum number of entries written since the last {@link #invalidateDirectoryCache()}, above which it flushes the
+     * whole caches.
+     *
+     * @since 8.2
+     */
+    public static final int MAX_WRITTEN_ENTRIES = 10000;
+
     private String schemaName;
 
     private String idField;
@@ -52,8 +102,65 @@ public class ResilientDirectory extends AbstractDirectory {
 
     private Map<String, Field> schemaFieldMap;
 
+    private final SlaveSelectionPolicy slaveSelectionPolicy;
+
+    private final AtomicInteger slaveCounter = new AtomicInteger();
+
+    private final ConcurrentMap<String, SubDirectoryHealth> subDirectoryHealths = new ConcurrentHashMap<String, SubDirectoryHealth>();
+
+    private ScheduledExecutorService healthCheckExecutor;
+
+    private final SyncCoordinator syncCoordinator;
+
+    private ExecutorService asyncExecutor;
+
+    private volatile ResilientEntryCache entryCache;
+
+    private final Lock[] syncLocks = new Lock[SYNC_LOCK_STRIPES];
+
+    private final ConcurrentMap<String, Boolean> readSyncsInProgress = new ConcurrentHashMap<String, Boolean>();
+
+    private final ConcurrentMap<String, SlaveSyncs> slaveSyncsInProgress = new ConcurrentHashMap<String, SlaveSyncs>();
+
+    private final Map<SyncPolicy.Operation, SyncPolicy> syncPolicies;
+
+    private volatile boolean initialized;
+
+    private final int slaveCount;
+
+    private final Set<String> writableSlaves = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ConcurrentMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<String, PendingWrite>();
+
+    private volatile long nextPendingWritesPurge;
+
+    private final Set<String> writtenEntries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile boolean writtenEntriesOverflow;
+
+    private final ConcurrentMap<String, Boolean> idFilterSupport = new ConcurrentHashMap<String, Boolean>();
+
     public ResilientDirectory(ResilientDirectoryDescriptor descriptor) {
         super(descriptor);
+        slaveSelectionPolicy = descriptor.getSlaveSelectionPolicy();
+        if (descriptor.getLeaseDirectory() != null) {
+            syncCoordinator = new SyncCoordinator(descriptor.getLeaseDirectory(), descriptor.name,
+                    SyncCoordinator.DEFAULT_LEASE_STRIPES, descriptor.getLeaseDuration(),
+                    SyncCoordinator.getDefaultNodeId());
+        } else {
+            syncCoordinator = null;
+        }
+        for (int i = 0; i < syncLocks.length; i++) {
+            syncLocks[i] = new ReentrantLock();
+        }
+        syncPolicies = descriptor.getSyncPolicies();
+        int slaves = 0;
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            if (!sub.isMaster()) {
+                slaves++;
+            }
+        }
+        slaveCount = slaves;
     }
 
     @Override
@@ -92,12 +199,6 @@ public class ResilientDirectory extends AbstractDirectory {
                             String.format(
                                     "ResilientDirectory '%s' reference a slave directory '%s' that has not the same idField/passwordField than the master !",
                                     descriptor.name, subDir.getName()));
-                }
-
-                else if (subDir.getSession().isReadOnly()) {
-                    throw new DirectoryException(String.format(
-                            "ResilientDirectory '%s' reference a slave directory '%s' that is in read-only mode !",
-                            descriptor.name, subDir.getName()));
                 } else if (subDir instanceof SQLDirectory) {
                     if (((SQLDirectory) subDir).getDescriptor().autoincrementIdField) {
                         throw new DirectoryException(
@@ -115,7 +216,16 @@ public class ResilientDirectory extends AbstractDirectory {
         return slaveFound;
     }
 
-    protected void initSubDirectories() {
+    /**
+     * Validates the configuration of the sub-directories and initializes the resilient directory from the master.
+     * <p>
+     * No session is opened on the sub-directories, the slaves being writable is checked by
+     * {@link #checkSlavesWritable()}.
+     */
+    protected synchronized void initSubDirectories() {
+        if (initialized) {
+            return;
+        }
 
         String masterSchemaName = null;
         // Find the master subdirectory and init resilient directory from the
@@ -169,7 +279,340 @@ public class ResilientDirectory extends AbstractDirectory {
 
             }
         }
+        if (descriptor.getEntryCacheMaxSize() > 0 && entryCache == null) {
+            entryCache = new ResilientEntryCache(schemaName, descriptor.getEntryCacheMaxSize(),
+                    descriptor.getEntryCacheFreshTtl(), descriptor.getEntryCacheStaleTtl(),
+                    descriptor.getEntryCacheEviction());
+        }
+        startHealthCheck();
+        initialized = true;
+
+    }
+
+    /**
+     * Checks that the slaves not checked yet are not read-only, which requires opening a session on them.
+     * <p>
+     * An unavailable slave is not checked, and checked again by a later call once available, so that a slave down at
+     * startup does not prevent using the directory.
+     *
+     * @throws DirectoryException if a slave is read-only
+     * @since 8.2
+     */
+    protected void checkSlavesWritable() throws DirectoryException {
+        DirectoryService directoryService = Framework.getService(DirectoryService.class);
+        for (SubDirectoryDescriptor sub : getDescriptor().subDirectories) {
+            if (sub.isMaster() || writableSlaves.contains(sub.name)) {
+                continue;
+            }
+            SubDirectoryHealth health = getSubDirectoryHealth(sub.name);
+            if (!health.isAvailable()) {
+                continue;
+            }
+            boolean readOnly;
+            long start = System.nanoTime();
+            try (Session session = directoryService.open(sub.name)) {
+                readOnly = session.isReadOnly();
+                health.recordSuccess(System.nanoTime() - start);
+            } catch (DirectoryException e) {
+                health.recordFailure(System.nanoTime() - start);
+                log.warn(String.format("ResilientDirectory '%s' : unable to check slave directory '%s', will check it"
+                        + " again when available", descriptor.name, sub.name), e);
+                continue;
+            }
+            if (readOnly) {
+                throw new DirectoryException(String.format(
+                        "ResilientDirectory '%s' reference a slave directory '%s' that is in read-only mode !",
+                        descriptor.name, sub.name));
+            }
+            writableSlaves.add(sub.name);
+        }
+    }
+
+    /**
+     * Initializes the directory ahead of the first request: validates the sub-directories, checks the slaves and
+     * opens a session on each sub-directory to establish its connections. An unavailable sub-directory is flagged as
+     * such in its health statistics, so that the first requests skip it.
+     *
+     * @since 8.2
+     */
+    public void warmUp() {
+        initSubDirectories();
+        String canaryId = getDescriptor().getHealthCheckCanaryId();
+        for (SubDirectoryDescriptor sub : getDescriptor().subDirectories) {
+            new SubDirectoryProbe(getSubDirectoryHealth(sub.name), canaryId).run();
+        }
+        checkSlavesWritable();
+    }
+
+    /**
+     * Warms up the directory on its background executor, see {@link #warmUp()}. Failures are logged, the first
+     * session of the directory reporting them.
+     *
+     * @return {@code false} if the warm-up was rejected because too many tasks are pending
+     * @since 8.2
+     */
+    public boolean warmUpAsync() {
+        return runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmUp();
+                } catch (RuntimeException e) {
+                    log.error(String.format("Unable to warm up the resilient directory '%s'", descriptor.name), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the resilient entry cache, or {@code null} if not configured.
+     *
+     * @since 8.2
+     */
+    public ResilientEntryCache getEntryCache() {
+        return entryCache;
+    }
+
+    /**
+     * Runs a task in the background.
+     *
+     * @return {@code false} if the task was rejected because too many tasks are pending
+     * @since 8.2
+     */
+    public boolean runAsync(Runnable task) {
+        try {
+            getAsyncExecutor().execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.warn(String.format("Resilient directory '%s' : too many pending background tasks, task rejected",
+                    descriptor.name));
+            return false;
+        }
+    }
+
+    protected synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            ResilientDirectoryDescriptor descriptor = getDescriptor();
+            asyncExecutor = ResilientExecutors.newExecutor("Nuxeo-ResilientDirectory-Async-" + descriptor.name,
+                    descriptor.getExecutorMode(), descriptor.getExecutorPoolSize(), descriptor.getExecutorQueueSize());
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Returns the synchronization policy of the slaves for the given type of operation.
+     *
+     * @since 8.2
+     */
+    public SyncPolicy getSyncPolicy(SyncPolicy.Operation operation) {
+        return syncPolicies.get(operation);
+    }
+
+    /**
+     * Synchronizes entries on the slaves in the background.
+     * <p>
+     * Written entries are tracked as pending until every slave has acknowledged a synchronization run after the write,
+     * or for {@link ResilientDirectoryDescriptor#getPendingWriteTtl()} milliseconds, see
+     * {@link #getPendingWrite(String)}.
+     *
+     * @param entryIds the entries to synchronize, associated to the presence of the entry in the master
+     * @param properties properties not returned by the master to force on the slaves (ex: password), or
+     *            {@code null}
+     * @since 8.2
+     */
+    protected void synchronizeAsync(final Map<String, Boolean> entryIds, Map<String, Object> properties,
+            final boolean write) {
+        // the caller may reuse its map
+        final Map<String, Object> fieldMap = properties == null ? null : new HashMap<String, Object>(properties);
+        // Writes are visible to reads falling back on slaves until they
+        // have been propagated
+        if (write) {
+            long now = System.currentTimeMillis();
+            purgePendingWrites(now);
+            Map<String, Object> pendingProperties = hashPassword(fieldMap);
+            for (Map.Entry<String, Boolean> entryId : entryIds.entrySet()) {
+                pendingWrites.put(entryId.getKey(), new PendingWrite(
+                        entryId.getValue().booleanValue() ? pendingProperties : null, now));
+            }
+        }
+        runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try (ResilientDirectorySession session = (ResilientDirectorySession) getSession()) {
+                    for (Map.Entry<String, Boolean> entryId : entryIds.entrySet()) {
+                        session.updateMasterOnSlaves(entryId.getKey(), fieldMap, entryId.getValue().booleanValue(),
+                                write);
+                    }
+                } catch (DirectoryException e) {
+                    log.warn(String.format("Unable to synchronize the slaves of directory '%s' on entries %s",
+                            descriptor.name, entryIds.keySet()), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies written properties with the password hashed, as sub-directories store it, so that a pending write does not
+     * keep the clear password in memory.
+     */
+    private Map<String, Object> hashPassword(Map<String, Object> fieldMap) {
+        if (fieldMap == null || passwordField == null) {
+            return fieldMap;
+        }
+        Map<String, Object> properties = new HashMap<String, Object>(fieldMap);
+        Field field = getSchemaFieldMap().get(passwordField);
+        String prefixedPasswordField = field == null ? passwordField : field.getName().getPrefixedName();
+        for (String key : new HashSet<String>(Arrays.asList(passwordField, prefixedPasswordField))) {
+            Object password = properties.get(key);
+            if (password instanceof String && !PasswordHelper.isHashed((String) password)) {
+                properties.put(key, PasswordHelper.hashPassword((String) password, PasswordHelper.SSHA));
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * A write done on the master whose propagation to the slaves is pending.
+     *
+     * @since 8.2
+     */
+    protected static class PendingWrite {
+
+        /** The written properties, {@code null} for a deletion. */
+        protected final Map<String, Object> properties;
+
+        protected final long writeTime;
+
+        protected PendingWrite(Map<String, Object> properties, long writeTime) {
+            this.properties = properties;
+            this.writeTime = writeTime;
+        }
+
+        public boolean isDeleted() {
+            return properties == null;
+        }
+    }
+
+    /**
+     * Returns the pending write of an entry, done on this node and not yet acknowledged by every slave, or
+     * {@code null} if none or if it is older than {@link ResilientDirectoryDescriptor#getPendingWriteTtl()}.
+     *
+     * @since 8.2
+     */
+    protected PendingWrite getPendingWrite(String id) {
+        PendingWrite pendingWrite = pendingWrites.get(id);
+        if (pendingWrite != null && isExpired(pendingWrite, System.currentTimeMillis())) {
+            pendingWrites.remove(id, pendingWrite);
+            return null;
+        }
+        return pendingWrite;
+    }
+
+    /**
+     * Clears the pending write of an entry, once a synchronization started after it has been acknowledged by every
+     * slave. A later write of the same entry stays pending.
+     *
+     * @param pendingWrite the pending write when the synchronization started, can be {@code null}
+     * @since 8.2
+     */
+    protected void clearPendingWrite(String id, PendingWrite pendingWrite) {
+        if (pendingWrite != null) {
+            pendingWrites.remove(id, pendingWrite);
+        }
+    }
+
+    private boolean isExpired(PendingWrite pendingWrite, long now) {
+        return now - pendingWrite.writeTime >= getDescriptor().getPendingWriteTtl();
+    }
+
+    /**
+     * Drops the expired pending writes, at most once per TTL, so that the writes never read again don't pile up.
+     */
+    private void purgePendingWrites(long now) {
+        if (now < nextPendingWritesPurge) {
+            return;
+        }
+        nextPendingWritesPurge = now + getDescriptor().getPendingWriteTtl();
+        for (Map.Entry<String, PendingWrite> entry : pendingWrites.entrySet()) {
+            if (isExpired(entry.getValue(), now)) {
+                pendingWrites.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reloads a stale cached entry in the background.
+     *
+     * @since 8.2
+     */
+    protected void refreshCachedEntry(final String id) {
+        boolean submitted = runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try (ResilientDirectorySession session = (ResilientDirectorySession) getSession()) {
+                    session.loadEntry(id, true);
+                } catch (DirectoryException e) {
+                    log.debug(String.format("Unable to refresh the cached entry '%s'", id), e);
+                    entryCache.refreshFailed(id);
+                }
+            }
+        });
+        if (!submitted) {
+            entryCache.refreshFailed(id);
+        }
+    }
 
+    /**
+     * Schedules the periodic health check of each sub-directory, if configured.
+     *
+     * @since 8.2
+     */
+    protected synchronized void startHealthCheck() {
+        final ResilientDirectoryDescriptor descriptor = getDescriptor();
+        long interval = descriptor.getHealthCheckInterval();
+        if (interval <= 0 || healthCheckExecutor != null) {
+            return;
+        }
+        healthCheckExecutor = Executors.newScheduledThreadPool(descriptor.subDirectories.length,
+                new ResilientThreadFactory("Nuxeo-ResilientDirectory-HealthCheck-" + descriptor.name));
+        for (SubDirectoryDescriptor sub : descriptor.subDirectories) {
+            SubDirectoryProbe probe = new SubDirectoryProbe(getSubDirectoryHealth(sub.name),
+                    descriptor.getHealthCheckCanaryId());
+            healthCheckExecutor.scheduleWithFixedDelay(probe, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @since 8.2
+     */
+    protected synchronized void stopHealthCheck() {
+        if (healthCheckExecutor != null) {
+            healthCheckExecutor.shutdownNow();
+            healthCheckExecutor = null;
+        }
+    }
+
+    /**
+     * Creates daemon threads for the background tasks of the resilient directory.
+     *
+     * @since 8.2
+     */
+    protected static class ResilientThreadFactory implements ThreadFactory {
+
+        protected final String prefix;
+
+        protected final AtomicInteger count = new AtomicInteger();
+
+        protected ResilientThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     @Override
@@ -179,7 +622,7 @@ public class ResilientDirectory extends AbstractDirectory {
 
     @Override
     public String getSchema() {
-        if (schemaName == null) {
+        if (!initialized) {
             initSubDirectories();
         }
         return schemaName;
@@ -204,11 +647,260 @@ public class ResilientDirectory extends AbstractDirectory {
         return schemaFieldMap;
     }
 
+    /**
+     * @since 8.2
+     */
+    public SlaveSelectionPolicy getSlaveSelectionPolicy() {
+        return slaveSelectionPolicy;
+    }
+
+    /**
+     * Returns an ever increasing counter used to rotate slaves.
+     *
+     * @since 8.2
+     */
+    protected int nextSlaveIndex() {
+        return slaveCounter.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the health statistics of a sub-directory, shared by all the sessions of this directory.
+     *
+     * @since 8.2
+     */
+    public SubDirectoryHealth getSubDirectoryHealth(String subDirectoryName) {
+        SubDirectoryHealth health = subDirectoryHealths.get(subDirectoryName);
+        if (health == null) {
+            ResilientDirectoryDescriptor descriptor = getDescriptor();
+            health = new SubDirectoryHealth(subDirectoryName, descriptor.getFailureThreshold(),
+                    descriptor.getRetryDelay());
+            SubDirectoryHealth existing = subDirectoryHealths.putIfAbsent(subDirectoryName, health);
+            if (existing != null) {
+                health = existing;
+            }
+        }
+        return health;
+    }
+
+    /**
+     * Checks if this cluster node is in charge of synchronizing the given entry on slaves. Once it is, the entries
+     * skipped while another node was in charge of them are synchronized in the background.
+     *
+     * @return {@code true} if the entry should be synchronized by this node, always {@code true} when the
+     *         synchronization is not coordinated
+     * @since 8.2
+     */
+    public boolean isSyncOwner(String entryId) {
+        if (syncCoordinator == null) {
+            return true;
+        }
+        if (!syncCoordinator.acquire(entryId)) {
+            return false;
+        }
+        final List<String> deferred = syncCoordinator.takeDeferred(entryId);
+        if (!deferred.isEmpty()) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try (ResilientDirectorySession session = (ResilientDirectorySession) getSession()) {
+                        for (String id : deferred) {
+                            session.synchronizeFromMaster(id);
+                        }
+                    } catch (DirectoryException e) {
+                        log.warn(String.format("Unable to synchronize the slaves of directory '%s' on entries %s",
+                                descriptor.name, deferred), e);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the given sub directory matches the entries of a list of ids in a single query, or {@code null}
+     * if not known yet.
+     *
+     * @since 8.2
+     */
+    protected Boolean isIdFilterSupported(String dirName) {
+        return idFilterSupport.get(dirName);
+    }
+
+    protected void setIdFilterSupported(String dirName, boolean supported) {
+        idFilterSupport.put(dirName, Boolean.valueOf(supported));
+    }
+
+    /**
+     * A synchronization of an entry on the slaves, waiting for the one in progress for the same entry.
+     *
+     * @since 8.2
+     */
+    public static class SlaveSync {
+
+        protected final DocumentModel masterEntry;
+
+        protected final Map<String, Object> fieldMap;
+
+        protected final boolean masterHasEntry;
+
+        /**
+         * @param masterEntry the entry read on the master with its references, or {@code null} to read it again
+         * @param fieldMap the properties to set in addition of the master ones, or {@code null}
+         * @param masterHasEntry {@code false} to delete the entry on the slaves
+         */
+        public SlaveSync(DocumentModel masterEntry, Map<String, Object> fieldMap, boolean masterHasEntry) {
+            this.masterEntry = masterEntry;
+            this.fieldMap = fieldMap;
+            this.masterHasEntry = masterHasEntry;
+        }
+
+        public DocumentModel getMasterEntry() {
+            return masterEntry;
+        }
+
+        public Map<String, Object> getFieldMap() {
+            return fieldMap;
+        }
+
+        public boolean isMasterHasEntry() {
+            return masterHasEntry;
+        }
+
+        /**
+         * Returns the synchronization to run instead of this one and a later one: the later one wins, keeping the
+         * properties not retrieved from the master (ex: password) given to this one. The master is read again if this
+         * one had to, as the entry given to the later one may have been read before.
+         */
+        protected SlaveSync merge(SlaveSync later) {
+            if (!later.masterHasEntry) {
+                return later;
+            }
+            Map<String, Object> merged = later.fieldMap;
+            if (fieldMap != null) {
+                merged = new HashMap<String, Object>(fieldMap);
+                if (later.fieldMap != null) {
+                    merged.putAll(later.fieldMap);
+                }
+            }
+            return new SlaveSync(masterEntry == null ? null : later.masterEntry, merged, true);
+        }
+    }
+
+    private static class SlaveSyncs {
+
+        /** The synchronization to run once the one in progress is done, {@code null} if none. */
+        SlaveSync next;
+    }
+
+    /**
+     * Starts the synchronization of the given entry on the slaves, unless one is already in progress in this JVM: the
+     * given one is then handed to it, to be run once it is done. Only this decision is serialized by the
+     * {@link #getSyncLock(String) synchronization lock} of the entry, the slaves are written without holding it.
+     *
+     * @return {@code true} if the caller must run the synchronization, then {@link #nextSlaveSync(String)} until it
+     *         returns {@code null}
+     * @since 8.2
+     */
+    public boolean startSlaveSync(String entryId, SlaveSync sync) {
+        Lock lock = getSyncLock(entryId);
+        lock.lock();
+        try {
+            SlaveSyncs syncs = slaveSyncsInProgress.get(entryId);
+            if (syncs == null) {
+                slaveSyncsInProgress.put(entryId, new SlaveSyncs());
+                return true;
+            }
+            syncs.next = syncs.next == null ? sync : syncs.next.merge(sync);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the synchronization of the given entry on the slaves.
+     *
+     * @return the synchronization handed over in the meantime, that the caller must run, or {@code null} if none
+     * @see #startSlaveSync(String, SlaveSync)
+     * @since 8.2
+     */
+    public SlaveSync nextSlaveSync(String entryId) {
+        Lock lock = getSyncLock(entryId);
+        lock.lock();
+        try {
+            SlaveSyncs syncs = slaveSyncsInProgress.get(entryId);
+            if (syncs == null) {
+                return null;
+            }
+            SlaveSync next = syncs.next;
+            if (next == null) {
+                slaveSyncsInProgress.remove(entryId);
+            }
+            syncs.next = null;
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the synchronization of the given entry on the slaves after a failure, dropping the ones handed over.
+     *
+     * @since 8.2
+     */
+    public void cancelSlaveSyncs(String entryId) {
+        Lock lock = getSyncLock(entryId);
+        lock.lock();
+        try {
+            slaveSyncsInProgress.remove(entryId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lock serializing the decisions to synchronize the given entry on slaves in this JVM. Entries are
+     * spread over a fixed number of locks, which are never held during calls to the sub directories.
+     *
+     * @since 8.2
+     */
+    public Lock getSyncLock(String entryId) {
+        int hash = entryId == null ? 0 : entryId.hashCode();
+        // spread the high bits, as for HashMap
+        hash ^= hash >>> 16;
+        return syncLocks[(hash & 0x7fffffff) % syncLocks.length];
+    }
+
+    /**
+     * Marks the synchronization following a read of the given entry as in progress in this JVM. Unlike the
+     * {@link #getSyncLock(String) synchronization locks}, the tracking is exact: entries sharing a lock are not
+     * affected.
+     *
+     * @return {@code false} if a synchronization following a read of this entry is already in progress
+     * @since 8.2
+     */
+    public boolean startReadSync(String entryId) {
+        return readSyncsInProgress.putIfAbsent(entryId, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Marks the synchronization following a read of the given entry as done.
+     *
+     * @see #startReadSync(String)
+     * @since 8.2
+     */
+    public void endReadSync(String entryId) {
+        readSyncsInProgress.remove(entryId);
+    }
+
     @Override
     public Session getSession() throws DirectoryException {
-        if (schemaName == null) {
+        if (!initialized) {
             initSubDirectories();
         }
+        if (writableSlaves.size() < slaveCount) {
+            checkSlavesWritable();
+        }
         ResilientDirectorySession session = new ResilientDirectorySession(this);
         addSession(session);
         return session;
@@ -219,9 +911,95 @@ public class ResilientDirectory extends AbstractDirectory {
         return new ResilientReference(this, referenceFieldName);
     }
 
+    @Override
+    public void shutdown() {
+        stopHealthCheck();
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdownNow();
+                asyncExecutor = null;
+            }
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Invalidates the given entries in the entry cache of this directory and in the caches of its sub-directories,
+     * leaving the other cached entries untouched. The directory cache of the resilient directory itself is not read by
+     * its sessions, entries being cached by the {@link ResilientEntryCache}.
+     *
+     * @since 8.2
+     */
+    public void invalidateEntries(List<String> entryIds) throws DirectoryException {
+        if (entryCache != null) {
+            for (String entryId : entryIds) {
+                entryCache.invalidate(entryId);
+            }
+        }
+        for (SubDirectoryDescriptor sub : getDescriptor().subDirectories) {
+            invalidateSubDirectoryEntries(sub.name, entryIds);
+        }
+    }
+
+    /**
+     * Invalidates entries written through this directory, and remembers them for the next
+     * {@link #invalidateDirectoryCache()}.
+     *
+     * @since 8.2
+     */
+    protected void invalidateWrittenEntries(List<String> entryIds) throws DirectoryException {
+        if (!writtenEntriesOverflow) {
+            writtenEntries.addAll(entryIds);
+            if (writtenEntries.size() > MAX_WRITTEN_ENTRIES) {
+                writtenEntriesOverflow = true;
+                writtenEntries.clear();
+            }
+        }
+        invalidateEntries(entryIds);
+    }
+
+    /**
+     * Invalidates the given entries in the cache of a sub-directory.
+     *
+     * @since 8.2
+     */
+    public void invalidateSubDirectoryEntries(String subDirectoryName, List<String> entryIds)
+            throws DirectoryException {
+        Directory dir = Framework.getService(DirectoryService.class).getDirectory(subDirectoryName);
+        if (dir != null) {
+            dir.getCache().invalidate(entryIds);
+        }
+    }
+
+    /**
+     * Invalidates the entries written through this directory since the previous call, in the cache of this directory
+     * and of its sub-directories, the other cached entries staying hot. The caches are only flushed if more than
+     * {@value #MAX_WRITTEN_ENTRIES} entries were written meanwhile. Entries modified on the master behind the resilient
+     * directory are refreshed when their cache expires, or by {@link #invalidateAllEntries()}.
+     */
     @Override
     public void invalidateDirectoryCache() throws DirectoryException {
-        getCache().invalidateAll();
+        if (writtenEntriesOverflow) {
+            writtenEntriesOverflow = false;
+            invalidateAllEntries();
+            return;
+        }
+        List<String> entryIds = new ArrayList<String>(writtenEntries);
+        writtenEntries.removeAll(entryIds);
+        if (!entryIds.isEmpty()) {
+            invalidateEntries(entryIds);
+        }
+    }
+
+    /**
+     * Flushes the whole cache of this directory and of its sub-directories.
+     *
+     * @since 8.2
+     */
+    public void invalidateAllEntries() throws DirectoryException {
+        if (entryCache != null) {
+            entryCache.invalidateAll();
+        }
         DirectoryService directoryService = Framework.getService(DirectoryService.class);
         // and also invalidates the cache from the source directories
         for (SubDirectoryDescriptor sub : getDescriptor().subDirectories) {
@@ -19,6 +19,11 @@
  */
 package org.nuxeo.ecm.directory.resilient;
 
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XNodeList;
 import org.nuxeo.common.xmap.annotation.XObject;
 import org.nuxeo.ecm.directory.BaseDirectoryDescriptor;
@@ -33,6 +38,233 @@ public class ResilientDirectoryDescriptor extends BaseDirectoryDescriptor {
     @XNodeList(value = "subDirectory", type = SubDirectoryDescriptor[].class, componentType = SubDirectoryDescriptor.class)
     protected SubDirectoryDescriptor[] subDirectories;
 
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    public static final long DEFAULT_RETRY_DELAY = 30000;
+
+    /**
+     * The order in which slaves are called on fallback, see {@link SlaveSelectionPolicy}.
+     *
+     * @since 8.2
+     */
+    @XNode("slaveSelection")
+    protected String slaveSelection;
+
+    /**
+     * Number of consecutive failures after which a sub-directory is considered unavailable.
+     *
+     * @since 8.2
+     */
+    @XNode("failureThreshold")
+    protected Integer failureThreshold;
+
+    /**
+     * Delay in milliseconds during which an unavailable sub-directory is skipped.
+     *
+     * @since 8.2
+     */
+    @XNode("retryDelay")
+    protected Long retryDelay;
+
+    public static final String DEFAULT_HEALTH_CHECK_CANARY_ID = "__resilient_health_check__";
+
+    /**
+     * Interval in milliseconds between two health checks of each sub-directory, disabled if not set.
+     *
+     * @since 8.2
+     */
+    @XNode("healthCheck@interval")
+    protected Long healthCheckInterval;
+
+    /**
+     * Id of the entry looked up by the health checks, it does not need to exist.
+     *
+     * @since 8.2
+     */
+    @XNode("healthCheck@canaryId")
+    protected String healthCheckCanaryId;
+
+    public static final long DEFAULT_LEASE_DURATION = 60000;
+
+    /**
+     * Name of the directory holding the synchronization leases, enables the cluster-wide coordination of slave
+     * synchronization if set.
+     *
+     * @since 8.2
+     */
+    @XNode("syncCoordination@leaseDirectory")
+    protected String leaseDirectory;
+
+    /**
+     * Duration in milliseconds of the periods during which a cluster node owns the synchronization of a group of
+     * entries.
+     *
+     * @since 8.2
+     */
+    @XNode("syncCoordination@leaseDuration")
+    protected Long leaseDuration;
+
+    public static final long DEFAULT_ENTRY_CACHE_FRESH_TTL = 60000;
+
+    public static final long DEFAULT_ENTRY_CACHE_STALE_TTL = 3600000;
+
+    /**
+     * Maximum number of entries held by the resilient entry cache, the cache is disabled if not set.
+     *
+     * @since 8.2
+     */
+    @XNode("entryCache@maxSize")
+    protected Integer entryCacheMaxSize;
+
+    /**
+     * Duration in milliseconds during which a cached entry is served without being refreshed.
+     *
+     * @since 8.2
+     */
+    @XNode("entryCache@freshTtl")
+    protected Long entryCacheFreshTtl;
+
+    /**
+     * Duration in milliseconds during which a cached entry can be served while being refreshed, or when every
+     * sub-directory fails.
+     *
+     * @since 8.2
+     */
+    @XNode("entryCache@staleTtl")
+    protected Long entryCacheStaleTtl;
+
+    /**
+     * Eviction policy of the entry cache, see {@link ResilientEntryCache.Eviction}.
+     *
+     * @since 8.2
+     */
+    @XNode("entryCache@eviction")
+    protected String entryCacheEviction;
+
+    public static final long DEFAULT_PENDING_WRITE_TTL = 3600000;
+
+    /**
+     * Duration in milliseconds during which a write not acknowledged by every slave is served to reads falling back
+     * on slaves.
+     *
+     * @since 8.2
+     */
+    @XNode("pendingWriteTtl")
+    protected Long pendingWriteTtl;
+
+    /**
+     * Synchronization policies of the slaves by type of operation, see {@link SyncPolicy}.
+     *
+     * @since 8.2
+     */
+    @XNodeList(value = "syncPolicy", type = SyncPolicyDescriptor[].class, componentType = SyncPolicyDescriptor.class)
+    protected SyncPolicyDescriptor[] syncPolicies;
+
+    /**
+     * Kind of threads running the background calls, see {@link ExecutorMode}.
+     *
+     * @since 8.2
+     */
+    @XNode("executor@mode")
+    protected String executorMode;
+
+    /**
+     * Number of platform threads running the background calls.
+     *
+     * @since 8.2
+     */
+    @XNode("executor@poolSize")
+    protected Integer executorPoolSize;
+
+    /**
+     * Maximum number of pending background calls.
+     *
+     * @since 8.2
+     */
+    @XNode("executor@queueSize")
+    protected Integer executorQueueSize;
+
+    public SlaveSelectionPolicy getSlaveSelectionPolicy() {
+        return SlaveSelectionPolicy.fromValue(slaveSelection);
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold == null ? DEFAULT_FAILURE_THRESHOLD : failureThreshold.intValue();
+    }
+
+    public long getRetryDelay() {
+        return retryDelay == null ? DEFAULT_RETRY_DELAY : retryDelay.longValue();
+    }
+
+    public long getHealthCheckInterval() {
+        return healthCheckInterval == null ? 0 : healthCheckInterval.longValue();
+    }
+
+    public String getHealthCheckCanaryId() {
+        return healthCheckCanaryId == null ? DEFAULT_HEALTH_CHECK_CANARY_ID : healthCheckCanaryId;
+    }
+
+    public int getEntryCacheMaxSize() {
+        return entryCacheMaxSize == null ? 0 : entryCacheMaxSize.intValue();
+    }
+
+    public long getEntryCacheFreshTtl() {
+        return entryCacheFreshTtl == null ? DEFAULT_ENTRY_CACHE_FRESH_TTL : entryCacheFreshTtl.longValue();
+    }
+
+    public long getEntryCacheStaleTtl() {
+        return entryCacheStaleTtl == null ? DEFAULT_ENTRY_CACHE_STALE_TTL : entryCacheStaleTtl.longValue();
+    }
+
+    public ResilientEntryCache.Eviction getEntryCacheEviction() {
+        return ResilientEntryCache.Eviction.fromValue(entryCacheEviction);
+    }
+
+    public long getPendingWriteTtl() {
+        return pendingWriteTtl == null ? DEFAULT_PENDING_WRITE_TTL : pendingWriteTtl.longValue();
+    }
+
+    /**
+     * Returns the synchronization policy of each type of operation, inline if not configured.
+     *
+     * @since 8.2
+     */
+    public Map<SyncPolicy.Operation, SyncPolicy> getSyncPolicies() {
+        Map<SyncPolicy.Operation, SyncPolicy> policies = new EnumMap<SyncPolicy.Operation, SyncPolicy>(
+                SyncPolicy.Operation.class);
+        if (syncPolicies != null) {
+            for (SyncPolicyDescriptor syncPolicy : syncPolicies) {
+                policies.put(syncPolicy.getOperation(), syncPolicy.newSyncPolicy());
+            }
+        }
+        for (SyncPolicy.Operation operation : SyncPolicy.Operation.values()) {
+            if (!policies.containsKey(operation)) {
+                policies.put(operation, SyncPolicy.inline(operation));
+            }
+        }
+        return policies;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return ExecutorMode.fromValue(executorMode);
+    }
+
+    public int getExecutorPoolSize() {
+        return executorPoolSize == null ? ResilientDirectory.ASYNC_POOL_SIZE : executorPoolSize.intValue();
+    }
+
+    public int getExecutorQueueSize() {
+        return executorQueueSize == null ? ResilientDirectory.ASYNC_QUEUE_SIZE : executorQueueSize.intValue();
+    }
+
+    public String getLeaseDirectory() {
+        return leaseDirectory;
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration == null ? DEFAULT_LEASE_DURATION : leaseDuration.longValue();
+    }
+
     @Override
     public void merge(BaseDirectoryDescriptor other) {
         super.merge(other);
@@ -45,6 +277,64 @@ public class ResilientDirectoryDescriptor extends BaseDirectoryDescriptor {
         if (other.subDirectories != null) {
             subDirectories = other.subDirectories.clone();
         }
+        if (other.slaveSelection != null) {
+            slaveSelection = other.slaveSelection;
+        }
+        if (other.failureThreshold != null) {
+            failureThreshold = other.failureThreshold;
+        }
+        if (other.retryDelay != null) {
+            retryDelay = other.retryDelay;
+        }
+        if (other.healthCheckInterval != null) {
+            healthCheckInterval = other.healthCheckInterval;
+        }
+        if (other.healthCheckCanaryId != null) {
+            healthCheckCanaryId = other.healthCheckCanaryId;
+        }
+        if (other.leaseDirectory != null) {
+            leaseDirectory = other.leaseDirectory;
+        }
+        if (other.leaseDuration != null) {
+            leaseDuration = other.leaseDuration;
+        }
+        if (other.entryCacheMaxSize != null) {
+            entryCacheMaxSize = other.entryCacheMaxSize;
+        }
+        if (other.entryCacheFreshTtl != null) {
+            entryCacheFreshTtl = other.entryCacheFreshTtl;
+        }
+        if (other.entryCacheStaleTtl != null) {
+            entryCacheStaleTtl = other.entryCacheStaleTtl;
+        }
+        if (other.entryCacheEviction != null) {
+            entryCacheEviction = other.entryCacheEviction;
+        }
+        if (other.pendingWriteTtl != null) {
+            pendingWriteTtl = other.pendingWriteTtl;
+        }
+        if (other.executorMode != null) {
+            executorMode = other.executorMode;
+        }
+        if (other.executorPoolSize != null) {
+            executorPoolSize = other.executorPoolSize;
+        }
+        if (other.executorQueueSize != null) {
+            executorQueueSize = other.executorQueueSize;
+        }
+        if (other.syncPolicies != null) {
+            // policies are merged by operation
+            Map<String, SyncPolicyDescriptor> merged = new LinkedHashMap<String, SyncPolicyDescriptor>();
+            if (syncPolicies != null) {
+                for (SyncPolicyDescriptor syncPolicy : syncPolicies) {
+                    merged.put(syncPolicy.operation, syncPolicy);
+                }
+            }
+            for (SyncPolicyDescriptor syncPolicy : other.syncPolicies) {
+                merged.put(syncPolicy.operation, syncPolicy.clone());
+            }
+            syncPolicies = merged.values().toArray(new SyncPolicyDescriptor[merged.size()]);
+        }
     }
 
     /**
@@ -60,6 +350,12 @@ public class ResilientDirectoryDescriptor extends BaseDirectoryDescriptor {
                 clone.subDirectories[i] = subDirectories[i].clone();
             }
         }
+        if (syncPolicies != null) {
+            clone.syncPolicies = new SyncPolicyDescriptor[syncPolicies.length];
+            for (int i = 0; i < syncPolicies.length; i++) {
+                clone.syncPolicies[i] = syncPolicies[i].clone();
+            }
+        }
         return clone;
     }
 
@@ -19,8 +19,35 @@
  */
 package org.nuxeo.ecm.directory.resilient;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.directory.DefaultDirectoryFactory;
+import org.nuxeo.ecm.directory.Directory;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
 
 public class ResilientDirectoryFactory extends DefaultDirectoryFactory {
 
+    private static final Log log = LogFactory.getLog(ResilientDirectoryFactory.class);
+
+    /**
+     * Warms up the resilient directories in the background once the application is started, each one on its own
+     * background executor, so that the first requests don't pay the validation of the sub-directories and the opening
+     * of their connections, and the startup never waits for an unavailable sub-directory.
+     *
+     * @since 8.2
+     */
+    @Override
+    public void applicationStarted(ComponentContext context) {
+        super.applicationStarted(context);
+        DirectoryService directoryService = Framework.getService(DirectoryService.class);
+        for (Directory directory : directoryService.getDirectories()) {
+            if (directory instanceof ResilientDirectory && !((ResilientDirectory) directory).warmUpAsync()) {
+                log.warn(String.format("Resilient directory '%s' will be initialized by its first session",
+                        directory.getName()));
+            }
+        }
+    }
+
 }
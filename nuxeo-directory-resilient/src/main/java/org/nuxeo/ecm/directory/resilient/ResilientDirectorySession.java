@@ -23,11 +23,20 @@ package org.nuxeo.ecm.directory.resilient;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,8 +46,12 @@ import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
 import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.PasswordHelper;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory.PendingWrite;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory.SlaveSync;
+import org.nuxeo.ecm.directory.resilient.ResilientEntryCache.CachedEntry;
 import org.nuxeo.runtime.api.Framework;
 
 /**
@@ -54,6 +67,18 @@ public class ResilientDirectorySession extends BaseSession {
 
     private static final Log log = LogFactory.getLog(ResilientDirectorySession.class);
 
+    /**
+     * Default number of entries fetched at once when enumerating entries.
+     *
+     * @since 8.2
+     */
+    public static final int DEFAULT_ENTRIES_PAGE_SIZE = 100;
+
+    /**
+     * Maximum number of ids matched by a single query when reading several entries.
+     */
+    protected static final int MAX_IDS_PER_QUERY = 100;
+
     private SubDirectoryInfo masterSubDirectoryInfo;
 
     private List<SubDirectoryInfo> slaveSubDirectoryInfos;
@@ -81,13 +106,19 @@ public class ResilientDirectorySession extends BaseSession {
 
         final String passwordField;
 
+        final int weight;
+
+        final SubDirectoryHealth health;
+
         Session session;
 
-        SubDirectoryInfo(String dirName, String dirSchemaName, String idField, String passwordField) {
+        SubDirectoryInfo(String dirName, String dirSchemaName, String idField, String passwordField, int weight) {
             this.dirName = dirName;
             this.dirSchemaName = dirSchemaName;
             this.idField = idField;
             this.passwordField = passwordField;
+            this.weight = weight;
+            health = getDirectory().getSubDirectoryHealth(dirName);
         }
 
         Session getSession() throws DirectoryException {
@@ -124,7 +155,8 @@ public class ResilientDirectorySession extends BaseSession {
             final String dirIdField = directoryService.getDirectoryIdField(dirName);
             final String dirPwdField = directoryService.getDirectoryPasswordField(dirName);
 
-            SubDirectoryInfo subDirectoryInfo = new SubDirectoryInfo(dirName, dirSchemaName, dirIdField, dirPwdField);
+            SubDirectoryInfo subDirectoryInfo = new SubDirectoryInfo(dirName, dirSchemaName, dirIdField, dirPwdField,
+                    subDir.weight);
 
             if (subDir.isMaster()) {
                 if (masterSubDirectoryInfo == null) {
@@ -139,6 +171,146 @@ public class ResilientDirectorySession extends BaseSession {
         slaveSubDirectoryInfos = newSlaveSubDirectoryInfos;
     }
 
+    /**
+     * A call to a sub-directory session.
+     *
+     * @since 8.2
+     */
+    protected interface SubDirectoryCall<T> {
+        T call(Session session) throws DirectoryException;
+    }
+
+    /**
+     * Calls a sub-directory, recording the outcome of the call in its health statistics.
+     */
+    private <T> T callSubDirectory(SubDirectoryInfo subDirectoryInfo, SubDirectoryCall<T> call)
+            throws DirectoryException {
+        long start = System.nanoTime();
+        try {
+            T result = call.call(subDirectoryInfo.getSession());
+            subDirectoryInfo.health.recordSuccess(System.nanoTime() - start);
+            return result;
+        } catch (DirectoryException e) {
+            subDirectoryInfo.health.recordFailure(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Calls the master for a read operation, unless it is known to be unavailable, in which case a
+     * {@link DirectoryException} is thrown right away so that the caller falls back on slaves without paying the master
+     * timeout.
+     */
+    private <T> T callMaster(SubDirectoryCall<T> call) throws DirectoryException {
+        if (!masterSubDirectoryInfo.health.isAvailable()) {
+            throw new DirectoryException(String.format("Master directory '%s' is unavailable",
+                    masterSubDirectoryInfo.dirName));
+        }
+        return callSubDirectory(masterSubDirectoryInfo, call);
+    }
+
+    /**
+     * Returns the slaves in the order they should be called on fallback, according to the slave selection policy of
+     * the directory. Unavailable slaves are put at the end, to be called only as a last resort.
+     *
+     * @since 8.2
+     */
+    protected List<SubDirectoryInfo> getSlavesInSelectionOrder() {
+        List<SubDirectoryInfo> available = new ArrayList<SubDirectoryInfo>(slaveSubDirectoryInfos.size());
+        List<SubDirectoryInfo> unavailable = new ArrayList<SubDirectoryInfo>(0);
+        for (SubDirectoryInfo subDirectoryInfo : slaveSubDirectoryInfos) {
+            if (subDirectoryInfo.health.isAvailable()) {
+                available.add(subDirectoryInfo);
+            } else {
+                unavailable.add(subDirectoryInfo);
+            }
+        }
+        if (available.size() > 1) {
+            switch (getDirectory().getSlaveSelectionPolicy()) {
+            case ROUND_ROBIN:
+                Collections.rotate(available, -(getDirectory().nextSlaveIndex() % available.size()));
+                break;
+            case LEAST_LATENCY:
+                Collections.sort(available, new Comparator<SubDirectoryInfo>() {
+                    @Override
+                    public int compare(SubDirectoryInfo info1, SubDirectoryInfo info2) {
+                        return Double.compare(info1.health.getLatency(), info2.health.getLatency());
+                    }
+                });
+                break;
+            case WEIGHTED:
+                // weighted random sampling without replacement: sort by
+                // random^(1/weight), highest first
+                final Map<SubDirectoryInfo, Double> keys = new HashMap<SubDirectoryInfo, Double>();
+                Random random = ThreadLocalRandom.current();
+                for (SubDirectoryInfo subDirectoryInfo : available) {
+                    keys.put(subDirectoryInfo,
+                            Math.pow(random.nextDouble(), 1.0 / Math.max(1, subDirectoryInfo.weight)));
+                }
+                Collections.sort(available, new Comparator<SubDirectoryInfo>() {
+                    @Override
+                    public int compare(SubDirectoryInfo info1, SubDirectoryInfo info2) {
+                        return Double.compare(keys.get(info2), keys.get(info1));
+                    }
+                });
+                break;
+            default:
+                break;
+            }
+        }
+        available.addAll(unavailable);
+        return available;
+    }
+
+    /**
+     * Calls the slaves in selection order until one of them succeeds.
+     *
+     * @param operation the operation description used for logging
+     */
+    private <T> T callSlaves(String operation, SubDirectoryCall<T> call) throws DirectoryException {
+        DirectoryException lastException = null;
+        for (SubDirectoryInfo subDirectoryInfo : getSlavesInSelectionOrder()) {
+            try {
+                return callSubDirectory(subDirectoryInfo, call);
+            } catch (DirectoryException e) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : Unable to %s on slave directory '%s', fallback on another slave if it exists",
+                        directory.getName(), operation, subDirectoryInfo.dirName), e);
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * Calls the slaves in selection order until one of them returns {@code true}.
+     *
+     * @param operation the operation description used for logging
+     * @return {@code true} if a slave returned {@code true}, {@code false} if all the slaves that could be called
+     *         returned {@code false}
+     */
+    private boolean callSlavesUntilTrue(String operation, SubDirectoryCall<Boolean> call) throws DirectoryException {
+        DirectoryException lastException = null;
+        boolean answered = false;
+        for (SubDirectoryInfo subDirectoryInfo : getSlavesInSelectionOrder()) {
+            try {
+                if (callSubDirectory(subDirectoryInfo, call).booleanValue()) {
+                    return true;
+                }
+                answered = true;
+            } catch (DirectoryException e) {
+                log.warn(String.format(
+                        "Resilient directory '%s' : Unable to %s on slave directory '%s', fallback on another slave if it exists",
+                        directory.getName(), operation, subDirectoryInfo.dirName), e);
+                lastException = e;
+            }
+        }
+        if (!answered && lastException != null) {
+            throw lastException;
+        }
+        return false;
+    }
+
     @Override
     public void close() throws DirectoryException {
         try {
@@ -219,21 +391,108 @@ public class ResilientDirectorySession extends BaseSession {
      * @param entryId The id of the entry
      * @param fieldMap The list of properties to set in addition of the master one. Can be null when not needed
      * @param masterHasEntry True if the master get it, else false. If flase the entry will be reomved on slave
+     * @param write True if the synchronization follows a write on the master, else false when it follows a read
+     */
+    void updateMasterOnSlaves(String entryId, Map<String, Object> fieldMap, boolean masterHasEntry, boolean write) {
+        updateMasterOnSlaves(entryId, null, fieldMap, masterHasEntry, write);
+    }
+
+    /**
+     * Same as {@link #updateMasterOnSlaves(String, Map, boolean, boolean)}, from an entry already read on the master.
+     *
+     * @param masterEntry the entry read on the master with its references, or {@code null} to read it again
      */
-    private void updateMasterOnSlaves(String entryId, Map<String, Object> fieldMap, boolean masterHasEntry) {
+    void updateMasterOnSlaves(String entryId, DocumentModel masterEntry, Map<String, Object> fieldMap,
+            boolean masterHasEntry, boolean write) {
         // if master has entry, update entry on slave, else if it does not exist
         // on slave create it
         // If the master does not have this entry anymore delete it from slave
 
-        if (masterHasEntry) {
-            DocumentModel docModel = null;
+        // Synchronizations following a read are done by a single node of the
+        // cluster when coordination is enabled. Writes, and reads bringing
+        // properties not retrieved from master (ex: password), are always
+        // propagated by the node doing them
+        if (!write && fieldMap == null && !getDirectory().isSyncOwner(entryId)) {
+            log.debug(String.format("Skipping synchronization of entry id %s, owned by another cluster node", entryId));
+            return;
+        }
+
+        // Synchronizations of the same entry are serialized, so that
+        // concurrent readers don't both create it on slaves. A read finding
+        // a read of the same entry already being synchronized skips it, the
+        // running synchronization brings the same data. Otherwise the
+        // synchronization is handed to the running one, which runs it once
+        // done: the lock is only held to take this decision, not while the
+        // slaves are written
+        boolean read = !write && fieldMap == null;
+        if (read && !getDirectory().startReadSync(entryId)) {
+            log.debug(String.format("Skipping synchronization of entry id %s, already in progress", entryId));
+            return;
+        }
+        try {
+            SlaveSync sync = new SlaveSync(masterEntry, fieldMap, masterHasEntry);
+            if (!getDirectory().startSlaveSync(entryId, sync)) {
+                log.debug(String.format("Handing synchronization of entry id %s to the one in progress", entryId));
+                return;
+            }
             try {
-                docModel = masterSubDirectoryInfo.getSession().getEntry(entryId);
+                while (sync != null) {
+                    // a write pending before the master is read again is
+                    // propagated by this synchronization
+                    PendingWrite pendingWrite = sync.getMasterEntry() == null ? getDirectory().getPendingWrite(
+                            entryId) : null;
+                    if (doUpdateMasterOnSlaves(entryId, sync.getMasterEntry(), sync.getFieldMap(),
+                            sync.isMasterHasEntry())) {
+                        getDirectory().clearPendingWrite(entryId, pendingWrite);
+                    }
+                    sync = getDirectory().nextSlaveSync(entryId);
+                }
+            } finally {
+                if (sync != null) {
+                    getDirectory().cancelSlaveSyncs(entryId);
+                }
+            }
+        } finally {
+            if (read) {
+                getDirectory().endReadSync(entryId);
+            }
+        }
+    }
 
-            } catch (DirectoryException e) {
-                log.warn(String.format(
-                        "Unable to get the entry id %s on master directory '%s'  while updating slave directory",
-                        entryId, masterSubDirectoryInfo.dirName), e);
+    /**
+     * Reads an entry on the master and synchronizes it on the slaves, whatever the synchronization policy.
+     *
+     * @throws DirectoryException if the master fails
+     */
+    void synchronizeFromMaster(final String entryId) throws DirectoryException {
+        init();
+        DocumentModel entry = callMaster(new SubDirectoryCall<DocumentModel>() {
+            @Override
+            public DocumentModel call(Session session) {
+                return session.getEntry(entryId);
+            }
+        });
+        updateMasterOnSlaves(entryId, entry, null, entry != null, false);
+    }
+
+    /**
+     * @return {@code true} if every slave has been updated
+     */
+    private boolean doUpdateMasterOnSlaves(String entryId, DocumentModel masterEntry, Map<String, Object> fieldMap,
+            boolean masterHasEntry) {
+        boolean acknowledged = true;
+        if (masterHasEntry) {
+            DocumentModel docModel = masterEntry;
+            if (docModel == null) {
+                try {
+                    docModel = masterSubDirectoryInfo.getSession().getEntry(entryId);
+
+                } catch (DirectoryException e) {
+                    log.warn(String.format(
+                            "Unable to get the entry id %s on master directory '%s'  while updating slave directory",
+                            entryId, masterSubDirectoryInfo.dirName), e);
+                    return false;
+                }
             }
             if (docModel != null) {
                 for (SubDirectoryInfo subDirInfo : slaveSubDirectoryInfos) {
@@ -262,6 +521,7 @@ public class ResilientDirectorySession extends BaseSession {
                             // Init props from master
                             entry.setProperties(getSchema(), masterProps);
                             subDirInfo.getSession().updateEntry(entry);
+                            invalidateSlaveEntry(subDirInfo, entryId);
                         } else {
                             Map<String, Object> prefixProps = docModel.getProperties(getSchema());
                             // Force update with the given properties if there are
@@ -270,60 +530,98 @@ public class ResilientDirectorySession extends BaseSession {
                                 prefixProps.putAll(fieldMap);
                             }
                             subDirInfo.getSession().createEntry(prefixProps);
+                            invalidateSlaveEntry(subDirInfo, entryId);
                         }
                     }
 
                     catch (DirectoryException e) {
                         log.warn(String.format("Unable to update the slave directory %s on entry id %s",
                                 subDirInfo.dirName, entryId), e);
+                        acknowledged = false;
                     }
                 }
             } else {
                 log.warn(String.format(
                         "The master directory %s should contains the entry id %s but return null when getting the object",
                         masterSubDirectoryInfo.dirName, entryId));
+                acknowledged = false;
             }
         } else {
             for (SubDirectoryInfo subDirInfo : slaveSubDirectoryInfos) {
                 try {
                     if (subDirInfo.getSession().hasEntry(entryId)) {
                         subDirInfo.getSession().deleteEntry(entryId);
+                        invalidateSlaveEntry(subDirInfo, entryId);
                     }
                 }
 
                 catch (DirectoryException e) {
                     log.warn(String.format("Unable to delete the slave directory %s on entry id %s",
                             subDirInfo.dirName, entryId), e);
+                    acknowledged = false;
                 }
             }
         }
+        return acknowledged;
+    }
+
+    /**
+     * Synchronizes an entry on the slaves after an operation on the master, inline, in the background or not at all
+     * depending on the synchronization policy of the operation.
+     */
+    private void synchronizeSlaves(SyncPolicy.Operation operation, String entryId, Map<String, Object> fieldMap,
+            boolean masterHasEntry) {
+        boolean write = operation == SyncPolicy.Operation.WRITE;
+        switch (getDirectory().getSyncPolicy(operation).decide(entryId)) {
+        case INLINE:
+            updateMasterOnSlaves(entryId, fieldMap, masterHasEntry, write);
+            break;
+        case ASYNC:
+            getDirectory().synchronizeAsync(Collections.singletonMap(entryId, Boolean.valueOf(masterHasEntry)),
+                    fieldMap, write);
+            break;
+        default:
+            log.debug(String.format("Skipping synchronization of entry id %s after %s", entryId,
+                    operation.getValue()));
+        }
+    }
 
+    /**
+     * Invalidates an entry modified by the synchronization in the cache of the slave, so that cached data stays correct
+     * without flushing the other entries.
+     */
+    private void invalidateSlaveEntry(SubDirectoryInfo subDirInfo, String entryId) {
+        getDirectory().invalidateSubDirectoryEntries(subDirInfo.dirName, Collections.singletonList(entryId));
     }
 
-    private boolean hasEntryOnSlave(String id) {
+    private boolean hasEntryOnSlave(final String id) {
         init();
-        for (SubDirectoryInfo dirInfo : slaveSubDirectoryInfos) {
-            Session session = dirInfo.getSession();
-            if (session.hasEntry(id)) {
-                return true;
+        return callSlavesUntilTrue("check entry " + id, new SubDirectoryCall<Boolean>() {
+            @Override
+            public Boolean call(Session session) {
+                return Boolean.valueOf(session.hasEntry(id));
             }
-        }
-        return false;
+        });
     }
 
     @Override
-    public boolean authenticate(String username, String password) {
+    public boolean authenticate(final String username, final String password) {
         init();
 
         // First try to authenticate against the master
         try {
-            boolean authenticated = masterSubDirectoryInfo.getSession().authenticate(username, password);
+            boolean authenticated = callMaster(new SubDirectoryCall<Boolean>() {
+                @Override
+                public Boolean call(Session session) {
+                    return Boolean.valueOf(session.authenticate(username, password));
+                }
+            }).booleanValue();
             HashMap<String, Object> fieldMap = new HashMap<String, Object>();
 
             fieldMap.put(getIdField(), username);
             fieldMap.put(getPasswordField(), password);
 
-            updateMasterOnSlaves(username, fieldMap, authenticated);
+            synchronizeSlaves(SyncPolicy.Operation.AUTHENTICATE, username, fieldMap, authenticated);
             return authenticated;
         } catch (DirectoryException e) {
             log.warn(String.format(
@@ -331,15 +629,25 @@ public class ResilientDirectorySession extends BaseSession {
                     username, masterSubDirectoryInfo.dirName), e);
         }
 
-        // If the master is KO, fallback on slave and try to authenticate
-        for (SubDirectoryInfo dirInfo : slaveSubDirectoryInfos) {
-            log.info(String.format("Trying to authenticate against slave directory %s", dirInfo.dirName));
-            if (dirInfo.getSession().authenticate(username, password)) {
-                return true;
+        // A password written on this node may not be on the slaves yet
+        PendingWrite pendingWrite = getDirectory().getPendingWrite(username);
+        if (pendingWrite != null) {
+            if (pendingWrite.isDeleted()) {
+                return false;
+            }
+            Object storedPassword = pendingWrite.properties.get(getPrefixedPasswordField());
+            if (storedPassword instanceof String) {
+                return PasswordHelper.verifyPassword(password, (String) storedPassword);
             }
-
         }
-        return false;
+
+        // If the master is KO, fallback on slave and try to authenticate
+        return callSlavesUntilTrue("authenticate " + username, new SubDirectoryCall<Boolean>() {
+            @Override
+            public Boolean call(Session session) {
+                return Boolean.valueOf(session.authenticate(username, password));
+            }
+        });
     }
 
     @Override
@@ -357,9 +665,34 @@ public class ResilientDirectorySession extends BaseSession {
      * @throws DirectoryException
      *
      */
-    public DocumentModel getEntry(String id, boolean fetchReferences) throws DirectoryException {
+    public DocumentModel getEntry(final String id, final boolean fetchReferences) throws DirectoryException {
         init();
 
+        ResilientEntryCache entryCache = getDirectory().getEntryCache();
+        // Entries written and not yet propagated are read from the master,
+        // or from the pending write if the master fails
+        boolean pending = getDirectory().getPendingWrite(id) != null;
+        CachedEntry cached = entryCache == null || pending ? null : entryCache.get(id);
+        if (cached != null) {
+            // Fresh entries are served as is, stale ones are served while
+            // being reloaded in the background
+            if (!entryCache.isFresh(cached) && entryCache.startRefresh(cached)) {
+                getDirectory().refreshCachedEntry(id);
+            }
+            return cached.toEntry(getDirectory().getSchema());
+        }
+        return loadEntry(id, fetchReferences);
+    }
+
+    /**
+     * Loads an entry through the master/slaves fallback chain, bypassing the entry cache but feeding it.
+     *
+     * @since 8.2
+     */
+    protected DocumentModel loadEntry(final String id, final boolean fetchReferences) throws DirectoryException {
+        init();
+        ResilientEntryCache entryCache = getDirectory().getEntryCache();
+
         // Try to get the entry in the master first
         // If an exception occurs, catch it, log it and try to get it in the
         // slave
@@ -367,7 +700,12 @@ public class ResilientDirectorySession extends BaseSession {
         boolean errorOccurs = false;
         DocumentModel entry = null;
         try {
-            entry = masterSubDirectoryInfo.getSession().getEntry(id, fetchReferences);
+            entry = callMaster(new SubDirectoryCall<DocumentModel>() {
+                @Override
+                public DocumentModel call(Session session) {
+                    return session.getEntry(id, fetchReferences);
+                }
+            });
         } catch (DirectoryException e) {
             log.warn(String.format("Unable to get the entry id '%s' in the directory '%s', will fallback on slave ",
                     id, masterSubDirectoryInfo.dirName), e);
@@ -377,28 +715,345 @@ public class ResilientDirectorySession extends BaseSession {
         if (entry == null && !errorOccurs) {
             // If the entry is null and no error, remove the entry from
             // slaves
-            updateMasterOnSlaves(id, null, false);
+            synchronizeSlaves(SyncPolicy.Operation.GET_ENTRY, id, null, false);
         } else if (entry == null && errorOccurs) {
-            // Try to get the entry from slaves
-            for (SubDirectoryInfo subDirectoryInfo : slaveSubDirectoryInfos) {
+            // The slaves don't have a write done on this node yet
+            PendingWrite pendingWrite = getDirectory().getPendingWrite(id);
+            if (pendingWrite != null) {
+                return toEntry(id, pendingWrite);
+            }
+            // Try to get the entry from slaves, until one of them has it
+            DirectoryException lastException = null;
+            boolean answered = false;
+            for (SubDirectoryInfo subDirectoryInfo : getSlavesInSelectionOrder()) {
                 log.info(String.format("Trying to get entry %s on slave directory %s", id, subDirectoryInfo.dirName));
-                entry = subDirectoryInfo.getSession().getEntry(id, fetchReferences);
-                if (isReadOnly()) {
-                    // set readonly the returned entry if the master directory
-                    // is in read-only
-                    setReadOnlyEntry(entry);
+                try {
+                    entry = callSubDirectory(subDirectoryInfo, new SubDirectoryCall<DocumentModel>() {
+                        @Override
+                        public DocumentModel call(Session session) {
+                            return session.getEntry(id, fetchReferences);
+                        }
+                    });
+                    answered = true;
+                } catch (DirectoryException exc) {
+                    log.warn(String.format("Unable to get the entry id '%s' in the slave directory '%s'", id,
+                            subDirectoryInfo.dirName), exc);
+                    lastException = exc;
+                }
+                if (entry != null) {
+                    break;
                 }
             }
+            if (!answered && lastException != null) {
+                if (entryCache != null) {
+                    // Last resort, serve the entry even if stale
+                    CachedEntry cached = entryCache.get(id);
+                    if (cached != null) {
+                        entryCache.refreshFailed(id);
+                        return cached.toEntry(getDirectory().getSchema());
+                    }
+                }
+                throw lastException;
+            }
+            if (entry != null && isReadOnly()) {
+                // set readonly the returned entry if the master directory
+                // is in read-only
+                setReadOnlyEntry(entry);
+            }
 
         } else if (entry != null) {
             // Update the entry to the slaves if needed
-            updateMasterOnSlaves(entry.getId(), null, true);
+            synchronizeSlaves(SyncPolicy.Operation.GET_ENTRY, entry.getId(), null, true);
         }
 
+        if (entryCache != null) {
+            if (entry != null && fetchReferences) {
+                // an entry read from a slave must not outlive the master failure
+                entryCache.put(entry, errorOccurs);
+            } else if (entry == null && !errorOccurs) {
+                entryCache.invalidate(id);
+            }
+        }
         return entry;
 
     }
 
+    /**
+     * Gets several entries, for instance to resolve the members of a group.
+     *
+     * @see #getEntries(Collection, boolean)
+     * @since 8.2
+     */
+    public DocumentModelList getEntries(Collection<String> ids) throws DirectoryException {
+        return getEntries(ids, true);
+    }
+
+    /**
+     * Gets several entries, in the order of the given ids, ignoring the ids having no entry.
+     * <p>
+     * Entries found in the entry cache are served from it. The other ones are read from the master with a query by ids,
+     * or one by one if the master does not support such queries, and if the master fails the ones still missing are
+     * read from each slave in turn. The slaves are then synchronized like for {@link #getEntry(String, boolean)}, from the
+     * entries already read on the master, background synchronizations being grouped in a single task.
+     *
+     * @since 8.2
+     */
+    public DocumentModelList getEntries(Collection<String> ids, final boolean fetchReferences)
+            throws DirectoryException {
+        init();
+        ResilientEntryCache entryCache = getDirectory().getEntryCache();
+        String schema = getDirectory().getSchema();
+
+        Map<String, DocumentModel> entries = new LinkedHashMap<String, DocumentModel>();
+        final List<String> missingIds = new ArrayList<String>();
+        for (String id : new LinkedHashSet<String>(ids)) {
+            boolean pending = getDirectory().getPendingWrite(id) != null;
+            CachedEntry cached = entryCache == null || pending ? null : entryCache.get(id);
+            if (cached != null) {
+                if (!entryCache.isFresh(cached) && entryCache.startRefresh(cached)) {
+                    getDirectory().refreshCachedEntry(id);
+                }
+                entries.put(id, cached.toEntry(schema));
+            } else {
+                entries.put(id, null);
+                missingIds.add(id);
+            }
+        }
+        if (missingIds.isEmpty()) {
+            return toEntryList(entries);
+        }
+
+        Map<String, DocumentModel> loaded = new HashMap<String, DocumentModel>();
+        boolean masterFailed = false;
+        try {
+            readEntries(masterSubDirectoryInfo, missingIds, fetchReferences, loaded);
+        } catch (DirectoryException e) {
+            masterFailed = true;
+            log.warn(String.format("Unable to get %d entries in the directory '%s', will fallback on slave",
+                    Integer.valueOf(missingIds.size() - loaded.size()), masterSubDirectoryInfo.dirName), e);
+        }
+
+        SyncPolicy syncPolicy = getDirectory().getSyncPolicy(SyncPolicy.Operation.GET_ENTRY);
+        Map<String, Boolean> asyncEntryIds = new LinkedHashMap<String, Boolean>();
+        for (String id : missingIds) {
+            if (!loaded.containsKey(id)) {
+                continue;
+            }
+            DocumentModel entry = loaded.get(id);
+            // entries read without their references can't be copied to the slaves
+            bulkSynchronizeSlaves(syncPolicy, id, fetchReferences ? entry : null, entry != null, asyncEntryIds);
+            if (entryCache != null) {
+                if (entry != null && fetchReferences) {
+                    entryCache.put(entry);
+                } else if (entry == null) {
+                    entryCache.invalidate(id);
+                }
+            }
+            entries.put(id, entry);
+        }
+        if (!asyncEntryIds.isEmpty()) {
+            getDirectory().synchronizeAsync(asyncEntryIds, null, false);
+        }
+        if (!masterFailed) {
+            return toEntryList(entries);
+        }
+        missingIds.removeAll(loaded.keySet());
+
+        // The slaves don't have the writes done on this node yet
+        final Set<String> pendingIds = new HashSet<String>();
+        for (String id : missingIds) {
+            PendingWrite pendingWrite = getDirectory().getPendingWrite(id);
+            if (pendingWrite != null) {
+                pendingIds.add(id);
+                entries.put(id, toEntry(id, pendingWrite));
+            }
+        }
+
+        // Get the missing entries from slaves, each slave being asked for
+        // the entries the previous ones don't have
+        DirectoryException lastException = null;
+        boolean answered = false;
+        for (SubDirectoryInfo subDirectoryInfo : getSlavesInSelectionOrder()) {
+            final List<String> slaveIds = new ArrayList<String>();
+            for (String id : missingIds) {
+                if (entries.get(id) == null && !pendingIds.contains(id)) {
+                    slaveIds.add(id);
+                }
+            }
+            if (slaveIds.isEmpty()) {
+                break;
+            }
+            Map<String, DocumentModel> slaveEntries = new HashMap<String, DocumentModel>();
+            try {
+                readEntries(subDirectoryInfo, slaveIds, fetchReferences, slaveEntries);
+                answered = true;
+            } catch (DirectoryException exc) {
+                log.warn(String.format("Unable to get %d entries in the slave directory '%s'",
+                        Integer.valueOf(slaveIds.size() - slaveEntries.size()), subDirectoryInfo.dirName), exc);
+                lastException = exc;
+            }
+            entries.putAll(slaveEntries);
+        }
+        if (!answered && lastException != null) {
+            // Last resort, serve the entries even if stale
+            for (String id : missingIds) {
+                if (pendingIds.contains(id) || entries.get(id) != null) {
+                    continue;
+                }
+                CachedEntry cached = entryCache == null ? null : entryCache.get(id);
+                if (cached == null) {
+                    throw lastException;
+                }
+                entryCache.refreshFailed(id);
+                entries.put(id, cached.toEntry(schema));
+            }
+            return toEntryList(entries);
+        }
+        if (isReadOnly()) {
+            for (String id : missingIds) {
+                DocumentModel entry = entries.get(id);
+                if (entry != null && !pendingIds.contains(id)) {
+                    setReadOnlyEntry(entry);
+                }
+            }
+        }
+        return toEntryList(entries);
+    }
+
+    /**
+     * Builds the entry of a pending write, without its password.
+     *
+     * @return the entry, or {@code null} if the pending write is a deletion
+     */
+    private DocumentModel toEntry(String id, PendingWrite pendingWrite) {
+        if (pendingWrite.isDeleted()) {
+            return null;
+        }
+        Map<String, Object> properties = new HashMap<String, Object>(pendingWrite.properties);
+        String passwordField = getPrefixedPasswordField();
+        if (passwordField != null) {
+            properties.remove(passwordField);
+        }
+        DocumentModel entry = BaseSession.createEntryModel(null, getSchema(), id, properties);
+        if (isReadOnly()) {
+            setReadOnlyEntry(entry);
+        }
+        return entry;
+    }
+
+    private String getPrefixedPasswordField() {
+        if (getPasswordField() == null) {
+            return null;
+        }
+        return getDirectory().getSchemaFieldMap().get(getPasswordField()).getName().getPrefixedName();
+    }
+
+    /**
+     * Reads entries from a sub-directory into {@code entries}, the entries not found being mapped to {@code null}.
+     * <p>
+     * The entries are read by batches of {@link #MAX_IDS_PER_QUERY} with a query whose id filter is the list of ids,
+     * which the 8.2 {@link Session} API does not define: a sub-directory not supporting it either fails or misses
+     * entries. Until the sub-directory is known to support it, the ids the query did not return are read one by one,
+     * and finding one of them marks the sub-directory as not supporting it, its entries being then read one by one.
+     * Each call is recorded in the health statistics of the sub-directory. On failure, the entries read so far are
+     * kept in {@code entries}.
+     */
+    private void readEntries(SubDirectoryInfo subDirectoryInfo, List<String> ids, boolean fetchReferences,
+            Map<String, DocumentModel> entries) throws DirectoryException {
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+            Boolean idFilterSupported = getDirectory().isIdFilterSupported(subDirectoryInfo.dirName);
+            if (Boolean.FALSE.equals(idFilterSupported)) {
+                readEntriesOneByOne(subDirectoryInfo, batch, fetchReferences, entries);
+                continue;
+            }
+            DocumentModelList results;
+            try {
+                results = queryEntries(subDirectoryInfo, batch, fetchReferences);
+            } catch (DirectoryException e) {
+                if (idFilterSupported != null) {
+                    throw e;
+                }
+                log.debug(String.format("Unable to query entries by ids in the directory '%s'",
+                        subDirectoryInfo.dirName), e);
+                readEntriesOneByOne(subDirectoryInfo, batch, fetchReferences, entries);
+                getDirectory().setIdFilterSupported(subDirectoryInfo.dirName, false);
+                continue;
+            }
+            List<String> unread = new ArrayList<String>(batch);
+            for (DocumentModel entry : results) {
+                if (unread.remove(entry.getId())) {
+                    entries.put(entry.getId(), entry);
+                }
+            }
+            if (idFilterSupported != null) {
+                for (String id : unread) {
+                    entries.put(id, null);
+                }
+                continue;
+            }
+            // check that the ids not returned have no entry
+            Map<String, DocumentModel> checked = new HashMap<String, DocumentModel>();
+            try {
+                readEntriesOneByOne(subDirectoryInfo, unread, fetchReferences, checked);
+            } finally {
+                entries.putAll(checked);
+            }
+            // keep the entries found only
+            checked.values().removeAll(Collections.singleton(null));
+            if (!checked.isEmpty()) {
+                log.debug(String.format("The directory '%s' does not match entries by a list of ids",
+                        subDirectoryInfo.dirName));
+                getDirectory().setIdFilterSupported(subDirectoryInfo.dirName, false);
+            } else if (!results.isEmpty()) {
+                getDirectory().setIdFilterSupported(subDirectoryInfo.dirName, true);
+            }
+        }
+    }
+
+    private DocumentModelList queryEntries(SubDirectoryInfo subDirectoryInfo, List<String> ids,
+            final boolean fetchReferences) throws DirectoryException {
+        final Map<String, Serializable> filter = Collections.<String, Serializable> singletonMap(
+                subDirectoryInfo.idField, new ArrayList<String>(ids));
+        return callForRead(subDirectoryInfo, new SubDirectoryCall<DocumentModelList>() {
+            @Override
+            public DocumentModelList call(Session session) {
+                return session.query(filter, Collections.<String> emptySet(), Collections.<String, String> emptyMap(),
+                        fetchReferences);
+            }
+        });
+    }
+
+    private void readEntriesOneByOne(SubDirectoryInfo subDirectoryInfo, List<String> ids,
+            final boolean fetchReferences, Map<String, DocumentModel> entries) throws DirectoryException {
+        for (final String id : ids) {
+            entries.put(id, callForRead(subDirectoryInfo, new SubDirectoryCall<DocumentModel>() {
+                @Override
+                public DocumentModel call(Session session) {
+                    return session.getEntry(id, fetchReferences);
+                }
+            }));
+        }
+    }
+
+    private <T> T callForRead(SubDirectoryInfo subDirectoryInfo, SubDirectoryCall<T> call)
+            throws DirectoryException {
+        if (subDirectoryInfo == masterSubDirectoryInfo) {
+            return callMaster(call);
+        }
+        return callSubDirectory(subDirectoryInfo, call);
+    }
+
+    private static DocumentModelList toEntryList(Map<String, DocumentModel> entries) {
+        DocumentModelList results = new DocumentModelListImpl();
+        for (DocumentModel entry : entries.values()) {
+            if (entry != null) {
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
     /**
      * Method used for quer and getEntries method This method may raise performance issue Find a smarter way of update
      * Use a cron job that deal with asynchronous update
@@ -406,26 +1061,179 @@ public class ResilientDirectorySession extends BaseSession {
      * @param masterResults The up-to-date list of results from master
      */
     private void bulkUpdateMasterOnSlave(DocumentModelList masterResults, DocumentModelList slaveResults) {
+        SyncPolicy syncPolicy = getDirectory().getSyncPolicy(SyncPolicy.Operation.QUERY);
+        // Entries to synchronize in the background are grouped in one task
+        Map<String, Boolean> asyncEntryIds = new LinkedHashMap<String, Boolean>();
 
         // Create/update entries in slave
         for (DocumentModel docModel : masterResults) {
             if (!slaveResults.contains(docModel)) {
-                updateMasterOnSlaves(docModel.getId(), null, true);
+                bulkSynchronizeSlaves(syncPolicy, docModel.getId(), null, true, asyncEntryIds);
             }
         }
 
         // Delete old entries
         for (DocumentModel docModel : slaveResults) {
             if (!masterResults.contains(docModel)) {
-                updateMasterOnSlaves(docModel.getId(), null, false);
+                bulkSynchronizeSlaves(syncPolicy, docModel.getId(), null, false, asyncEntryIds);
             }
         }
 
+        if (!asyncEntryIds.isEmpty()) {
+            getDirectory().synchronizeAsync(asyncEntryIds, null, false);
+        }
+    }
+
+    /**
+     * @param masterEntry the entry already read on the master, or {@code null} to read it again when synchronizing
+     */
+    private void bulkSynchronizeSlaves(SyncPolicy syncPolicy, String entryId, DocumentModel masterEntry,
+            boolean masterHasEntry, Map<String, Boolean> asyncEntryIds) {
+        switch (syncPolicy.decide(entryId)) {
+        case INLINE:
+            updateMasterOnSlaves(entryId, masterEntry, null, masterHasEntry, false);
+            break;
+        case ASYNC:
+            asyncEntryIds.put(entryId, Boolean.valueOf(masterHasEntry));
+            break;
+        default:
+            break;
+        }
     }
 
+    /**
+     * Get all the entries from the master directory, or from a slave if the master is not available.
+     * <p>
+     * No synchronization is done on slaves. Prefer {@link #iterateEntries()} for big directories as this method holds
+     * all the entries in memory.
+     */
     @Override
     public DocumentModelList getEntries() {
-        throw new UnsupportedOperationException("Get entries may be deprecated !");
+        DocumentModelList results = new DocumentModelListImpl();
+        Iterator<DocumentModel> entries = iterateEntries();
+        while (entries.hasNext()) {
+            results.add(entries.next());
+        }
+        return results;
+    }
+
+    /**
+     * @see #iterateEntries(int)
+     * @since 8.2
+     */
+    public Iterator<DocumentModel> iterateEntries() {
+        return iterateEntries(DEFAULT_ENTRIES_PAGE_SIZE);
+    }
+
+    /**
+     * Enumerate all the entries of the directory, fetching them page by page.
+     * <p>
+     * Each page is read with a single query ordered by id, with a limit and an offset, so that iterating costs one
+     * sub-directory call per page and only one page is held in memory at a time. Pages are read from the master, and if
+     * it fails, from the slaves from that page on. No synchronization is done on slaves. The session must stay open
+     * while iterating.
+     *
+     * @param pageSize the number of entries fetched at once
+     * @since 8.2
+     */
+    public Iterator<DocumentModel> iterateEntries(int pageSize) {
+        init();
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        return new EntryIterator(pageSize);
+    }
+
+    /**
+     * Lazy iterator over entries fetched by pages from the master, or from the slaves once the master failed.
+     */
+    protected class EntryIterator implements Iterator<DocumentModel> {
+
+        protected final int pageSize;
+
+        protected final boolean readOnly;
+
+        protected Iterator<DocumentModel> page = Collections.<DocumentModel> emptyIterator();
+
+        protected int offset;
+
+        protected boolean lastPage;
+
+        protected SubDirectoryInfo source;
+
+        protected EntryIterator(int pageSize) {
+            this.pageSize = pageSize;
+            source = masterSubDirectoryInfo;
+            readOnly = isReadOnly();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!page.hasNext() && !lastPage) {
+                fetchPage();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public DocumentModel next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            DocumentModel entry = page.next();
+            if (readOnly) {
+                setReadOnlyEntry(entry);
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        protected void fetchPage() {
+            final int pageOffset = offset;
+            SubDirectoryCall<DocumentModelList> queryPage = new SubDirectoryCall<DocumentModelList>() {
+                @Override
+                public DocumentModelList call(Session session) {
+                    return session.query(Collections.<String, Serializable> emptyMap(),
+                            Collections.<String> emptySet(), Collections.singletonMap(getIdField(), "asc"), false,
+                            pageSize, pageOffset);
+                }
+            };
+            DocumentModelList entries = null;
+            if (source == masterSubDirectoryInfo) {
+                try {
+                    entries = callMaster(queryPage);
+                } catch (DirectoryException e) {
+                    log.warn(String.format(
+                            "Resilient directory '%s' : Unable to get entries from offset %d on master directory '%s', fetch remaining entries on slaves",
+                            directory.getName(), Integer.valueOf(pageOffset), masterSubDirectoryInfo.dirName), e);
+                }
+            } else {
+                entries = callSubDirectory(source, queryPage);
+            }
+            if (entries == null) {
+                DirectoryException lastException = null;
+                for (SubDirectoryInfo subDirectoryInfo : getSlavesInSelectionOrder()) {
+                    try {
+                        entries = callSubDirectory(subDirectoryInfo, queryPage);
+                        source = subDirectoryInfo;
+                        break;
+                    } catch (DirectoryException exc) {
+                        lastException = exc;
+                    }
+                }
+                if (entries == null) {
+                    throw lastException;
+                }
+            }
+            // a sub-directory ignoring the limit returns all its entries at once
+            lastPage = entries.size() != pageSize;
+            offset += entries.size();
+            page = entries.iterator();
+        }
     }
 
     @Override
@@ -450,7 +1258,8 @@ public class ResilientDirectorySession extends BaseSession {
         // Do not fallback if create on master has failed.
         // The master source must stay the most up-to-date source
         masterSubDirectoryInfo.getSession().createEntry(entry);
-        updateMasterOnSlaves(id, fieldMap, true);
+        getDirectory().invalidateWrittenEntries(Collections.singletonList(id));
+        synchronizeSlaves(SyncPolicy.Operation.WRITE, id, fieldMap, true);
         return entry;
 
     }
@@ -466,7 +1275,8 @@ public class ResilientDirectorySession extends BaseSession {
         // If we are removing a entry from the master, update the slave(s)
         // even if the master is in read-only mode
         masterSubDirectoryInfo.getSession().deleteEntry(id);
-        updateMasterOnSlaves(id, null, false);
+        getDirectory().invalidateWrittenEntries(Collections.singletonList(id));
+        synchronizeSlaves(SyncPolicy.Operation.WRITE, id, null, false);
     }
 
     @Override
@@ -485,7 +1295,8 @@ public class ResilientDirectorySession extends BaseSession {
         // Do not fallback if update on master has failed.
         // The master source must stay the most up-to-date source
         masterSubDirectoryInfo.getSession().updateEntry(docModel);
-        updateMasterOnSlaves(docModel.getId(), docModel.getProperties(getSchema()), true);
+        getDirectory().invalidateWrittenEntries(Collections.singletonList(docModel.getId()));
+        synchronizeSlaves(SyncPolicy.Operation.WRITE, docModel.getId(), docModel.getProperties(getSchema()), true);
 
     }
 
@@ -507,14 +1318,19 @@ public class ResilientDirectorySession extends BaseSession {
     }
 
     @Override
-    public DocumentModelList query(Map<String, Serializable> filter, Set<String> fulltext, Map<String, String> orderBy,
-            boolean fetchReferences) {
+    public DocumentModelList query(final Map<String, Serializable> filter, final Set<String> fulltext,
+            final Map<String, String> orderBy, final boolean fetchReferences) {
         init();
 
         // list of entries
         final DocumentModelList results = new DocumentModelListImpl();
         try {
-            results.addAll(masterSubDirectoryInfo.getSession().query(filter, fulltext, orderBy, fetchReferences));
+            results.addAll(callMaster(new SubDirectoryCall<DocumentModelList>() {
+                @Override
+                public DocumentModelList call(Session session) {
+                    return session.query(filter, fulltext, orderBy, fetchReferences);
+                }
+            }));
             DocumentModelList slaveResults = null;
 
             for (SubDirectoryInfo subDirectoryInfo : slaveSubDirectoryInfos) {
@@ -539,16 +1355,18 @@ public class ResilientDirectorySession extends BaseSession {
                     directory.getName(), masterSubDirectoryInfo.dirName), e);
 
             // Try to get the entry from slaves
-            for (SubDirectoryInfo subDirectoryInfo : slaveSubDirectoryInfos) {
-                try {
-                    results.addAll(subDirectoryInfo.getSession().query(filter, fulltext, orderBy, fetchReferences));
-                    break;
-                } catch (DirectoryException exc) {
-                    log.warn(
-                            String.format(
-                                    "Resilient directory '%s' : Unable to query entries on slave directory '%s', fallback on another slave if it exists",
-                                    directory.getName(), masterSubDirectoryInfo.dirName), e);
-                }
+            try {
+                results.addAll(callSlaves("query entries", new SubDirectoryCall<DocumentModelList>() {
+                    @Override
+                    public DocumentModelList call(Session session) {
+                        return session.query(filter, fulltext, orderBy, fetchReferences);
+                    }
+                }));
+            } catch (DirectoryException exc) {
+                // keep previous behavior: no result when all slaves failed
+                log.warn(String.format(
+                        "Resilient directory '%s' : Unable to query entries on any slave directory, returning no result",
+                        directory.getName()), exc);
             }
 
         }
@@ -568,21 +1386,35 @@ public class ResilientDirectorySession extends BaseSession {
         return getProjection(filter, Collections.<String> emptySet(), columnName);
     }
 
+    /**
+     * Get the projection on the master directory first and fall back on slave(s) when needed.
+     * <p>
+     * Unlike {@link #query(Map, Set)} the projection is pushed down to the sub-directory as is: no entry model is built
+     * and no slave synchronization is done, as only a single column is returned.
+     */
     @Override
-    public List<String> getProjection(Map<String, Serializable> filter, Set<String> fulltext, String columnName)
-            {
+    public List<String> getProjection(final Map<String, Serializable> filter, final Set<String> fulltext,
+            final String columnName) {
+        init();
+        try {
+            return callMaster(new SubDirectoryCall<List<String>>() {
+                @Override
+                public List<String> call(Session session) {
+                    return session.getProjection(filter, fulltext, columnName);
+                }
+            });
+        } catch (DirectoryException e) {
+            log.warn(String.format(
+                    "Resilient directory '%s' : Unable to get projection on master directory '%s', fallback on slaves",
+                    directory.getName(), masterSubDirectoryInfo.dirName), e);
+        }
 
-        final DocumentModelList entries = query(filter, fulltext);
-        final List<String> results = new ArrayList<String>(entries.size());
-        for (DocumentModel entry : entries) {
-            final Object value = entry.getProperty(getSchema(), columnName);
-            if (value == null) {
-                results.add(null);
-            } else {
-                results.add(value.toString());
+        return callSlaves("get projection", new SubDirectoryCall<List<String>>() {
+            @Override
+            public List<String> call(Session session) {
+                return session.getProjection(filter, fulltext, columnName);
             }
-        }
-        return results;
+        });
     }
 
     @Override
@@ -592,16 +1424,25 @@ public class ResilientDirectorySession extends BaseSession {
     }
 
     @Override
-    public boolean hasEntry(String id) {
+    public boolean hasEntry(final String id) {
         init();
         try {
-            boolean masterHasEntry = masterSubDirectoryInfo.getSession().hasEntry(id);
-            updateMasterOnSlaves(id, null, masterHasEntry);
+            boolean masterHasEntry = callMaster(new SubDirectoryCall<Boolean>() {
+                @Override
+                public Boolean call(Session session) {
+                    return Boolean.valueOf(session.hasEntry(id));
+                }
+            }).booleanValue();
+            synchronizeSlaves(SyncPolicy.Operation.HAS_ENTRY, id, null, masterHasEntry);
             return masterHasEntry;
         } catch (DirectoryException e) {
             log.warn(String.format(
                     "Unable to check if master directory '%s' has entry id '%s', fallback check on slaves ...",
                     masterSubDirectoryInfo.dirName, id), e);
+            PendingWrite pendingWrite = getDirectory().getPendingWrite(id);
+            if (pendingWrite != null) {
+                return !pendingWrite.isDeleted();
+            }
             return hasEntryOnSlave(id);
         }
     }
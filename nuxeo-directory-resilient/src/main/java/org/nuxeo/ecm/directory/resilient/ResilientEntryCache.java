@@ -0,0 +1,287 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Bounded cache of resilient directory entries, sitting above the master/slaves fallback chain.
+ * <p>
+ * An entry is fresh during {@code freshTtl} milliseconds after being loaded, and served directly. It is then stale
+ * until {@code staleTtl} milliseconds: it is still served, but refreshed in the background, and is the last resort
+ * when every sub-directory fails. Older entries are dropped. Entries read from a slave because the master failed are
+ * stored as stale right away, so that they are reloaded from the master on their next hit.
+ * <p>
+ * Entries are spread over segments, each one having its own lock and its own share of the maximum size, so that
+ * concurrent hits on different entries don't wait for each other. Eviction is done per segment.
+ * <p>
+ * Entries are stored as property maps and a new {@link DocumentModel} is built on each hit, so callers can't alter the
+ * cached data.
+ *
+ * @since 8.2
+ */
+public class ResilientEntryCache {
+
+    public enum Eviction {
+        /** Evicts the least recently used entry. */
+        LRU,
+        /** Evicts the least frequently used entry among the oldest ones. */
+        LFU;
+
+        public static Eviction fromValue(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return LRU;
+            }
+            for (Eviction eviction : values()) {
+                if (eviction.name().equalsIgnoreCase(value.trim())) {
+                    return eviction;
+                }
+            }
+            throw new DirectoryException(String.format("Unknown entry cache eviction '%s'", value));
+        }
+    }
+
+    /**
+     * Number of oldest entries among which the least frequently used one is evicted.
+     */
+    protected static final int LFU_EVICTION_SAMPLE = 16;
+
+    /**
+     * Maximum number of segments.
+     */
+    protected static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Minimum number of entries per segment, small caches having less segments.
+     */
+    protected static final int MIN_SEGMENT_SIZE = 64;
+
+    public static class CachedEntry {
+
+        protected final String id;
+
+        protected final Map<String, Object> properties;
+
+        protected final boolean readOnly;
+
+        protected final long loadTime;
+
+        protected final boolean stale;
+
+        protected int hits;
+
+        protected boolean refreshing;
+
+        protected CachedEntry(String id, Map<String, Object> properties, boolean readOnly, long loadTime,
+                boolean stale) {
+            this.id = id;
+            this.properties = properties;
+            this.readOnly = readOnly;
+            this.loadTime = loadTime;
+            this.stale = stale;
+        }
+
+        public DocumentModel toEntry(String schema) {
+            DocumentModel entry = BaseSession.createEntryModel(null, schema, id, properties);
+            if (readOnly) {
+                BaseSession.setReadOnlyEntry(entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * A share of the cached entries, guarded by its own lock.
+     */
+    protected class Segment {
+
+        protected final int maxSize;
+
+        protected final LinkedHashMap<String, CachedEntry> entries;
+
+        protected Segment(final int maxSize) {
+            this.maxSize = maxSize;
+            boolean accessOrder = eviction == Eviction.LRU;
+            entries = new LinkedHashMap<String, CachedEntry>(16, 0.75f, accessOrder) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+                    return eviction == Eviction.LRU && size() > maxSize;
+                }
+            };
+        }
+
+        protected void evictLeastFrequentlyUsed() {
+            Iterator<CachedEntry> it = entries.values().iterator();
+            CachedEntry victim = null;
+            for (int i = 0; i < LFU_EVICTION_SAMPLE && it.hasNext(); i++) {
+                CachedEntry cached = it.next();
+                if (victim == null || cached.hits < victim.hits) {
+                    victim = cached;
+                }
+            }
+            if (victim != null) {
+                entries.remove(victim.id);
+            }
+        }
+    }
+
+    protected final String schema;
+
+    protected final int maxSize;
+
+    protected final long freshTtl;
+
+    protected final long staleTtl;
+
+    protected final Eviction eviction;
+
+    protected final Segment[] segments;
+
+    public ResilientEntryCache(String schema, int maxSize, long freshTtl, long staleTtl, Eviction eviction) {
+        this.schema = schema;
+        this.maxSize = maxSize;
+        this.freshTtl = freshTtl;
+        this.staleTtl = Math.max(freshTtl, staleTtl);
+        this.eviction = eviction;
+        int count = Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // spread the remainder over the first segments
+            segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+        }
+    }
+
+    protected Segment getSegment(String id) {
+        int hash = id == null ? 0 : id.hashCode();
+        // spread the high bits, as for HashMap
+        hash ^= hash >>> 16;
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Returns the cached entry, fresh or stale, or {@code null} if none or if it is too old.
+     */
+    public CachedEntry get(String id) {
+        Segment segment = getSegment(id);
+        synchronized (segment) {
+            CachedEntry cached = segment.entries.get(id);
+            if (cached == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - cached.loadTime >= staleTtl) {
+                segment.entries.remove(id);
+                return null;
+            }
+            cached.hits++;
+            return cached;
+        }
+    }
+
+    public boolean isFresh(CachedEntry cached) {
+        return !cached.stale && System.currentTimeMillis() - cached.loadTime < freshTtl;
+    }
+
+    /**
+     * Flags a stale entry as being refreshed.
+     *
+     * @return {@code true} if the caller should refresh the entry, {@code false} if a refresh is already in progress
+     */
+    public boolean startRefresh(CachedEntry cached) {
+        synchronized (getSegment(cached.id)) {
+            if (cached.refreshing) {
+                return false;
+            }
+            cached.refreshing = true;
+            return true;
+        }
+    }
+
+    /**
+     * Clears the refresh flag of an entry whose refresh failed, so that a later hit can try again.
+     */
+    public void refreshFailed(String id) {
+        Segment segment = getSegment(id);
+        synchronized (segment) {
+            CachedEntry cached = segment.entries.get(id);
+            if (cached != null) {
+                cached.refreshing = false;
+            }
+        }
+    }
+
+    /**
+     * Caches an entry read from the master.
+     */
+    public void put(DocumentModel entry) {
+        put(entry, false);
+    }
+
+    /**
+     * Caches an entry.
+     *
+     * @param stale {@code true} if the entry was not read from the master, to serve it as stale right away
+     */
+    public void put(DocumentModel entry, boolean stale) {
+        CachedEntry cached = new CachedEntry(entry.getId(), entry.getProperties(schema),
+                BaseSession.isReadOnlyEntry(entry), System.currentTimeMillis(), stale);
+        Segment segment = getSegment(cached.id);
+        synchronized (segment) {
+            CachedEntry previous = segment.entries.put(cached.id, cached);
+            if (previous != null) {
+                cached.hits = previous.hits;
+            } else if (eviction == Eviction.LFU && segment.entries.size() > segment.maxSize) {
+                segment.evictLeastFrequentlyUsed();
+            }
+        }
+    }
+
+    public void invalidate(String id) {
+        Segment segment = getSegment(id);
+        synchronized (segment) {
+            segment.entries.remove(id);
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates the executors running the blocking sub-directory calls of a resilient directory off the request thread.
+ * <p>
+ * Virtual threads are created by reflection, so that this code still runs on JVMs without them. Whatever the mode, the
+ * number of pending calls is bounded and further calls are rejected with a {@link RejectedExecutionException}.
+ *
+ * @since 8.2
+ */
+public class ResilientExecutors {
+
+    private static final Log log = LogFactory.getLog(ResilientExecutors.class);
+
+    private ResilientExecutors() {
+        // utility class
+    }
+
+    /**
+     * @param name the prefix of the thread names
+     * @param poolSize the number of platform threads
+     * @param queueSize the number of calls waiting for a platform thread, or the number of in-flight calls when using
+     *            virtual threads
+     */
+    public static ExecutorService newExecutor(String name, ExecutorMode mode, int poolSize, int queueSize) {
+        if (mode != ExecutorMode.PLATFORM) {
+            ExecutorService executor = newVirtualThreadExecutor(name);
+            if (executor != null) {
+                log.debug(String.format("Using virtual threads for %s", name));
+                return new ThrottledExecutorService(executor, queueSize);
+            }
+            if (mode == ExecutorMode.VIRTUAL) {
+                log.warn(String.format("Virtual threads are not supported by this JVM, using a pool of %d threads for %s",
+                        Integer.valueOf(poolSize), name));
+            }
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), new ResilientDirectory.ResilientThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for each task, or {@code null} if not supported.
+     */
+    protected static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-",
+                    Long.valueOf(1));
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not available, or preview feature not enabled
+            return null;
+        }
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        ExecutorService executor = newVirtualThreadExecutor("Nuxeo-ResilientDirectory-Check");
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * Bounds the number of in-flight tasks of an executor that does not queue them.
+     */
+    protected static class ThrottledExecutorService extends AbstractExecutorService {
+
+        protected final ExecutorService delegate;
+
+        protected final Semaphore permits;
+
+        protected ThrottledExecutorService(ExecutorService delegate, int maxInFlight) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many in-flight tasks");
+            }
+            try {
+                delegate.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+}
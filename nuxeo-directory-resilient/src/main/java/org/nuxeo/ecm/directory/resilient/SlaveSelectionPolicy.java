@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * The order in which the slaves of a resilient directory are called when falling back from the master.
+ * <p>
+ * Whatever the policy, unavailable slaves (see {@link SubDirectoryHealth}) are only called as a last resort.
+ *
+ * @since 8.2
+ */
+public enum SlaveSelectionPolicy {
+
+    /**
+     * Slaves are called in their declaration order.
+     */
+    ORDERED("ordered"),
+
+    /**
+     * Each call starts with the next slave.
+     */
+    ROUND_ROBIN("roundRobin"),
+
+    /**
+     * Slaves are called by increasing average latency.
+     */
+    LEAST_LATENCY("leastLatency"),
+
+    /**
+     * Slaves are picked randomly according to their weight.
+     */
+    WEIGHTED("weighted");
+
+    private final String value;
+
+    private SlaveSelectionPolicy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static SlaveSelectionPolicy fromValue(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return ORDERED;
+        }
+        for (SlaveSelectionPolicy policy : values()) {
+            if (policy.value.equalsIgnoreCase(value.trim())) {
+                return policy;
+            }
+        }
+        throw new DirectoryException(String.format("Unknown slave selection policy '%s'", value));
+    }
+
+}
@@ -36,6 +36,14 @@ public class SubDirectoryDescriptor implements Cloneable {
     @XNode("@master")
     public String master;
 
+    /**
+     * Weight of a slave when using the {@link SlaveSelectionPolicy#WEIGHTED} policy.
+     *
+     * @since 8.2
+     */
+    @XNode("@weight")
+    public int weight = 1;
+
     @Override
     public String toString() {
         return String.format("{subdirectory name=%s ", name);
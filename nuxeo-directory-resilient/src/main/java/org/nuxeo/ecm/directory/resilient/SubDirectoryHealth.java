@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Rolling health and latency statistics of a sub-directory, shared by all the sessions of a resilient directory.
+ * <p>
+ * A sub-directory is considered unavailable once it has failed {@code failureThreshold} times in a row, until
+ * {@code retryDelay} milliseconds have elapsed since the last failure. After this delay a new call is allowed: a
+ * success makes it available again, a failure keeps it unavailable for another delay.
+ *
+ * @since 8.2
+ */
+public class SubDirectoryHealth {
+
+    private static final Log log = LogFactory.getLog(SubDirectoryHealth.class);
+
+    /**
+     * Weight of the last measure in the latency moving average.
+     */
+    protected static final double LATENCY_EWMA_ALPHA = 0.2;
+
+    protected final String dirName;
+
+    protected final int failureThreshold;
+
+    protected final long retryDelay;
+
+    protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    protected volatile long unavailableUntil;
+
+    protected volatile double latency;
+
+    public SubDirectoryHealth(String dirName, int failureThreshold, long retryDelay) {
+        this.dirName = dirName;
+        this.failureThreshold = failureThreshold;
+        this.retryDelay = retryDelay;
+    }
+
+    public String getDirectoryName() {
+        return dirName;
+    }
+
+    /**
+     * Returns {@code true} if the sub-directory is worth calling.
+     */
+    public boolean isAvailable() {
+        return consecutiveFailures.get() < failureThreshold || System.currentTimeMillis() >= unavailableUntil;
+    }
+
+    /**
+     * Returns the exponentially weighted moving average of the call latency, in milliseconds.
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+    public void recordSuccess(long elapsedNanos) {
+        updateLatency(elapsedNanos);
+        if (consecutiveFailures.getAndSet(0) >= failureThreshold) {
+            log.info(String.format("Sub directory '%s' is available again", dirName));
+        }
+    }
+
+    public void recordFailure(long elapsedNanos) {
+        updateLatency(elapsedNanos);
+        int failures = consecutiveFailures.incrementAndGet();
+        if (failures >= failureThreshold) {
+            unavailableUntil = System.currentTimeMillis() + retryDelay;
+            if (failures == failureThreshold) {
+                log.warn(String.format("Sub directory '%s' failed %d times in a row, skipping it for %d ms", dirName,
+                        failures, retryDelay));
+            }
+        }
+    }
+
+    /**
+     * Marks the sub-directory as unavailable right away, without waiting for the failure threshold to be reached.
+     * <p>
+     * Used when a health check fails, as a failing cheap check is a strong signal.
+     */
+    public void markUnavailable() {
+        unavailableUntil = System.currentTimeMillis() + retryDelay;
+        int failures;
+        do {
+            failures = consecutiveFailures.get();
+        } while (!consecutiveFailures.compareAndSet(failures, Math.max(failures + 1, failureThreshold)));
+        if (failures < failureThreshold) {
+            log.warn(String.format("Sub directory '%s' failed its health check, skipping it for %d ms", dirName,
+                    retryDelay));
+        }
+    }
+
+    protected synchronized void updateLatency(long elapsedNanos) {
+        double millis = elapsedNanos / 1000000.0;
+        latency = latency == 0 ? millis : LATENCY_EWMA_ALPHA * millis + (1 - LATENCY_EWMA_ALPHA) * latency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{directory=%s, available=%s, latency=%.1fms}", dirName, isAvailable(), latency);
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Periodic health check of a sub-directory: checks if a canary entry exists and records the outcome in the shared
+ * {@link SubDirectoryHealth}, so that sessions can skip an unavailable sub-directory without paying its timeout.
+ *
+ * @since 8.2
+ */
+public class SubDirectoryProbe implements Runnable {
+
+    private static final Log log = LogFactory.getLog(SubDirectoryProbe.class);
+
+    protected final SubDirectoryHealth health;
+
+    protected final String canaryId;
+
+    public SubDirectoryProbe(SubDirectoryHealth health, String canaryId) {
+        this.health = health;
+        this.canaryId = canaryId;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try (Session session = Framework.getService(DirectoryService.class).open(health.getDirectoryName())) {
+            session.hasEntry(canaryId);
+            health.recordSuccess(System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            // never let an exception escape, it would cancel the next checks
+            log.debug(String.format("Health check failed on sub directory '%s'", health.getDirectoryName()), e);
+            health.markUnavailable();
+        }
+    }
+
+}
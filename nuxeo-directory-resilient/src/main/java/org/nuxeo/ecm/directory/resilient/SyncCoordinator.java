@@ -0,0 +1,259 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Elects the single cluster node in charge of synchronizing entries from the master to the slaves.
+ * <p>
+ * Entries are spread over a fixed number of stripes, and time is cut in periods of the lease duration. The lease of a
+ * stripe for a period is an entry of a shared directory (typically a SQL directory in the slave database) using the
+ * {@code resilientlease} schema, whose id is made of the stripe and of the period. Creating it is the compare-and-set:
+ * the unique id lets a single node create it, this node owns the synchronization of the entries of the stripe until
+ * the end of the period, other nodes read the owner and skip these entries meanwhile. Leases are taken on demand, by
+ * the first node needing to synchronize an entry of the stripe in the period, and cached locally until they expire, so
+ * that the lease directory is called at most once per stripe and per period.
+ * <p>
+ * The entries skipped while another node owns their stripe are remembered, up to {@value #MAX_DEFERRED_ENTRIES} per
+ * stripe, and handed back by {@link #takeDeferred(String)} once this node owns the stripe, so that an entry read only
+ * by this node is not left unsynchronized because the owner never reads it.
+ * <p>
+ * The coordination is best-effort: if the lease directory is not available, or around the end of a period on nodes
+ * whose clocks differ, an entry may be synchronized by several nodes, which is harmless.
+ *
+ * @since 8.2
+ */
+public class SyncCoordinator {
+
+    private static final Log log = LogFactory.getLog(SyncCoordinator.class);
+
+    public static final String LEASE_SCHEMA = "resilientlease";
+
+    public static final String ID_FIELD = "id";
+
+    public static final String OWNER_FIELD = "owner";
+
+    public static final String EXPIRATION_FIELD = "expiration";
+
+    public static final String CLUSTER_NODE_ID_PROPERTY = "repository.clustering.id";
+
+    /**
+     * Default number of stripes over which entries are spread.
+     */
+    public static final int DEFAULT_LEASE_STRIPES = 16;
+
+    /**
+     * Maximum number of skipped entries remembered per stripe, the oldest ones are forgotten.
+     */
+    protected static final int MAX_DEFERRED_ENTRIES = 1000;
+
+    protected final String leaseDirectoryName;
+
+    protected final String scope;
+
+    protected final long leaseDuration;
+
+    protected final String nodeId;
+
+    protected final AtomicReferenceArray<Lease> leases;
+
+    protected final List<Set<String>> deferredEntries;
+
+    protected static class Lease {
+
+        final String owner;
+
+        final long expiration;
+
+        Lease(String owner, long expiration) {
+            this.owner = owner;
+            this.expiration = expiration;
+        }
+
+        boolean isValid(long now) {
+            return now < expiration;
+        }
+    }
+
+    public SyncCoordinator(String leaseDirectoryName, long leaseDuration, String nodeId) {
+        this(leaseDirectoryName, "", DEFAULT_LEASE_STRIPES, leaseDuration, nodeId);
+    }
+
+    /**
+     * @param scope prefix of the lease ids, so that several directories can share the same lease directory
+     * @param stripes the number of stripes over which entries are spread
+     */
+    public SyncCoordinator(String leaseDirectoryName, String scope, int stripes, long leaseDuration, String nodeId) {
+        if (stripes <= 0 || leaseDuration <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid lease stripes %d or duration %d",
+                    Integer.valueOf(stripes), Long.valueOf(leaseDuration)));
+        }
+        this.leaseDirectoryName = leaseDirectoryName;
+        this.scope = scope;
+        this.leaseDuration = leaseDuration;
+        this.nodeId = nodeId;
+        leases = new AtomicReferenceArray<Lease>(stripes);
+        deferredEntries = new ArrayList<Set<String>>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            deferredEntries.add(new LinkedHashSet<String>());
+        }
+    }
+
+    /**
+     * Returns the id of this node in the cluster, as configured by the {@value #CLUSTER_NODE_ID_PROPERTY} property, or
+     * a random one.
+     */
+    public static String getDefaultNodeId() {
+        String nodeId = Framework.getProperty(CLUSTER_NODE_ID_PROPERTY);
+        if (StringUtils.isBlank(nodeId)) {
+            nodeId = UUID.randomUUID().toString();
+        }
+        return nodeId;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    protected int getStripe(String entryId) {
+        int hash = entryId == null ? 0 : entryId.hashCode();
+        // spread the high bits, as for HashMap
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % leases.length();
+    }
+
+    /**
+     * Checks if this node is in charge of synchronizing the given entry, acquiring the lease of its stripe if possible.
+     * An entry owned by another node is remembered, see {@link #takeDeferred(String)}.
+     *
+     * @return {@code true} if this node should synchronize the entry
+     */
+    public boolean acquire(String entryId) {
+        int stripe = getStripe(entryId);
+        long now = System.currentTimeMillis();
+        Lease lease = leases.get(stripe);
+        if (lease == null || !lease.isValid(now)) {
+            try {
+                lease = acquireLease(stripe, now);
+            } catch (DirectoryException e) {
+                log.warn(String.format("Unable to acquire the synchronization lease of entry '%s' in directory '%s'",
+                        entryId, leaseDirectoryName), e);
+                return true;
+            }
+            leases.set(stripe, lease);
+        }
+        if (nodeId.equals(lease.owner)) {
+            return true;
+        }
+        Set<String> deferred = deferredEntries.get(stripe);
+        synchronized (deferred) {
+            deferred.add(entryId);
+            if (deferred.size() > MAX_DEFERRED_ENTRIES) {
+                Iterator<String> it = deferred.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns and forgets the entries skipped while another node owned the stripe of the given entry. To be called
+     * once this node owns it.
+     */
+    public List<String> takeDeferred(String entryId) {
+        Set<String> deferred = deferredEntries.get(getStripe(entryId));
+        synchronized (deferred) {
+            if (deferred.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<String> entryIds = new ArrayList<String>(deferred);
+            deferred.clear();
+            return entryIds;
+        }
+    }
+
+    protected String getLeaseId(int stripe, long period) {
+        return scope + "-" + stripe + "-" + period;
+    }
+
+    /**
+     * Takes the lease of a stripe for the current period by creating it, or reads its owner if another node created
+     * it first.
+     */
+    protected Lease acquireLease(int stripe, long now) throws DirectoryException {
+        long period = now / leaseDuration;
+        String leaseId = getLeaseId(stripe, period);
+        long expiration = (period + 1) * leaseDuration;
+        DirectoryService directoryService = Framework.getService(DirectoryService.class);
+        try (Session session = directoryService.open(leaseDirectoryName)) {
+            DocumentModel entry = session.getEntry(leaseId);
+            if (entry == null) {
+                Map<String, Object> fieldMap = new HashMap<String, Object>();
+                fieldMap.put(ID_FIELD, leaseId);
+                fieldMap.put(OWNER_FIELD, nodeId);
+                fieldMap.put(EXPIRATION_FIELD, Long.valueOf(expiration));
+                try {
+                    session.createEntry(fieldMap);
+                    deletePreviousLease(session, stripe, period);
+                    return new Lease(nodeId, expiration);
+                } catch (DirectoryException e) {
+                    // another node created the lease meanwhile
+                    entry = session.getEntry(leaseId);
+                    if (entry == null) {
+                        throw e;
+                    }
+                }
+            }
+            return new Lease((String) entry.getProperty(LEASE_SCHEMA, OWNER_FIELD), expiration);
+        }
+    }
+
+    /**
+     * Deletes the lease of the previous period, the current owner being the only node doing it.
+     */
+    protected void deletePreviousLease(Session session, int stripe, long period) {
+        try {
+            session.deleteEntry(getLeaseId(stripe, period - 1));
+        } catch (DirectoryException e) {
+            log.debug(String.format("Unable to delete the previous lease of stripe %d in directory '%s'",
+                    Integer.valueOf(stripe), leaseDirectoryName), e);
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Decides how the slaves are synchronized after an operation on the master.
+ * <ul>
+ * <li>{@link Mode#INLINE}: the slaves are synchronized before the operation returns.</li>
+ * <li>{@link Mode#ASYNC}: the slaves are synchronized in the background.</li>
+ * <li>{@link Mode#SAMPLED}: only a fraction of the operations ({@code rate}), and/or at most one operation per entry
+ * every {@code interval} milliseconds, synchronize the slaves inline.</li>
+ * <li>{@link Mode#DISABLED}: the slaves are not synchronized.</li>
+ * </ul>
+ *
+ * @since 8.2
+ */
+public class SyncPolicy {
+
+    public enum Operation {
+        AUTHENTICATE("authenticate"), GET_ENTRY("getEntry"), HAS_ENTRY("hasEntry"), QUERY("query"), WRITE("write");
+
+        private final String value;
+
+        private Operation(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public static Operation fromValue(String value) {
+            if (value != null) {
+                for (Operation operation : values()) {
+                    if (operation.value.equalsIgnoreCase(value.trim())) {
+                        return operation;
+                    }
+                }
+            }
+            throw new DirectoryException(String.format("Unknown synchronization operation '%s'", value));
+        }
+    }
+
+    public enum Mode {
+        INLINE, ASYNC, SAMPLED, DISABLED;
+
+        public static Mode fromValue(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return INLINE;
+            }
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+            throw new DirectoryException(String.format("Unknown synchronization mode '%s'", value));
+        }
+    }
+
+    /**
+     * Maximum number of remembered synchronizations, the oldest one being forgotten first.
+     */
+    protected static final int MAX_LAST_SYNCS = 10000;
+
+    protected final Operation operation;
+
+    protected final Mode mode;
+
+    protected final double rate;
+
+    protected final long interval;
+
+    /**
+     * Time of the last synchronization of the entries, ordered from the oldest one. Guarded by itself.
+     */
+    protected final Map<String, Long> lastSyncs = new LinkedHashMap<String, Long>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_LAST_SYNCS;
+        }
+    };
+
+    /**
+     * @param rate in sampled mode, the fraction of synchronized operations, negative if not set
+     * @param interval in sampled mode, the minimum delay between two synchronizations of an entry, 0 if not set
+     */
+    public SyncPolicy(Operation operation, Mode mode, double rate, long interval) {
+        if (mode == Mode.SAMPLED) {
+            if (operation == Operation.WRITE) {
+                throw new DirectoryException("The sampled synchronization mode is not supported for writes");
+            }
+            if (rate < 0 && interval <= 0) {
+                throw new DirectoryException(String.format(
+                        "The sampled synchronization of operation '%s' needs a rate or an interval", operation.value));
+            }
+        }
+        this.operation = operation;
+        this.mode = mode;
+        this.rate = rate < 0 ? 1 : Math.min(rate, 1);
+        this.interval = interval;
+    }
+
+    /**
+     * Returns the default policy, synchronizing inline.
+     */
+    public static SyncPolicy inline(Operation operation) {
+        return new SyncPolicy(operation, Mode.INLINE, -1, 0);
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Decides how the given entry is synchronized this time.
+     *
+     * @return {@link Mode#INLINE}, {@link Mode#ASYNC} or {@link Mode#DISABLED}
+     */
+    public Mode decide(String entryId) {
+        if (mode != Mode.SAMPLED) {
+            return mode;
+        }
+        if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+            return Mode.DISABLED;
+        }
+        if (interval > 0) {
+            long now = System.currentTimeMillis();
+            // checked and recorded at once, so that concurrent operations on
+            // the same entry don't both synchronize it
+            synchronized (lastSyncs) {
+                Long last = lastSyncs.get(entryId);
+                if (last != null && now - last.longValue() < interval) {
+                    return Mode.DISABLED;
+                }
+                // moved last, as the most recent synchronization
+                lastSyncs.remove(entryId);
+                lastSyncs.put(entryId, Long.valueOf(now));
+            }
+        }
+        return Mode.INLINE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{operation=%s, mode=%s}", operation.value, mode);
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Synchronization policy of the slaves for one type of operation, see {@link SyncPolicy}.
+ *
+ * @since 8.2
+ */
+@XObject("syncPolicy")
+public class SyncPolicyDescriptor implements Cloneable {
+
+    /**
+     * One of authenticate, getEntry, hasEntry, query or write.
+     */
+    @XNode("@operation")
+    public String operation;
+
+    /**
+     * One of inline (default), async, sampled or disabled.
+     */
+    @XNode("@mode")
+    public String mode;
+
+    /**
+     * In sampled mode, the fraction of the operations triggering a synchronization.
+     */
+    @XNode("@rate")
+    public Double rate;
+
+    /**
+     * In sampled mode, the minimum delay in milliseconds between two synchronizations of the same entry.
+     */
+    @XNode("@interval")
+    public Long interval;
+
+    public SyncPolicy.Operation getOperation() {
+        return SyncPolicy.Operation.fromValue(operation);
+    }
+
+    public SyncPolicy newSyncPolicy() {
+        return new SyncPolicy(getOperation(), SyncPolicy.Mode.fromValue(mode),
+                rate == null ? -1 : rate.doubleValue(), interval == null ? 0 : interval.longValue());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{syncPolicy operation=%s mode=%s}", operation, mode);
+    }
+
+    @Override
+    public SyncPolicyDescriptor clone() {
+        try {
+            return (SyncPolicyDescriptor) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.local;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Reference field stored inline in the entries of a {@link LocalDirectory}, as the list of the target ids.
+ *
+ * @since 8.2
+ */
+@XObject("inlineReference")
+public class InlineReferenceDescriptor implements Cloneable {
+
+    @XNode("@field")
+    public String field;
+
+    @XNode("@directory")
+    public String directory;
+
+    @Override
+    public String toString() {
+        return String.format("{inlineReference field=%s directory=%s}", field, directory);
+    }
+
+    @Override
+    public InlineReferenceDescriptor clone() {
+        try {
+            return (InlineReferenceDescriptor) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
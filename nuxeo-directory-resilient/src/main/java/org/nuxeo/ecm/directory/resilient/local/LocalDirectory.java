@@ -0,0 +1,189 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.local;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.directory.AbstractDirectory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Reference;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Directory storing its entries, hashed passwords and references in a local file (see {@link LocalEntryStore}).
+ * <p>
+ * Meant to be used as a slave of a resilient directory: fallback reads are local disk reads, and keep working when both
+ * the master and the SQL server are down.
+ *
+ * @since 8.2
+ */
+public class LocalDirectory extends AbstractDirectory {
+
+    protected final Map<String, Field> schemaFieldMap;
+
+    protected LocalEntryStore store;
+
+    public LocalDirectory(LocalDirectoryDescriptor descriptor) throws DirectoryException {
+        super(descriptor);
+        SchemaManager sm = Framework.getLocalService(SchemaManager.class);
+        Schema sch = sm.getSchema(descriptor.schemaName);
+        if (sch == null) {
+            throw new DirectoryException("Unknown schema : " + descriptor.schemaName);
+        }
+        schemaFieldMap = new LinkedHashMap<String, Field>();
+        for (Field f : sch.getFields()) {
+            schemaFieldMap.put(f.getName().getLocalName(), f);
+        }
+        if (!schemaFieldMap.containsKey(descriptor.idField)) {
+            throw new DirectoryException(String.format("Directory '%s' schema '%s' has no id field '%s'",
+                    descriptor.name, descriptor.schemaName, descriptor.idField));
+        }
+        InlineReferenceDescriptor[] inlineReferences = descriptor.getInlineReferences();
+        Reference[] references = new Reference[inlineReferences.length];
+        for (int i = 0; i < inlineReferences.length; i++) {
+            references[i] = new LocalReference(this, inlineReferences[i].field, inlineReferences[i].directory);
+        }
+        addReferences(references);
+    }
+
+    @Override
+    public LocalDirectoryDescriptor getDescriptor() {
+        return (LocalDirectoryDescriptor) descriptor;
+    }
+
+    public Map<String, Field> getSchemaFieldMap() {
+        return schemaFieldMap;
+    }
+
+    /**
+     * Returns the names of the reference fields stored inline.
+     */
+    public Set<String> getInlineReferenceFields() {
+        Set<String> fields = new HashSet<String>();
+        for (InlineReferenceDescriptor inlineReference : getDescriptor().getInlineReferences()) {
+            fields.add(inlineReference.field);
+        }
+        return fields;
+    }
+
+    /**
+     * Returns the store, opened on first use.
+     */
+    public synchronized LocalEntryStore getStore() throws DirectoryException {
+        if (store == null) {
+            LocalDirectoryDescriptor descriptor = getDescriptor();
+            LocalEntryStore newStore = new LocalEntryStore(descriptor.getStoreFile(), descriptor.isSyncWrites(),
+                    descriptor.getCompactionRatio(), descriptor.getDecodedCacheSize());
+            newStore.open();
+            store = newStore;
+        }
+        return store;
+    }
+
+    /**
+     * Stores a new entry.
+     *
+     * @return {@code false} if an entry with the same id already exists
+     */
+    protected synchronized boolean createStoredEntry(String id, Map<String, Object> properties)
+            throws DirectoryException {
+        LocalEntryStore store = getStore();
+        if (store.contains(id)) {
+            return false;
+        }
+        store.put(id, properties);
+        return true;
+    }
+
+    /**
+     * Updates some properties of a stored entry, leaving the others untouched.
+     *
+     * @return {@code false} if the entry does not exist
+     */
+    protected synchronized boolean updateStoredEntry(String id, Map<String, Object> changes)
+            throws DirectoryException {
+        LocalEntryStore store = getStore();
+        Map<String, Object> properties = store.get(id);
+        if (properties == null) {
+            return false;
+        }
+        properties.putAll(changes);
+        store.put(id, properties);
+        return true;
+    }
+
+    protected synchronized boolean deleteStoredEntry(String id) throws DirectoryException {
+        return getStore().remove(id);
+    }
+
+    /**
+     * Deletes a stored entry if its properties have the given values.
+     *
+     * @return {@code false} if the entry does not exist or does not match
+     */
+    protected synchronized boolean deleteStoredEntry(String id, Map<String, String> values) throws DirectoryException {
+        LocalEntryStore store = getStore();
+        Map<String, Object> properties = store.get(id);
+        if (properties == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            Object actual = properties.get(value.getKey());
+            String expected = value.getValue();
+            if (actual == null ? expected != null : !actual.toString().equals(expected)) {
+                return false;
+            }
+        }
+        return store.remove(id);
+    }
+
+    /**
+     * Invalidates the given entries in the cache of this directory after a write.
+     */
+    protected void invalidateEntries(String... ids) throws DirectoryException {
+        getCache().invalidate(Arrays.asList(ids));
+    }
+
+    @Override
+    public Session getSession() throws DirectoryException {
+        LocalDirectorySession session = new LocalDirectorySession(this);
+        addSession(session);
+        return session;
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        synchronized (this) {
+            if (store != null) {
+                store.close();
+                store = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.local;
+
+import java.io.File;
+
+import org.nuxeo.common.Environment;
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeList;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.ecm.directory.BaseDirectoryDescriptor;
+import org.nuxeo.ecm.directory.PasswordHelper;
+
+/**
+ * Local directory descriptor.
+ *
+ * @since 8.2
+ */
+@XObject("directory")
+public class LocalDirectoryDescriptor extends BaseDirectoryDescriptor {
+
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    public static final String DEFAULT_PASSWORD_HASH_ALGORITHM = PasswordHelper.SSHA;
+
+    /**
+     * Path of the store file, by default {@code resilient/<name>.store} in the Nuxeo data directory.
+     */
+    @XNode("storeFile")
+    protected String storeFile;
+
+    /**
+     * Whether each write is forced to disk before returning, {@code true} by default.
+     */
+    @XNode("syncWrites")
+    protected Boolean syncWrites;
+
+    /**
+     * Fraction of overwritten or deleted records above which the store file is compacted.
+     */
+    @XNode("compactionRatio")
+    protected Double compactionRatio;
+
+    /**
+     * Number of entries kept decoded in memory, 0 to disable, {@link LocalEntryStore#DEFAULT_DECODED_CACHE_SIZE} by
+     * default.
+     */
+    @XNode("decodedCacheSize")
+    protected Integer decodedCacheSize;
+
+    /**
+     * Algorithm used to hash the passwords that are not already hashed, SSHA by default.
+     */
+    @XNode("passwordHashAlgorithm")
+    protected String hashAlgorithm;
+
+    @XNodeList(value = "references/inlineReference", type = InlineReferenceDescriptor[].class, componentType = InlineReferenceDescriptor.class)
+    protected InlineReferenceDescriptor[] inlineReferences;
+
+    public File getStoreFile() {
+        if (storeFile != null) {
+            return new File(storeFile);
+        }
+        Environment env = Environment.getDefault();
+        File dataDir = env == null ? new File(System.getProperty("java.io.tmpdir")) : env.getData();
+        return new File(new File(dataDir, "resilient"), name + ".store");
+    }
+
+    public boolean isSyncWrites() {
+        return syncWrites == null || syncWrites.booleanValue();
+    }
+
+    public double getCompactionRatio() {
+        return compactionRatio == null ? DEFAULT_COMPACTION_RATIO : compactionRatio.doubleValue();
+    }
+
+    public int getDecodedCacheSize() {
+        return decodedCacheSize == null ? LocalEntryStore.DEFAULT_DECODED_CACHE_SIZE : decodedCacheSize.intValue();
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm == null ? DEFAULT_PASSWORD_HASH_ALGORITHM : hashAlgorithm;
+    }
+
+    public InlineReferenceDescriptor[] getInlineReferences() {
+        return inlineReferences == null ? new InlineReferenceDescriptor[0] : inlineReferences;
+    }
+
+    @Override
+    public void merge(BaseDirectoryDescriptor other) {
+        super.merge(other);
+        if (other instanceof LocalDirectoryDescriptor) {
+            merge((LocalDirectoryDescriptor) other);
+        }
+    }
+
+    protected void merge(LocalDirectoryDescriptor other) {
+        if (other.storeFile != null) {
+            storeFile = other.storeFile;
+        }
+        if (other.syncWrites != null) {
+            syncWrites = other.syncWrites;
+        }
+        if (other.compactionRatio != null) {
+            compactionRatio = other.compactionRatio;
+        }
+        if (other.decodedCacheSize != null) {
+            decodedCacheSize = other.decodedCacheSize;
+        }
+        if (other.hashAlgorithm != null) {
+            hashAlgorithm = other.hashAlgorithm;
+        }
+        if (other.inlineReferences != null && other.inlineReferences.length != 0) {
+            inlineReferences = other.inlineReferences;
+        }
+    }
+
+    @Override
+    public LocalDirectoryDescriptor clone() {
+        LocalDirectoryDescriptor clone = (LocalDirectoryDescriptor) super.clone();
+        // basic fields are already copied by super.clone()
+        if (inlineReferences != null) {
+            clone.inlineReferences = new InlineReferenceDescriptor[inlineReferences.length];
+            for (int i = 0; i < inlineReferences.length; i++) {
+                clone.inlineReferences[i] = inlineReferences[i].clone();
+            }
+        }
+        return clone;
+    }
+
+    @Override
+    public LocalDirectory newDirectory() {
+        return new LocalDirectory(this);
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.local;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.model.PropertyNotFoundException;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.PasswordHelper;
+
+/**
+ * Session of a {@link LocalDirectory}.
+ * <p>
+ * Passwords are stored hashed and never returned in entries. Queries scan the local store.
+ *
+ * @since 8.2
+ */
+public class LocalDirectorySession extends BaseSession {
+
+    public LocalDirectorySession(LocalDirectory directory) {
+        super(directory);
+    }
+
+    @Override
+    public LocalDirectory getDirectory() {
+        return (LocalDirectory) directory;
+    }
+
+    protected String getSchema() {
+        return directory.getSchema();
+    }
+
+    protected LocalEntryStore getStore() {
+        return getDirectory().getStore();
+    }
+
+    protected void checkWritable() throws DirectoryException {
+        if (isReadOnly()) {
+            throw new DirectoryException(String.format("Directory '%s' is in read-only mode", directory.getName()));
+        }
+    }
+
+    /**
+     * Converts a field map into the properties to store: schema fields only, by local name, with the password hashed.
+     * A {@code null} password or inline reference is ignored, so that entries read without them don't erase them.
+     */
+    protected Map<String, Object> toStoredProperties(Map<String, Object> fieldMap) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        Set<String> referenceFields = getDirectory().getInlineReferenceFields();
+        for (Field field : getDirectory().getSchemaFieldMap().values()) {
+            String name = field.getName().getLocalName();
+            String prefixedName = field.getName().getPrefixedName();
+            Object value;
+            if (fieldMap.containsKey(name)) {
+                value = fieldMap.get(name);
+            } else if (fieldMap.containsKey(prefixedName)) {
+                value = fieldMap.get(prefixedName);
+            } else {
+                continue;
+            }
+            if (name.equals(getPasswordField())) {
+                if (value == null) {
+                    continue;
+                }
+                String password = value.toString();
+                if (!PasswordHelper.isHashed(password)) {
+                    password = PasswordHelper.hashPassword(password, getDirectory().getDescriptor().getHashAlgorithm());
+                }
+                value = password;
+            } else if (value == null && referenceFields.contains(name)) {
+                continue;
+            }
+            properties.put(name, value);
+        }
+        return properties;
+    }
+
+    protected DocumentModel toEntry(String id, Map<String, Object> properties, boolean fetchReferences) {
+        Map<String, Object> map = new HashMap<String, Object>(properties);
+        if (getPasswordField() != null) {
+            map.remove(getPasswordField());
+        }
+        if (!fetchReferences) {
+            for (String field : getDirectory().getInlineReferenceFields()) {
+                map.remove(field);
+            }
+        }
+        DocumentModel entry = BaseSession.createEntryModel(null, getSchema(), id, map);
+        if (isReadOnly()) {
+            setReadOnlyEntry(entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public boolean authenticate(String username, String password) throws DirectoryException {
+        Map<String, Object> properties = getStore().get(username);
+        if (properties == null || password == null || getPasswordField() == null) {
+            return false;
+        }
+        Object storedPassword = properties.get(getPasswordField());
+        return storedPassword != null && PasswordHelper.verifyPassword(password, storedPassword.toString());
+    }
+
+    @Override
+    public void close() throws DirectoryException {
+        getDirectory().removeSession(this);
+    }
+
+    @Override
+    public DocumentModel createEntry(Map<String, Object> fieldMap) throws DirectoryException {
+        checkWritable();
+        Map<String, Object> properties = toStoredProperties(fieldMap);
+        Object rawid = properties.get(getIdField());
+        if (rawid == null) {
+            throw new DirectoryException(String.format("Entry is missing id field '%s'", getIdField()));
+        }
+        String id = String.valueOf(rawid);
+        if (!getDirectory().createStoredEntry(id, properties)) {
+            throw new DirectoryException(String.format("Entry with id %s already exists in directory %s", id,
+                    directory.getName()));
+        }
+        getDirectory().invalidateEntries(id);
+        return toEntry(id, properties, true);
+    }
+
+    @Override
+    public DocumentModel createEntry(DocumentModel entry) {
+        Map<String, Object> fieldMap = entry.getProperties(getSchema());
+        return createEntry(fieldMap);
+    }
+
+    @Override
+    public DocumentModel getEntry(String id) throws DirectoryException {
+        return getEntry(id, true);
+    }
+
+    @Override
+    public DocumentModel getEntry(String id, boolean fetchReferences) throws DirectoryException {
+        Map<String, Object> properties = getStore().get(id);
+        if (properties == null) {
+            return null;
+        }
+        return toEntry(id, properties, fetchReferences);
+    }
+
+    @Override
+    public DocumentModelList getEntries() throws DirectoryException {
+        DocumentModelList list = new DocumentModelListImpl();
+        for (String id : getStore().ids()) {
+            DocumentModel entry = getEntry(id);
+            if (entry != null) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void updateEntry(DocumentModel docModel) throws DirectoryException {
+        if (isReadOnly() || isReadOnlyEntry(docModel)) {
+            return;
+        }
+        Map<String, Object> changes = toStoredProperties(docModel.getProperties(getSchema()));
+        changes.remove(getIdField());
+        if (!getDirectory().updateStoredEntry(docModel.getId(), changes)) {
+            throw new DirectoryException(String.format("Entry with id %s does not exist in directory %s",
+                    docModel.getId(), directory.getName()));
+        }
+        getDirectory().invalidateEntries(docModel.getId());
+    }
+
+    @Override
+    public void deleteEntry(DocumentModel docModel) throws DirectoryException {
+        deleteEntry(docModel.getId());
+    }
+
+    @Override
+    public void deleteEntry(String id) throws DirectoryException {
+        checkWritable();
+        if (getDirectory().deleteStoredEntry(id)) {
+            getDirectory().invalidateEntries(id);
+        }
+    }
+
+    @Override
+    public void deleteEntry(String id, Map<String, String> map) throws DirectoryException {
+        checkWritable();
+        if (getDirectory().deleteStoredEntry(id, map)) {
+            getDirectory().invalidateEntries(id);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return getDirectory().getDescriptor().isReadOnly();
+    }
+
+    @Override
+    public DocumentModelList query(Map<String, Serializable> filter) throws DirectoryException {
+        return query(filter, Collections.<String> emptySet());
+    }
+
+    @Override
+    public DocumentModelList query(Map<String, Serializable> filter, Set<String> fulltext) throws DirectoryException {
+        return query(filter, fulltext, Collections.<String, String> emptyMap());
+    }
+
+    @Override
+    public DocumentModelList query(Map<String, Serializable> filter, Set<String> fulltext, Map<String, String> orderBy)
+            throws DirectoryException {
+        return query(filter, fulltext, orderBy, true);
+    }
+
+    @Override
+    public DocumentModelList query(Map<String, Serializable> filter, Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences) throws DirectoryException {
+        DocumentModelList results = new DocumentModelListImpl();
+        LocalEntryStore store = getStore();
+        for (String id : store.ids()) {
+            Map<String, Object> properties = store.get(id);
+            if (properties != null && matches(properties, filter, fulltext)) {
+                results.add(toEntry(id, properties, fetchReferences));
+            }
+        }
+        // order entries
+        if (orderBy != null && !orderBy.isEmpty()) {
+            getDirectory().orderEntries(results, orderBy);
+        }
+        return results;
+    }
+
+    /**
+     * Checks the stored properties of an entry against a query filter. Unknown fields and the password field are
+     * ignored, fulltext fields match case-insensitive substrings.
+     */
+    protected boolean matches(Map<String, Object> properties, Map<String, Serializable> filter, Set<String> fulltext) {
+        Map<String, Field> schemaFieldMap = getDirectory().getSchemaFieldMap();
+        for (Map.Entry<String, Serializable> criterion : filter.entrySet()) {
+            String fieldName = criterion.getKey();
+            if (!schemaFieldMap.containsKey(fieldName) || fieldName.equals(getPasswordField())) {
+                continue;
+            }
+            Object expected = criterion.getValue();
+            Object actual = properties.get(fieldName);
+            if (expected == null || actual == null) {
+                if (expected != actual) {
+                    return false;
+                }
+            } else if (fulltext != null && fulltext.contains(fieldName)) {
+                if (!actual.toString().toLowerCase().contains(expected.toString().toLowerCase())) {
+                    return false;
+                }
+            } else if (!actual.equals(expected) && !actual.toString().equals(expected.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> getProjection(Map<String, Serializable> filter, String columnName) throws DirectoryException {
+        return getProjection(filter, Collections.<String> emptySet(), columnName);
+    }
+
+    @Override
+    public List<String> getProjection(Map<String, Serializable> filter, Set<String> fulltext, String columnName)
+            throws DirectoryException {
+        DocumentModelList l = query(filter, fulltext, Collections.<String, String> emptyMap(), false);
+        List<String> results = new ArrayList<String>(l.size());
+        for (DocumentModel doc : l) {
+            Object value;
+            try {
+                value = doc.getProperty(getSchema(), columnName);
+            } catch (PropertyNotFoundException e) {
+                throw new DirectoryException(e);
+            }
+            if (value != null) {
+                results.add(value.toString());
+            } else {
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public boolean hasEntry(String id) throws DirectoryException {
+        return getStore().contains(id);
+    }
+
+}
@@ -0,0 +1,537 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.local;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Append-only key-value file storing the entries of a {@link LocalDirectory}, with an on-heap index of the position of
+ * the last record of each entry.
+ * <p>
+ * The file starts with a header (magic number and version), followed by records made of their payload length, the CRC32
+ * of the payload and the payload itself: an operation ({@code PUT} or {@code DELETE}), the entry id and, for
+ * {@code PUT}, its properties encoded by {@link LocalValueCodec}.
+ * <p>
+ * On open, the file is memory-mapped and scanned once to build the index, without decoding the properties. A torn or
+ * corrupted record at the end of the file, left by a crash during a write, is truncated. A corrupted record followed
+ * by valid ones is skipped and logged, its entry keeping its previous record if any. A file whose records can't be
+ * delimited anymore after a corrupted one is not opened, and left untouched. Writes are appended and optionally forced
+ * to disk before returning. Reads are positional reads, served from the OS page cache once warm.
+ * <p>
+ * Up to {@code decodedCacheSize} entries are kept decoded on-heap, so that scans of the whole store (queries) don't
+ * decode every record on each call. A cached entry is used only while the index still points to the record it was
+ * decoded from.
+ * <p>
+ * When overwritten and deleted records make up more than {@code compactionRatio} of the file, live records are copied
+ * to a temporary file which atomically replaces the store, so that a crash during compaction leaves the previous file
+ * intact.
+ *
+ * @since 8.2
+ */
+public class LocalEntryStore {
+
+    private static final Log log = LogFactory.getLog(LocalEntryStore.class);
+
+    protected static final int MAGIC = 0x4e584c44; // NXLD
+
+    protected static final int VERSION = 1;
+
+    protected static final int HEADER_SIZE = 8;
+
+    /** Payload length and CRC. */
+    protected static final int RECORD_HEADER_SIZE = 8;
+
+    protected static final byte PUT = 1;
+
+    protected static final byte DELETE = 2;
+
+    /**
+     * Files smaller than this are never compacted.
+     */
+    protected static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    protected static final String TMP_SUFFIX = ".tmp";
+
+    public static final int DEFAULT_DECODED_CACHE_SIZE = 10000;
+
+    protected static class Location {
+
+        final long position;
+
+        final int length;
+
+        Location(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    protected static class Decoded {
+
+        final Location location;
+
+        final Map<String, Object> properties;
+
+        Decoded(Location location, Map<String, Object> properties) {
+            this.location = location;
+            this.properties = properties;
+        }
+    }
+
+    protected final Path path;
+
+    protected final boolean syncWrites;
+
+    protected final double compactionRatio;
+
+    protected final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+    protected final int decodedCacheSize;
+
+    /**
+     * Decoded properties of the most read entries. Once full, newly read entries are not cached until some are
+     * removed.
+     */
+    protected final ConcurrentMap<String, Decoded> decoded = new ConcurrentHashMap<String, Decoded>();
+
+    /**
+     * Readers hold the read lock, compaction holds the write lock while it replaces the file.
+     */
+    protected final ReadWriteLock channelLock = new ReentrantReadWriteLock();
+
+    protected FileChannel channel;
+
+    /** End of the valid data, where the next record is appended. Guarded by {@code this}. */
+    protected long end;
+
+    /** Size of the records that are overwritten or deleted. Guarded by {@code this}. */
+    protected long garbage;
+
+    public LocalEntryStore(File file, boolean syncWrites, double compactionRatio) {
+        this(file, syncWrites, compactionRatio, DEFAULT_DECODED_CACHE_SIZE);
+    }
+
+    /**
+     * @param decodedCacheSize the maximum number of entries kept decoded on-heap, 0 to disable
+     */
+    public LocalEntryStore(File file, boolean syncWrites, double compactionRatio, int decodedCacheSize) {
+        this.path = file.toPath();
+        this.syncWrites = syncWrites;
+        this.compactionRatio = compactionRatio;
+        this.decodedCacheSize = decodedCacheSize;
+    }
+
+    public synchronized void open() throws DirectoryException {
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            // leftover of a compaction interrupted before the atomic move
+            Files.deleteIfExists(getTmpPath());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            load();
+        } catch (IOException e) {
+            closeQuietly();
+            throw new DirectoryException("Unable to open local directory store " + path, e);
+        }
+    }
+
+    protected void load() throws IOException {
+        index.clear();
+        decoded.clear();
+        garbage = 0;
+        long size = channel.size();
+        if (size == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header, 0);
+            channel.force(true);
+            end = HEADER_SIZE;
+            return;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Local directory store too large to be mapped: " + path);
+        }
+        if (size < HEADER_SIZE) {
+            throw new IOException("Truncated header in local directory store " + path);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a local directory store: " + path);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported version %d of local directory store %s", version, path));
+        }
+        CRC32 crc = new CRC32();
+        long position = HEADER_SIZE;
+        // position of the first corrupted record skipped, -1 if none
+        long corrupted = -1;
+        while (size - position >= RECORD_HEADER_SIZE) {
+            buffer.position((int) position);
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            int recordLength = RECORD_HEADER_SIZE + length;
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                if (position + recordLength == size) {
+                    // last record, torn by a crash
+                    break;
+                }
+                log.warn(String.format("Skipping corrupted record of %d bytes at position %d of %s",
+                        Integer.valueOf(recordLength), Long.valueOf(position), path));
+                if (corrupted < 0) {
+                    corrupted = position;
+                }
+                garbage += recordLength;
+                position += recordLength;
+                continue;
+            }
+            byte op = payload.get();
+            String id = readId(payload);
+            Location previous;
+            if (op == PUT) {
+                previous = index.put(id, new Location(position, recordLength));
+            } else {
+                previous = index.remove(id);
+                garbage += recordLength;
+            }
+            if (previous != null) {
+                garbage += previous.length;
+            }
+            position += recordLength;
+        }
+        if (position < size && corrupted >= 0) {
+            // the length of the corrupted record may be wrong too, the
+            // records after it would be lost by a truncation
+            throw new IOException(String.format(
+                    "Corrupted record at position %d of local directory store %s, records can't be read after position %d",
+                    Long.valueOf(corrupted), path, Long.valueOf(position)));
+        }
+        end = position;
+        if (end < size) {
+            log.warn(String.format("Truncating %d bytes of incomplete or corrupted records at the end of %s",
+                    Long.valueOf(size - end), path));
+            channel.truncate(end);
+            channel.force(true);
+        }
+    }
+
+    protected static String readId(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public boolean contains(String id) {
+        return index.containsKey(id);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns a snapshot of the ids of the stored entries.
+     */
+    public Set<String> ids() {
+        return Collections.unmodifiableSet(new HashSet<String>(index.keySet()));
+    }
+
+    /**
+     * Returns the properties of an entry, or {@code null} if not stored.
+     */
+    public Map<String, Object> get(String id) throws DirectoryException {
+        channelLock.readLock().lock();
+        try {
+            Location location = index.get(id);
+            if (location == null) {
+                return null;
+            }
+            Decoded cached = decoded.get(id);
+            if (cached != null && cached.location == location) {
+                return LocalValueCodec.copyProperties(cached.properties);
+            }
+            checkOpen();
+            ByteBuffer record = ByteBuffer.allocate(location.length);
+            readFully(channel, record, location.position);
+            record.flip();
+            int length = record.getInt();
+            int checksum = record.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_HEADER_SIZE, length);
+            if ((int) crc.getValue() != checksum) {
+                throw new DirectoryException(String.format("Corrupted record for entry '%s' in %s", id, path));
+            }
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(record.array(), RECORD_HEADER_SIZE, length));
+            in.readByte();
+            LocalValueCodec.readString(in);
+            Map<String, Object> properties = LocalValueCodec.readProperties(in);
+            if (cached != null || decoded.size() < decodedCacheSize) {
+                decoded.put(id, new Decoded(location, LocalValueCodec.copyProperties(properties)));
+            }
+            return properties;
+        } catch (IOException e) {
+            throw new DirectoryException(String.format("Unable to read entry '%s' from %s", id, path), e);
+        } finally {
+            channelLock.readLock().unlock();
+        }
+    }
+
+    public void put(String id, Map<String, ?> properties) throws DirectoryException {
+        byte[] record = encodeRecord(PUT, id, properties);
+        synchronized (this) {
+            long position = append(record);
+            Location previous = index.put(id, new Location(position, record.length));
+            if (previous != null) {
+                garbage += previous.length;
+                decoded.remove(id);
+            }
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * @return {@code true} if the entry was stored
+     */
+    public boolean remove(String id) throws DirectoryException {
+        byte[] record = encodeRecord(DELETE, id, null);
+        synchronized (this) {
+            if (!index.containsKey(id)) {
+                return false;
+            }
+            append(record);
+            Location previous = index.remove(id);
+            decoded.remove(id);
+            garbage += previous.length + record.length;
+            compactIfNeeded();
+            return true;
+        }
+    }
+
+    protected static byte[] encodeRecord(byte op, String id, Map<String, ?> properties) throws DirectoryException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            // room for the record header
+            out.writeLong(0);
+            out.writeByte(op);
+            LocalValueCodec.writeString(out, id);
+            if (properties != null) {
+                LocalValueCodec.writeProperties(out, properties);
+            }
+            out.flush();
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int length = record.capacity() - RECORD_HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_HEADER_SIZE, length);
+            record.putInt(0, length);
+            record.putInt(4, (int) crc.getValue());
+            return record.array();
+        } catch (IOException e) {
+            throw new DirectoryException(String.format("Unable to encode entry '%s'", id), e);
+        }
+    }
+
+    /**
+     * Appends a record at the end of the file, must be called while synchronized.
+     *
+     * @return the position of the record
+     */
+    protected long append(byte[] record) throws DirectoryException {
+        checkOpen();
+        long position = end;
+        try {
+            writeFully(channel, ByteBuffer.wrap(record), position);
+            if (syncWrites) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new DirectoryException("Unable to write to local directory store " + path, e);
+        }
+        end = position + record.length;
+        return position;
+    }
+
+    protected void compactIfNeeded() throws DirectoryException {
+        if (end >= MIN_COMPACTION_SIZE && garbage > compactionRatio * end) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the store with its live records only.
+     */
+    public synchronized void compact() throws DirectoryException {
+        checkOpen();
+        Path tmpPath = getTmpPath();
+        channelLock.writeLock().lock();
+        try {
+            Map<String, Location> compacted = new HashMap<String, Location>(index.size() * 2);
+            try (FileChannel tmp = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(tmp, header, 0);
+                long position = HEADER_SIZE;
+                // copy records in file order to keep reads sequential
+                List<Map.Entry<String, Location>> live = new ArrayList<Map.Entry<String, Location>>(index.entrySet());
+                Collections.sort(live, new Comparator<Map.Entry<String, Location>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Location> e1, Map.Entry<String, Location> e2) {
+                        return Long.compare(e1.getValue().position, e2.getValue().position);
+                    }
+                });
+                for (Map.Entry<String, Location> entry : live) {
+                    Location location = entry.getValue();
+                    long copied = 0;
+                    while (copied < location.length) {
+                        copied += channel.transferTo(location.position + copied, location.length - copied,
+                                tmp.position(position + copied));
+                    }
+                    compacted.put(entry.getKey(), new Location(position, location.length));
+                    position += location.length;
+                }
+                tmp.force(true);
+            }
+            channel.close();
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long previousSize = end;
+            end = channel.size();
+            garbage = 0;
+            index.clear();
+            index.putAll(compacted);
+            // records moved, decoded again on next read
+            decoded.clear();
+            log.debug(String.format("Compacted %s from %d to %d bytes", path, Long.valueOf(previousSize),
+                    Long.valueOf(end)));
+        } catch (IOException e) {
+            // the previous file is left untouched unless the move succeeded
+            try {
+                if (channel == null || !channel.isOpen()) {
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    load();
+                }
+            } catch (IOException ee) {
+                e.addSuppressed(ee);
+                channel = null;
+            }
+            throw new DirectoryException("Unable to compact local directory store " + path, e);
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    protected Path getTmpPath() {
+        return path.resolveSibling(path.getFileName() + TMP_SUFFIX);
+    }
+
+    public synchronized long getFileSize() {
+        return end;
+    }
+
+    public synchronized long getGarbageSize() {
+        return garbage;
+    }
+
+    public synchronized void close() {
+        channelLock.writeLock().lock();
+        try {
+            closeQuietly();
+            index.clear();
+            decoded.clear();
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    protected void closeQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("Unable to close local directory store " + path, e);
+            }
+            channel = null;
+        }
+    }
+
+    protected void checkOpen() throws DirectoryException {
+        if (channel == null) {
+            throw new DirectoryException("Local directory store is closed: " + path);
+        }
+    }
+
+    protected static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    protected static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.local;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.AbstractReference;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Reference whose target ids are stored inline, as a list property of the source entries of a {@link LocalDirectory}.
+ *
+ * @since 8.2
+ */
+public class LocalReference extends AbstractReference {
+
+    private static final Log log = LogFactory.getLog(LocalReference.class);
+
+    protected final LocalDirectory dir;
+
+    LocalReference(LocalDirectory dir, String fieldName, String targetDirectoryName) {
+        this.dir = dir;
+        this.fieldName = fieldName;
+        this.sourceDirectoryName = dir.getName();
+        this.targetDirectoryName = targetDirectoryName;
+    }
+
+    protected static List<String> toIds(Object value) {
+        List<String> ids = new ArrayList<String>();
+        if (value instanceof Object[]) {
+            value = Arrays.asList((Object[]) value);
+        }
+        if (value instanceof Collection) {
+            for (Object id : (Collection<?>) value) {
+                if (id != null) {
+                    ids.add(id.toString());
+                }
+            }
+        }
+        return ids;
+    }
+
+    protected void setTargetIds(String sourceId, Collection<String> targetIds) throws DirectoryException {
+        Map<String, Object> changes = Collections.<String, Object> singletonMap(fieldName,
+                new ArrayList<Serializable>(targetIds));
+        if (dir.updateStoredEntry(sourceId, changes)) {
+            dir.invalidateEntries(sourceId);
+        } else {
+            log.debug(String.format("Unable to set the '%s' references of unknown entry '%s' in directory '%s'",
+                    fieldName, sourceId, dir.getName()));
+        }
+    }
+
+    @Override
+    public List<String> getTargetIdsForSource(String sourceId) throws DirectoryException {
+        Map<String, Object> properties = dir.getStore().get(sourceId);
+        if (properties == null) {
+            return new ArrayList<String>();
+        }
+        return toIds(properties.get(fieldName));
+    }
+
+    @Override
+    public List<String> getSourceIdsForTarget(String targetId) throws DirectoryException {
+        List<String> sourceIds = new ArrayList<String>();
+        LocalEntryStore store = dir.getStore();
+        for (String sourceId : store.ids()) {
+            Map<String, Object> properties = store.get(sourceId);
+            if (properties != null && toIds(properties.get(fieldName)).contains(targetId)) {
+                sourceIds.add(sourceId);
+            }
+        }
+        return sourceIds;
+    }
+
+    @Override
+    public void addLinks(String sourceId, List<String> targetIds) throws DirectoryException {
+        if (targetIds == null || targetIds.isEmpty()) {
+            return;
+        }
+        synchronized (dir) {
+            Set<String> ids = new LinkedHashSet<String>(getTargetIdsForSource(sourceId));
+            if (ids.addAll(targetIds)) {
+                setTargetIds(sourceId, ids);
+            }
+        }
+    }
+
+    @Override
+    public void addLinks(List<String> sourceIds, String targetId) throws DirectoryException {
+        if (sourceIds == null) {
+            return;
+        }
+        for (String sourceId : sourceIds) {
+            addLinks(sourceId, Collections.singletonList(targetId));
+        }
+    }
+
+    @Override
+    public void removeLinksForSource(String sourceId) throws DirectoryException {
+        setTargetIds(sourceId, Collections.<String> emptyList());
+    }
+
+    @Override
+    public void removeLinksForTarget(String targetId) throws DirectoryException {
+        setSourceIdsForTarget(targetId, Collections.<String> emptyList());
+    }
+
+    @Override
+    public void setTargetIdsForSource(String sourceId, List<String> targetIds) throws DirectoryException {
+        setTargetIds(sourceId, new LinkedHashSet<String>(targetIds));
+    }
+
+    @Override
+    public void setSourceIdsForTarget(String targetId, List<String> sourceIds) throws DirectoryException {
+        Set<String> newSourceIds = new HashSet<String>(sourceIds);
+        synchronized (dir) {
+            for (String sourceId : dir.getStore().ids()) {
+                Set<String> ids = new LinkedHashSet<String>(getTargetIdsForSource(sourceId));
+                boolean changed = newSourceIds.contains(sourceId) ? ids.add(targetId) : ids.remove(targetId);
+                if (changed) {
+                    setTargetIds(sourceId, ids);
+                }
+            }
+        }
+    }
+
+    @Override
+    public LocalReference clone() {
+        LocalReference clone = (LocalReference) super.clone();
+        // basic fields are already copied by super.clone()
+        return clone;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.local;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Binary encoding of the property values of directory entries, as stored by {@link LocalEntryStore}.
+ * <p>
+ * Each value is written as a type tag followed by its content. Only the types used by directory schemas are supported:
+ * strings, numbers, booleans, dates, binaries and lists or arrays of them.
+ *
+ * @since 8.2
+ */
+public class LocalValueCodec {
+
+    protected static final byte NULL = 0;
+
+    protected static final byte STRING = 1;
+
+    protected static final byte LONG = 2;
+
+    protected static final byte INTEGER = 3;
+
+    protected static final byte BOOLEAN = 4;
+
+    protected static final byte DOUBLE = 5;
+
+    protected static final byte CALENDAR = 6;
+
+    protected static final byte DATE = 7;
+
+    protected static final byte BYTES = 8;
+
+    protected static final byte STRING_ARRAY = 9;
+
+    protected static final byte LIST = 10;
+
+    private LocalValueCodec() {
+        // utility class
+    }
+
+    public static void writeProperties(DataOutput out, Map<String, ?> properties) throws IOException {
+        out.writeInt(properties.size());
+        for (Map.Entry<String, ?> property : properties.entrySet()) {
+            writeString(out, property.getKey());
+            writeValue(out, property.getValue());
+        }
+    }
+
+    public static Map<String, Object> readProperties(DataInput in) throws IOException {
+        int size = in.readInt();
+        Map<String, Object> properties = new HashMap<String, Object>(Math.max(16, size * 2));
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            properties.put(key, readValue(in));
+        }
+        return properties;
+    }
+
+    public static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong(((Long) value).longValue());
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INTEGER);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((Boolean) value).booleanValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Calendar) {
+            Calendar calendar = (Calendar) value;
+            out.writeByte(CALENDAR);
+            out.writeLong(calendar.getTimeInMillis());
+            writeString(out, calendar.getTimeZone().getID());
+        } else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof String[]) {
+            String[] strings = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                writeValue(out, string);
+            }
+        } else if (value instanceof Object[]) {
+            Object[] items = (Object[]) value;
+            out.writeByte(LIST);
+            out.writeInt(items.length);
+            for (Object item : items) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> items = (Collection<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(items.size());
+            for (Object item : items) {
+                writeValue(out, item);
+            }
+        } else {
+            throw new DirectoryException(String.format("Unsupported value type '%s' in local directory store",
+                    value.getClass().getName()));
+        }
+    }
+
+    public static Object readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case LONG:
+            return Long.valueOf(in.readLong());
+        case INTEGER:
+            return Integer.valueOf(in.readInt());
+        case BOOLEAN:
+            return Boolean.valueOf(in.readBoolean());
+        case DOUBLE:
+            return Double.valueOf(in.readDouble());
+        case CALENDAR:
+            long millis = in.readLong();
+            Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone(readString(in)));
+            calendar.setTimeInMillis(millis);
+            return calendar;
+        case DATE:
+            return new Date(in.readLong());
+        case BYTES:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        case STRING_ARRAY:
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = (String) readValue(in);
+            }
+            return strings;
+        case LIST:
+            int size = in.readInt();
+            List<Serializable> items = new ArrayList<Serializable>(size);
+            for (int i = 0; i < size; i++) {
+                items.add((Serializable) readValue(in));
+            }
+            return items;
+        default:
+            throw new IOException("Unknown value type tag " + tag);
+        }
+    }
+
+    /**
+     * Returns a copy of decoded properties, with their mutable values copied too, so that callers can't alter the
+     * original ones.
+     */
+    public static Map<String, Object> copyProperties(Map<String, Object> properties) {
+        Map<String, Object> copy = new HashMap<String, Object>(Math.max(16, properties.size() * 2));
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            copy.put(property.getKey(), copyValue(property.getValue()));
+        }
+        return copy;
+    }
+
+    protected static Object copyValue(Object value) {
+        if (value instanceof Calendar) {
+            return ((Calendar) value).clone();
+        } else if (value instanceof Date) {
+            return ((Date) value).clone();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        } else if (value instanceof String[]) {
+            return ((String[]) value).clone();
+        } else if (value instanceof List) {
+            List<?> items = (List<?>) value;
+            List<Serializable> copy = new ArrayList<Serializable>(items.size());
+            for (Object item : items) {
+                copy.add((Serializable) copyValue(item));
+            }
+            return copy;
+        }
+        // other decoded values are immutable
+        return value;
+    }
+
+    /**
+     * Writes a string of any length, unlike {@link DataOutput#writeUTF} which is limited to 64KB.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryDescriptor;
+
+/**
+ * Memory directory standing for a master that can be made unavailable or slow while in use.
+ * <p>
+ * A {@link Fault#DOWN} directory fails every call right away, like a refused connection. A {@link Fault#SLOW} one
+ * fails every call after a delay, like a server that no longer answers before the client timeout.
+ * <p>
+ * Like a SQL directory, it can match the entries of a list of ids in a single query (see
+ * {@link #setIdFilterSupported(boolean)}), which the memory directory can't.
+ *
+ * @since 8.2
+ */
+public class FaultInjectingMemoryDirectory extends MemoryDirectory {
+
+    public enum Fault {
+        NONE, DOWN, SLOW
+    }
+
+    /**
+     * Descriptor registering a {@link FaultInjectingMemoryDirectory}.
+     */
+    public static class Descriptor extends MemoryDirectoryDescriptor {
+
+        @Override
+        public FaultInjectingMemoryDirectory newDirectory() {
+            return new FaultInjectingMemoryDirectory(this);
+        }
+    }
+
+    protected volatile Fault fault = Fault.NONE;
+
+    protected volatile long delay;
+
+    protected volatile boolean idFilterSupported;
+
+    /** Number of entry reads, queries and authentications served. */
+    protected final AtomicLong servedCalls = new AtomicLong();
+
+    /** {@link System#nanoTime()} of the last entry read, query or authentication served. */
+    protected final AtomicLong lastServedNanos = new AtomicLong();
+
+    public FaultInjectingMemoryDirectory(MemoryDirectoryDescriptor descriptor) {
+        super(descriptor);
+    }
+
+    /**
+     * Sets the fault applied to the calls made from now on.
+     *
+     * @param delay the delay in milliseconds before a {@link Fault#SLOW} call fails
+     */
+    public void inject(Fault fault, long delay) {
+        this.delay = delay;
+        this.fault = fault;
+    }
+
+    /**
+     * Makes queries whose only criterion is a collection of ids return the entries having these ids.
+     */
+    public void setIdFilterSupported(boolean idFilterSupported) {
+        this.idFilterSupported = idFilterSupported;
+    }
+
+    public Fault getFault() {
+        return fault;
+    }
+
+    public long getServedCalls() {
+        return servedCalls.get();
+    }
+
+    public long getLastServedNanos() {
+        return lastServedNanos.get();
+    }
+
+    @Override
+    public Session getSession() throws DirectoryException {
+        final Session session = super.getSession();
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (!"close".equals(name)) {
+                            applyFault(name);
+                        }
+                        Object result;
+                        if ("query".equals(name) && isIdFilter(args[0])) {
+                            result = queryIds(session, (Map<?, ?>) args[0], args.length < 4 || (Boolean) args[3]);
+                        } else {
+                            try {
+                                result = method.invoke(session, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                        if ("getEntry".equals(name) || "query".equals(name) || "authenticate".equals(name)) {
+                            servedCalls.incrementAndGet();
+                            lastServedNanos.set(System.nanoTime());
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    protected boolean isIdFilter(Object filter) {
+        if (!idFilterSupported || !(filter instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> map = (Map<?, ?>) filter;
+        return map.size() == 1 && map.get(getIdField()) instanceof Collection;
+    }
+
+    protected DocumentModelList queryIds(Session session, Map<?, ?> filter, boolean fetchReferences) {
+        DocumentModelList results = new DocumentModelListImpl();
+        for (Object id : (Collection<?>) filter.get(getIdField())) {
+            DocumentModel entry = session.getEntry(String.valueOf(id), fetchReferences);
+            if (entry != null) {
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
+    protected void applyFault(String methodName) throws DirectoryException {
+        switch (fault) {
+        case DOWN:
+            throw new DirectoryException(String.format("Directory '%s' is down (%s)", getName(), methodName));
+        case SLOW:
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new DirectoryException(String.format("Directory '%s' timed out after %dms (%s)", getName(),
+                    Long.valueOf(delay), methodName));
+        default:
+            break;
+        }
+    }
+
+}
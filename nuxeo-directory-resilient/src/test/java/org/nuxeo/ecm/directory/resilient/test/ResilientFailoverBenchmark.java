@@ -0,0 +1,415 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryDescriptor;
+import org.nuxeo.ecm.directory.resilient.test.FaultInjectingMemoryDirectory.Fault;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Failover benchmark of the resilient directory.
+ * <p>
+ * Worker threads authenticate and read random entries through a resilient directory during three phases of equal
+ * length: the master is healthy, then down or slow, then healthy again. Each scenario writes a JSON report with the
+ * latency percentiles and error count of each phase, the time to failover (from the fault until the last request
+ * failed or slowed down by it has completed) and the time to recovery (from the restoration of the master until it
+ * serves a request again).
+ * <p>
+ * Not run by the default build, see the README for how to run it. Tuned with the system properties:
+ * <ul>
+ * <li>{@code resilient.benchmark.threads}: number of worker threads (default 16),</li>
+ * <li>{@code resilient.benchmark.phase}: length of each phase in milliseconds (default 5000),</li>
+ * <li>{@code resilient.benchmark.entries}: number of entries (default 1000),</li>
+ * <li>{@code resilient.benchmark.slowDelay}: delay in milliseconds before a slow master fails (default 1000),</li>
+ * <li>{@code resilient.benchmark.latencyThreshold}: latency in milliseconds above which a request counts as slowed
+ * down by the fault (default 50),</li>
+ * <li>{@code resilient.benchmark.reportDir}: directory of the reports (default {@code target/resilient-benchmark}).
+ * </li>
+ * </ul>
+ *
+ * @since 8.2
+ */
+@RunWith(FeaturesRunner.class)
+@Features(CoreFeature.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory", "org.nuxeo.ecm.core.schema",
+        "org.nuxeo.ecm.directory.types.contrib", "org.nuxeo.ecm.directory.resilient" })
+public class ResilientFailoverBenchmark {
+
+    private static final Log log = LogFactory.getLog(ResilientFailoverBenchmark.class);
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    private static final String RESILIENT_DIRECTORY = "resilientBenchmark";
+
+    private static final String[] PHASES = { "baseline", "outage", "recovery" };
+
+    protected static final int THREADS = Integer.getInteger("resilient.benchmark.threads", 16).intValue();
+
+    protected static final long PHASE_MILLIS = Long.getLong("resilient.benchmark.phase", 5000).longValue();
+
+    protected static final int ENTRIES = Integer.getInteger("resilient.benchmark.entries", 1000).intValue();
+
+    protected static final long SLOW_DELAY = Long.getLong("resilient.benchmark.slowDelay", 1000).longValue();
+
+    protected static final long LATENCY_THRESHOLD = Long.getLong("resilient.benchmark.latencyThreshold", 50)
+            .longValue();
+
+    protected static final String REPORT_DIR = System.getProperty("resilient.benchmark.reportDir",
+            "target/resilient-benchmark");
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    protected MemoryDirectoryDescriptor masterDesc;
+
+    protected MemoryDirectoryDescriptor slaveDesc;
+
+    protected FaultInjectingMemoryDirectory master;
+
+    /**
+     * A request done by a worker: start in nanoseconds since the beginning of the run, and latency in nanoseconds.
+     */
+    protected static class Sample {
+
+        final long start;
+
+        final long latency;
+
+        final boolean error;
+
+        Sample(long start, long latency, boolean error) {
+            this.start = start;
+            this.latency = latency;
+            this.error = error;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        masterDesc = new FaultInjectingMemoryDirectory.Descriptor();
+        register(masterDesc, "benchmarkMaster");
+        master = (FaultInjectingMemoryDirectory) directoryService.getDirectory("benchmarkMaster");
+
+        slaveDesc = new MemoryDirectoryDescriptor();
+        register(slaveDesc, "benchmarkSlave");
+
+        // the slave starts in sync with the master, as after a previous run
+        fill("benchmarkMaster");
+        fill("benchmarkSlave");
+
+        harness.deployContrib(TEST_BUNDLE, "resilient-benchmark-config.xml");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.undeployContrib(TEST_BUNDLE, "resilient-benchmark-config.xml");
+        directoryService.unregisterDirectoryDescriptor(masterDesc);
+        directoryService.unregisterDirectoryDescriptor(slaveDesc);
+    }
+
+    protected void register(MemoryDirectoryDescriptor desc, String name) {
+        desc.name = name;
+        desc.schemaName = "schema1";
+        desc.schemaSet = new HashSet<String>(Arrays.asList("uid", "foo", "bar"));
+        desc.idField = "uid";
+        desc.passwordField = "foo";
+        directoryService.registerDirectoryDescriptor(desc);
+    }
+
+    protected void fill(String directoryName) {
+        try (Session session = directoryService.open(directoryName)) {
+            for (int i = 0; i < ENTRIES; i++) {
+                Map<String, Object> e = new HashMap<String, Object>();
+                e.put("uid", "user" + i);
+                e.put("foo", "pw" + i);
+                e.put("bar", "bar" + i);
+                session.createEntry(e);
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkMasterDown() throws Exception {
+        Map<String, Object> report = run("masterDown", Fault.DOWN);
+        assertNoErrors(report);
+    }
+
+    @Test
+    public void benchmarkMasterSlow() throws Exception {
+        Map<String, Object> report = run("masterSlow", Fault.SLOW);
+        assertNoErrors(report);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void assertNoErrors(Map<String, Object> report) {
+        Map<String, Object> phases = (Map<String, Object>) report.get("phases");
+        for (String phase : PHASES) {
+            Map<String, Object> stats = (Map<String, Object>) phases.get(phase);
+            assertEquals(phase, Long.valueOf(0), stats.get("errors"));
+        }
+        assertTrue("master did not recover", ((Double) report.get("recoveryMillis")).doubleValue() >= 0);
+    }
+
+    protected Map<String, Object> run(String scenario, Fault fault) throws Exception {
+        final long origin = System.nanoTime();
+        final long end = origin + TimeUnit.MILLISECONDS.toNanos(3 * PHASE_MILLIS);
+        final List<List<Sample>> samplesByWorker = new ArrayList<List<Sample>>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final List<Sample> samples = new ArrayList<Sample>();
+            samplesByWorker.add(samples);
+            final Random random = new Random(i);
+            Thread worker = new Thread("resilient-benchmark-" + i) {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        samples.add(request(random, origin));
+                    }
+                }
+            };
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+
+        sleepUntil(origin + TimeUnit.MILLISECONDS.toNanos(PHASE_MILLIS));
+        long faultAt = System.nanoTime() - origin;
+        master.inject(fault, SLOW_DELAY);
+
+        sleepUntil(origin + TimeUnit.MILLISECONDS.toNanos(2 * PHASE_MILLIS));
+        long servedBeforeRestore = master.getServedCalls();
+        long restoreAt = System.nanoTime() - origin;
+        master.inject(Fault.NONE, 0);
+
+        long recoveredAt = -1;
+        while (System.nanoTime() < end) {
+            if (recoveredAt < 0 && master.getServedCalls() > servedBeforeRestore) {
+                recoveredAt = master.getLastServedNanos() - origin;
+            }
+            Thread.sleep(1);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        List<Sample> samples = new ArrayList<Sample>();
+        for (List<Sample> workerSamples : samplesByWorker) {
+            samples.addAll(workerSamples);
+        }
+        Map<String, Object> report = report(scenario, samples, faultAt, restoreAt, recoveredAt);
+        writeReport(scenario, report);
+        return report;
+    }
+
+    protected Sample request(Random random, long origin) {
+        int i = random.nextInt(ENTRIES);
+        boolean authenticate = random.nextBoolean();
+        long start = System.nanoTime();
+        boolean error;
+        try (Session session = directoryService.open(RESILIENT_DIRECTORY)) {
+            if (authenticate) {
+                error = !session.authenticate("user" + i, "pw" + i);
+            } else {
+                error = session.getEntry("user" + i) == null;
+            }
+        } catch (RuntimeException e) {
+            log.debug("Benchmark request failed", e);
+            error = true;
+        }
+        long now = System.nanoTime();
+        return new Sample(start - origin, now - start, error);
+    }
+
+    protected static void sleepUntil(long nanoTime) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    protected Map<String, Object> report(String scenario, List<Sample> samples, long faultAt, long restoreAt,
+            long recoveredAt) {
+        long threshold = TimeUnit.MILLISECONDS.toNanos(LATENCY_THRESHOLD);
+        List<List<Sample>> phases = new ArrayList<List<Sample>>();
+        for (int i = 0; i < PHASES.length; i++) {
+            phases.add(new ArrayList<Sample>());
+        }
+        // end of the last request started during the outage that failed or was slowed down
+        long lastImpactedEnd = -1;
+        long lastImpactedStart = -1;
+        for (Sample sample : samples) {
+            if (sample.start < faultAt) {
+                phases.get(0).add(sample);
+            } else if (sample.start < restoreAt) {
+                phases.get(1).add(sample);
+                if (sample.error || sample.latency >= threshold) {
+                    lastImpactedEnd = Math.max(lastImpactedEnd, sample.start + sample.latency);
+                    lastImpactedStart = Math.max(lastImpactedStart, sample.start);
+                }
+            } else {
+                phases.get(2).add(sample);
+            }
+        }
+        boolean failedOver = false;
+        for (Sample sample : phases.get(1)) {
+            if (sample.start > lastImpactedStart) {
+                failedOver = true;
+                break;
+            }
+        }
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("scenario", scenario);
+        report.put("threads", Integer.valueOf(THREADS));
+        report.put("entries", Integer.valueOf(ENTRIES));
+        report.put("phaseMillis", Long.valueOf(PHASE_MILLIS));
+        report.put("slowDelayMillis", Long.valueOf(SLOW_DELAY));
+        report.put("latencyThresholdMillis", Long.valueOf(LATENCY_THRESHOLD));
+        report.put("failedOver", Boolean.valueOf(failedOver));
+        report.put("failoverMillis", Double.valueOf(lastImpactedEnd < 0 ? 0 : millis(lastImpactedEnd - faultAt)));
+        report.put("recoveryMillis", Double.valueOf(recoveredAt < 0 ? -1 : millis(recoveredAt - restoreAt)));
+        Map<String, Object> phaseReports = new LinkedHashMap<String, Object>();
+        long total = TimeUnit.MILLISECONDS.toNanos(3 * PHASE_MILLIS);
+        long[] durations = { faultAt, restoreAt - faultAt, total - restoreAt };
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseReports.put(PHASES[i], stats(phases.get(i), durations[i]));
+        }
+        report.put("phases", phaseReports);
+        report.put("overall", stats(samples, total));
+        return report;
+    }
+
+    protected static Map<String, Object> stats(List<Sample> samples, long duration) {
+        long[] latencies = new long[samples.size()];
+        long errors = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            Sample sample = samples.get(i);
+            latencies[i] = sample.latency;
+            if (sample.error) {
+                errors++;
+            }
+        }
+        Arrays.sort(latencies);
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("requests", Long.valueOf(latencies.length));
+        stats.put("errors", Long.valueOf(errors));
+        stats.put("throughput", Double.valueOf(duration > 0 ? latencies.length / (duration / 1e9) : 0));
+        Map<String, Object> percentiles = new LinkedHashMap<String, Object>();
+        percentiles.put("p50", Double.valueOf(millis(percentile(latencies, 0.5))));
+        percentiles.put("p90", Double.valueOf(millis(percentile(latencies, 0.9))));
+        percentiles.put("p99", Double.valueOf(millis(percentile(latencies, 0.99))));
+        percentiles.put("p999", Double.valueOf(millis(percentile(latencies, 0.999))));
+        percentiles.put("max", Double.valueOf(millis(latencies.length == 0 ? 0 : latencies[latencies.length - 1])));
+        stats.put("latencyMillis", percentiles);
+        return stats;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values.
+     */
+    protected static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    protected static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    protected void writeReport(String scenario, Map<String, Object> report) throws IOException {
+        StringBuilder json = new StringBuilder();
+        appendJson(json, report, "");
+        json.append('\n');
+        log.info(String.format("Resilient failover benchmark '%s':%n%s", scenario, json));
+        File dir = new File(REPORT_DIR);
+        dir.mkdirs();
+        File file = new File(dir, scenario + ".json");
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static void appendJson(StringBuilder json, Object value, String indent) {
+        if (value instanceof Map) {
+            String inner = indent + "  ";
+            json.append("{\n");
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                if (!first) {
+                    json.append(",\n");
+                }
+                first = false;
+                json.append(inner).append('"').append(entry.getKey()).append("\": ");
+                appendJson(json, entry.getValue(), inner);
+            }
+            json.append('\n').append(indent).append('}');
+        } else if (value instanceof String) {
+            json.append('"').append(value).append('"');
+        } else if (value instanceof Double) {
+            json.append(String.format(Locale.ROOT, "%.3f", value));
+        } else {
+            json.append(value);
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryDescriptor;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.local.LocalDirectory;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * A local directory used as the slave of a resilient directory.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(CoreFeature.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory", "org.nuxeo.ecm.core.schema",
+        "org.nuxeo.ecm.directory.types.contrib", "org.nuxeo.ecm.directory.resilient" })
+public class TestLocalDirectory {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    protected MemoryDirectoryDescriptor desc1;
+
+    MemoryDirectory memdir1;
+
+    LocalDirectory localDir;
+
+    ResilientDirectory resilientDir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        desc1 = new MemoryDirectoryDescriptor();
+        desc1.name = "dir1";
+        desc1.schemaName = "schema1";
+        desc1.schemaSet = new HashSet<String>(Arrays.asList("uid", "foo", "bar"));
+        desc1.idField = "uid";
+        desc1.passwordField = "foo";
+        directoryService.registerDirectoryDescriptor(desc1);
+        memdir1 = (MemoryDirectory) directoryService.getDirectory("dir1");
+        try (Session dir1 = memdir1.getSession()) {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "1");
+            e.put("foo", "foo1");
+            e.put("bar", "bar1");
+            dir1.createEntry(e);
+        }
+
+        harness.deployContrib(TEST_BUNDLE, "local-directories-config.xml");
+        localDir = (LocalDirectory) directoryService.getDirectory("localDir");
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("resilientLocal");
+        // the store outlives the test methods
+        try (Session local = localDir.getSession()) {
+            for (DocumentModel entry : local.getEntries()) {
+                local.deleteEntry(entry.getId());
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.undeployContrib(TEST_BUNDLE, "local-directories-config.xml");
+        directoryService.unregisterDirectoryDescriptor(desc1);
+    }
+
+    @Test
+    public void testCrud() throws Exception {
+        try (Session local = localDir.getSession()) {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "2");
+            e.put("foo", "secret");
+            e.put("bar", "bar2");
+            DocumentModel entry = local.createEntry(e);
+            assertEquals("2", entry.getId());
+            assertTrue(local.hasEntry("2"));
+
+            entry = local.getEntry("2");
+            assertEquals("bar2", entry.getProperty("schema1", "bar"));
+            // the password is never returned
+            assertNull(entry.getProperty("schema1", "foo"));
+            assertTrue(local.authenticate("2", "secret"));
+            assertFalse(local.authenticate("2", "bad"));
+
+            // updating without password keeps it
+            entry.setProperty("schema1", "bar", "bar2-changed");
+            local.updateEntry(entry);
+            assertEquals("bar2-changed", local.getEntry("2").getProperty("schema1", "bar"));
+            assertTrue(local.authenticate("2", "secret"));
+
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            filter.put("bar", "changed");
+            DocumentModelList results = local.query(filter, new HashSet<String>(Arrays.asList("bar")));
+            assertEquals(1, results.size());
+            assertEquals(0, local.query(filter).size());
+
+            local.deleteEntry("2");
+            assertFalse(local.hasEntry("2"));
+            assertNull(local.getEntry("2"));
+        }
+    }
+
+    @Test
+    public void testDeleteMatchingEntry() throws Exception {
+        try (Session local = localDir.getSession()) {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "2");
+            e.put("bar", "bar2");
+            local.createEntry(e);
+
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("bar", "other");
+            local.deleteEntry("2", values);
+            assertTrue(local.hasEntry("2"));
+
+            values.put("bar", "bar2");
+            local.deleteEntry("2", values);
+            assertFalse(local.hasEntry("2"));
+        }
+    }
+
+    @Test
+    public void testPasswordIsHashed() throws Exception {
+        try (Session local = localDir.getSession()) {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "2");
+            e.put("foo", "secret");
+            local.createEntry(e);
+        }
+        Object stored = localDir.getStore().get("2").get("foo");
+        assertNotNull(stored);
+        assertNotEquals("secret", stored);
+    }
+
+    @Test
+    public void testResilientSlave() throws Exception {
+        try (Session resilient = resilientDir.getSession(); Session local = localDir.getSession()) {
+            assertNull(local.getEntry("1"));
+            // reading through the resilient directory synchronizes the local slave
+            assertNotNull(resilient.getEntry("1"));
+            assertEquals("bar1", local.getEntry("1").getProperty("schema1", "bar"));
+            // authenticating stores the password verifier
+            assertTrue(resilient.authenticate("1", "foo1"));
+            assertTrue(local.authenticate("1", "foo1"));
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.resilient.local.LocalEntryStore;
+
+public class TestLocalEntryStore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    protected File file;
+
+    protected LocalEntryStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "test.store");
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    protected LocalEntryStore open() {
+        LocalEntryStore store = new LocalEntryStore(file, true, 0.5);
+        store.open();
+        return store;
+    }
+
+    protected static Map<String, Object> entry(String uid, String foo) {
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("uid", uid);
+        entry.put("foo", foo);
+        entry.put("groups", Arrays.asList("members", "administrators"));
+        entry.put("count", Long.valueOf(42));
+        return entry;
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        assertNull(store.get("1"));
+        store.put("1", entry("1", "foo1"));
+        store.put("2", entry("2", "foo2"));
+        store.put("1", entry("1", "foo1-changed"));
+        assertEquals(2, store.size());
+        assertEquals("foo1-changed", store.get("1").get("foo"));
+        assertEquals(Long.valueOf(42), store.get("1").get("count"));
+        assertEquals(Arrays.asList("members", "administrators"), store.get("1").get("groups"));
+
+        assertTrue(store.remove("2"));
+        assertFalse(store.remove("2"));
+        assertFalse(store.contains("2"));
+        assertNull(store.get("2"));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        store.put("1", entry("1", "foo1"));
+        store.put("2", entry("2", "foo2"));
+        store.remove("2");
+        store.close();
+
+        store = open();
+        assertEquals(1, store.size());
+        assertEquals("foo1", store.get("1").get("foo"));
+        assertNull(store.get("2"));
+    }
+
+    @Test
+    public void testTornWriteIsTruncated() throws Exception {
+        store.put("1", entry("1", "foo1"));
+        long size = store.getFileSize();
+        store.close();
+
+        // simulate a crash in the middle of a write
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(1000);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        store = open();
+        assertEquals(size, file.length());
+        assertEquals("foo1", store.get("1").get("foo"));
+        store.put("2", entry("2", "foo2"));
+        store.close();
+        store = open();
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testCorruptedRecordIsSkipped() throws Exception {
+        store.put("1", entry("1", "foo1"));
+        long position = store.getFileSize();
+        store.put("2", entry("2", "foo2"));
+        store.put("3", entry("3", "foo3"));
+        long size = store.getFileSize();
+        store.close();
+
+        // flip a byte in the payload of the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position + 20);
+            int b = raf.read();
+            raf.seek(position + 20);
+            raf.write(b ^ 0xff);
+        }
+
+        store = open();
+        assertEquals(size, file.length());
+        assertEquals("foo1", store.get("1").get("foo"));
+        assertNull(store.get("2"));
+        assertEquals("foo3", store.get("3").get("foo"));
+    }
+
+    @Test
+    public void testUndelimitedRecordsAreKept() throws Exception {
+        store.put("1", entry("1", "foo1"));
+        long position = store.getFileSize();
+        store.put("2", entry("2", "foo2"));
+        store.put("3", entry("3", "foo3"));
+        long size = store.getFileSize();
+        store.close();
+
+        // corrupt the length of the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int length = raf.readInt();
+            raf.seek(position);
+            raf.writeInt(length + 3);
+        }
+
+        try {
+            open();
+            fail("Should fail to open a store whose records can't be delimited");
+        } catch (DirectoryException e) {
+        }
+        assertEquals(size, file.length());
+    }
+
+    @Test
+    public void testDecodedEntriesAreCopied() throws Exception {
+        store.put("1", entry("1", "foo1"));
+        @SuppressWarnings("unchecked")
+        List<String> groups = (List<String>) store.get("1").get("groups");
+        groups.clear();
+        store.get("1").put("foo", "altered");
+        assertEquals(Arrays.asList("members", "administrators"), store.get("1").get("groups"));
+        assertEquals("foo1", store.get("1").get("foo"));
+
+        store.put("1", entry("1", "foo1-changed"));
+        assertEquals("foo1-changed", store.get("1").get("foo"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 3000; i++) {
+            store.put("entry" + (i % 10), entry("entry" + (i % 10), new String(padding) + i));
+        }
+        // stale records are dropped
+        assertTrue(store.getFileSize() < 2 * 1024 * 1024);
+        assertEquals(10, store.size());
+        assertTrue(((String) store.get("entry9").get("foo")).endsWith("2999"));
+
+        store.close();
+        store = open();
+        assertEquals(10, store.size());
+        assertTrue(((String) store.get("entry0").get("foo")).endsWith("2990"));
+    }
+
+    @Test
+    public void testUnsupportedValue() throws Exception {
+        Map<String, Object> entry = entry("1", "foo1");
+        entry.put("bad", new Object());
+        try {
+            store.put("1", entry);
+            fail("Should raise an error on unsupported values");
+        } catch (DirectoryException e) {
+        }
+        assertFalse(store.contains("1"));
+        List<String> ids = Arrays.asList(store.ids().toArray(new String[0]));
+        assertTrue(ids.isEmpty());
+    }
+
+}
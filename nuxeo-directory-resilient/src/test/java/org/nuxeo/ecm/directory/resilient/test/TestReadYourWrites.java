@@ -0,0 +1,220 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.directory.PasswordHelper;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.memory.MemoryDirectoryDescriptor;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory.SlaveSync;
+import org.nuxeo.ecm.directory.resilient.test.FaultInjectingMemoryDirectory.Fault;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Writes propagated asynchronously to the slaves are read back when the master fails before the propagation.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(CoreFeature.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory", "org.nuxeo.ecm.core.schema",
+        "org.nuxeo.ecm.directory.types.contrib", "org.nuxeo.ecm.directory.resilient" })
+public class TestReadYourWrites {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    protected MemoryDirectoryDescriptor masterDesc;
+
+    protected MemoryDirectoryDescriptor slaveDesc;
+
+    FaultInjectingMemoryDirectory master;
+
+    FaultInjectingMemoryDirectory slave;
+
+    ResilientDirectory resilientDir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        masterDesc = new FaultInjectingMemoryDirectory.Descriptor();
+        register(masterDesc, "asyncWriteMaster");
+        master = (FaultInjectingMemoryDirectory) directoryService.getDirectory("asyncWriteMaster");
+        slaveDesc = new FaultInjectingMemoryDirectory.Descriptor();
+        register(slaveDesc, "asyncWriteSlave");
+        slave = (FaultInjectingMemoryDirectory) directoryService.getDirectory("asyncWriteSlave");
+
+        for (String name : Arrays.asList("asyncWriteMaster", "asyncWriteSlave")) {
+            try (Session session = directoryService.open(name)) {
+                Map<String, Object> e = new HashMap<String, Object>();
+                e.put("uid", "1");
+                e.put("foo", "foo1");
+                e.put("bar", "bar1");
+                session.createEntry(e);
+            }
+        }
+
+        harness.deployContrib(TEST_BUNDLE, "resilient-async-write-config.xml");
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("resilientAsyncWrite");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        master.inject(Fault.NONE, 0);
+        slave.inject(Fault.NONE, 0);
+        harness.undeployContrib(TEST_BUNDLE, "resilient-async-write-config.xml");
+        directoryService.unregisterDirectoryDescriptor(masterDesc);
+        directoryService.unregisterDirectoryDescriptor(slaveDesc);
+    }
+
+    protected void register(MemoryDirectoryDescriptor desc, String name) {
+        desc.name = name;
+        desc.schemaName = "schema1";
+        desc.schemaSet = new HashSet<String>(Arrays.asList("uid", "foo", "bar"));
+        desc.idField = "uid";
+        desc.passwordField = "foo";
+        directoryService.registerDirectoryDescriptor(desc);
+    }
+
+    @Test
+    public void testReadPendingWritesWhenMasterFails() throws Exception {
+        // Holding the synchronization locks keeps the propagation pending
+        Lock lock1 = resilientDir.getSyncLock("1");
+        Lock lock2 = resilientDir.getSyncLock("2");
+        lock1.lock();
+        lock2.lock();
+        try (Session dir = resilientDir.getSession(); Session slave = directoryService.open("asyncWriteSlave")) {
+            DocumentModel entry = dir.getEntry("1");
+            entry.setProperty("schema1", "bar", "bar1-updated");
+            dir.updateEntry(entry);
+
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "2");
+            e.put("foo", "foo2");
+            e.put("bar", "bar2");
+            dir.createEntry(e);
+
+            assertEquals("bar1", slave.getEntry("1").getProperty("schema1", "bar"));
+            assertFalse(slave.hasEntry("2"));
+
+            master.inject(Fault.DOWN, 0);
+            assertEquals("bar1-updated", dir.getEntry("1").getProperty("schema1", "bar"));
+            assertTrue(dir.hasEntry("2"));
+            assertEquals("bar2", dir.getEntry("2").getProperty("schema1", "bar"));
+            assertTrue(dir.authenticate("2", "foo2"));
+            assertFalse(dir.authenticate("2", "bad"));
+            master.inject(Fault.NONE, 0);
+        } finally {
+            lock1.unlock();
+            lock2.unlock();
+        }
+
+        // Once propagated, the writes are read from the slave
+        try (Session slave = directoryService.open("asyncWriteSlave")) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!(slave.hasEntry("2") && "bar1-updated".equals(slave.getEntry("1").getProperty("schema1", "bar")))
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(slave.hasEntry("2"));
+            assertEquals("bar1-updated", slave.getEntry("1").getProperty("schema1", "bar"));
+        }
+    }
+
+    @Test
+    public void testPendingWriteKeptWhenSlaveUpdateFails() throws Exception {
+        try (Session dir = resilientDir.getSession()) {
+            DocumentModel entry = dir.getEntry("1");
+            slave.inject(Fault.DOWN, 0);
+            long served = master.getServedCalls();
+            entry.setProperty("schema1", "bar", "bar1-updated");
+            dir.updateEntry(entry);
+            awaitSynchronization("1", served);
+
+            // the slave is back with its previous value, the master fails
+            slave.inject(Fault.NONE, 0);
+            master.inject(Fault.DOWN, 0);
+            assertEquals("bar1-updated", dir.getEntry("1").getProperty("schema1", "bar"));
+            master.inject(Fault.NONE, 0);
+        }
+    }
+
+    /**
+     * Waits for the background synchronization of an entry, which reads it again on the master, to be done.
+     */
+    protected void awaitSynchronization(String id, long masterServed) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (master.getServedCalls() == masterServed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        SlaveSync sync = new SlaveSync(null, null, true);
+        while (!resilientDir.startSlaveSync(id, sync) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(resilientDir.nextSlaveSync(id));
+    }
+
+    @Test
+    public void testAuthenticatePendingWriteWithHashedPassword() throws Exception {
+        Lock lock = resilientDir.getSyncLock("3");
+        lock.lock();
+        try (Session dir = resilientDir.getSession()) {
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", "3");
+            e.put("foo", PasswordHelper.hashPassword("secret", PasswordHelper.SSHA));
+            e.put("bar", "bar3");
+            dir.createEntry(e);
+
+            master.inject(Fault.DOWN, 0);
+            assertTrue(dir.authenticate("3", "secret"));
+            assertFalse(dir.authenticate("3", "bad"));
+            master.inject(Fault.NONE, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -25,17 +25,23 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import org.junit.After;
 import org.junit.Before;
@@ -54,6 +60,7 @@ import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.ecm.directory.memory.MemoryDirectory;
 import org.nuxeo.ecm.directory.memory.MemoryDirectoryDescriptor;
 import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory.SlaveSync;
 import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
@@ -400,6 +407,70 @@ public class TestResilientDirectory {
 
     }
 
+    @Test
+    public void testGetProjectionDoesNotSynchronizeSlave() throws Exception {
+        Session dir2 = memdir2.getSession();
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+
+        List<String> list = dir.getProjection(filter, "uid");
+        Collections.sort(list);
+        assertEquals(Arrays.asList("1", "4"), list);
+
+        // the projection is read from the master only, the slave is left
+        // untouched
+        assertNull(dir2.getEntry("1"));
+        assertNotNull(dir2.getEntry("2"));
+    }
+
+    @Test
+    public void testGetEntries() throws Exception {
+        Session dir2 = memdir2.getSession();
+
+        DocumentModelList entries = dir.getEntries();
+        assertEquals(2, entries.size());
+
+        // entries are listed on the master, without synchronizing the slave
+        assertNull(dir2.getEntry("1"));
+        assertNotNull(dir2.getEntry("2"));
+
+        List<String> ids = new ArrayList<String>();
+        Iterator<DocumentModel> it = dir.iterateEntries();
+        while (it.hasNext()) {
+            ids.add(it.next().getId());
+        }
+        Collections.sort(ids);
+        assertEquals(Arrays.asList("1", "4"), ids);
+    }
+
+    @Test
+    public void testGetEntriesByIds() throws Exception {
+        Session dir2 = memdir2.getSession();
+        assertNull(dir2.getEntry("1"));
+        assertNotNull(dir2.getEntry("2"));
+
+        DocumentModelList entries = dir.getEntries(Arrays.asList("4", "2", "1", "4"));
+        assertEquals(2, entries.size());
+        assertEquals("4", entries.get(0).getId());
+        assertEquals("1", entries.get(1).getId());
+
+        // the slave is synchronized with the master
+        assertNotNull(dir2.getEntry("1"));
+        assertNotNull(dir2.getEntry("4"));
+        assertNull(dir2.getEntry("2"));
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        ResilientDirectory cachedDir = (ResilientDirectory) directoryService.getDirectory("resilientCached");
+        cachedDir.warmUp();
+        assertTrue(cachedDir.getSubDirectoryHealth("dir1").isAvailable());
+        assertTrue(cachedDir.getSubDirectoryHealth("dir2").isAvailable());
+        assertEquals("schema1", cachedDir.getSchema());
+        try (Session session = cachedDir.getSession()) {
+            assertNotNull(session.getEntry("1"));
+        }
+    }
+
     @Test
     public void testCreateFromModel() throws Exception {
         String schema = "schema1";
@@ -469,4 +540,171 @@ public class TestResilientDirectory {
 
     }
 
+    @Test
+    public void testEntryCache() throws Exception {
+        ResilientDirectory cachedDir = (ResilientDirectory) directoryService.getDirectory("resilientCached");
+        try (Session cached = cachedDir.getSession(); Session dir1 = memdir1.getSession()) {
+            assertEquals("foo1", cached.getEntry("1").getProperty("schema1", "foo"));
+            assertEquals(1, cachedDir.getEntryCache().size());
+
+            // Change the master behind the resilient directory, the fresh
+            // cached entry is still served
+            DocumentModel entry = dir1.getEntry("1");
+            entry.setProperty("schema1", "foo", "foo1-changed");
+            dir1.updateEntry(entry);
+            assertEquals("foo1", cached.getEntry("1").getProperty("schema1", "foo"));
+
+            // Writes through the resilient directory invalidate the entry
+            entry = dir1.getEntry("1");
+            entry.setProperty("schema1", "bar", "bar1-changed");
+            cached.updateEntry(entry);
+            assertEquals(0, cachedDir.getEntryCache().size());
+            entry = cached.getEntry("1");
+            assertEquals("foo1-changed", entry.getProperty("schema1", "foo"));
+            assertEquals("bar1-changed", entry.getProperty("schema1", "bar"));
+
+            // The cached entry can't be altered by callers
+            entry.setProperty("schema1", "bar", "altered");
+            assertEquals("bar1-changed", cached.getEntry("1").getProperty("schema1", "bar"));
+        }
+    }
+
+    @Test
+    public void testInvalidationKeepsUnrelatedEntries() throws Exception {
+        ResilientDirectory cachedDir = (ResilientDirectory) directoryService.getDirectory("resilientCached");
+        try (Session cached = cachedDir.getSession()) {
+            cached.getEntry("1");
+            cached.getEntry("4");
+            assertEquals(2, cachedDir.getEntryCache().size());
+
+            DocumentModel entry = cached.getEntry("1");
+            entry.setProperty("schema1", "bar", "bar1-changed");
+            cached.updateEntry(entry);
+            // as done after an edit in the admin screens
+            cachedDir.invalidateDirectoryCache();
+            assertNull(cachedDir.getEntryCache().get("1"));
+            assertNotNull(cachedDir.getEntryCache().get("4"));
+            assertEquals("bar1-changed", cached.getEntry("1").getProperty("schema1", "bar"));
+
+            // nothing written since
+            cachedDir.invalidateDirectoryCache();
+            assertEquals(2, cachedDir.getEntryCache().size());
+
+            cachedDir.invalidateAllEntries();
+            assertEquals(0, cachedDir.getEntryCache().size());
+        }
+    }
+
+    @Test
+    public void testReadSyncSkippedWhileInProgress() throws Exception {
+        // Another reader is synchronizing the entry
+        assertTrue(resilientDir.startReadSync("1"));
+        assertFalse(resilientDir.startReadSync("1"));
+        try (Session dir2 = memdir2.getSession()) {
+            assertNotNull(dir.getEntry("1"));
+            assertNull(dir2.getEntry("1"));
+        } finally {
+            resilientDir.endReadSync("1");
+        }
+
+        // An entry sharing the same lock does not prevent the synchronization
+        String otherId = null;
+        for (int i = 0; otherId == null; i++) {
+            if (resilientDir.getSyncLock("other" + i) == resilientDir.getSyncLock("1")) {
+                otherId = "other" + i;
+            }
+        }
+        assertTrue(resilientDir.startReadSync(otherId));
+        try (Session dir2 = memdir2.getSession()) {
+            assertNotNull(dir.getEntry("1"));
+            assertNotNull(dir2.getEntry("1"));
+        } finally {
+            resilientDir.endReadSync(otherId);
+        }
+    }
+
+    @Test
+    public void testSlaveSyncHandedToRunningOne() throws Exception {
+        // Another thread is writing the entry on the slaves
+        assertTrue(resilientDir.startSlaveSync("1", new SlaveSync(null, null, true)));
+        String otherId = null;
+        for (int i = 0; otherId == null; i++) {
+            if (resilientDir.getSyncLock("other" + i) == resilientDir.getSyncLock("1")) {
+                otherId = "other" + i;
+            }
+        }
+        try (Session dir2 = memdir2.getSession()) {
+            DocumentModel entry = dir.getEntry("1");
+            entry.setProperty("schema1", "bar", "bar1-changed");
+            dir.updateEntry(entry);
+            assertNull(dir2.getEntry("1"));
+
+            // An entry sharing the same lock is synchronized meanwhile
+            Map<String, Object> e = new HashMap<String, Object>();
+            e.put("uid", otherId);
+            e.put("foo", "foo");
+            e.put("bar", "bar");
+            dir.createEntry(e);
+            assertNotNull(dir2.getEntry(otherId));
+
+            // The running synchronization then runs the handed one
+            SlaveSync next = resilientDir.nextSlaveSync("1");
+            assertNotNull(next);
+            assertTrue(next.isMasterHasEntry());
+            assertNull(resilientDir.nextSlaveSync("1"));
+        } finally {
+            resilientDir.cancelSlaveSyncs("1");
+        }
+        assertTrue(resilientDir.startSlaveSync("1", new SlaveSync(null, null, true)));
+        assertNull(resilientDir.nextSlaveSync("1"));
+    }
+
+    @Test
+    public void testReadSyncWaitsForLock() throws Exception {
+        final Lock lock = resilientDir.getSyncLock("1");
+        assertSame(lock, resilientDir.getSyncLock("1"));
+
+        // Another thread synchronizing an entry holds the lock
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        thread.start();
+        final CountDownLatch read = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Session session = resilientDir.getSession()) {
+                    session.getEntry("1");
+                }
+                read.countDown();
+            }
+        });
+        try (Session dir2 = memdir2.getSession()) {
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+            reader.start();
+            assertFalse(read.await(200, TimeUnit.MILLISECONDS));
+            assertNull(dir2.getEntry("1"));
+
+            release.countDown();
+            thread.join();
+            assertTrue(read.await(10, TimeUnit.SECONDS));
+            assertNotNull(dir2.getEntry("1"));
+        } finally {
+            release.countDown();
+        }
+    }
+
 }
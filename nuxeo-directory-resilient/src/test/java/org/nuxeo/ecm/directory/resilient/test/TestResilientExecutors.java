@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.resilient.ExecutorMode;
+import org.nuxeo.ecm.directory.resilient.ResilientExecutors;
+
+public class TestResilientExecutors {
+
+    protected void checkBounded(ExecutorMode mode, int maxPending) throws Exception {
+        ExecutorService executor = ResilientExecutors.newExecutor("test", mode, 1, maxPending);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(maxPending);
+        Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+        try {
+            for (int i = 0; i < maxPending; i++) {
+                executor.execute(blocked);
+            }
+            try {
+                // with platform threads, one more task is running
+                executor.execute(blocked);
+                executor.execute(blocked);
+                fail("Should reject tasks above the limit");
+            } catch (RejectedExecutionException e) {
+            }
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPlatformExecutorIsBounded() throws Exception {
+        checkBounded(ExecutorMode.PLATFORM, 2);
+    }
+
+    @Test
+    public void testAutoExecutorIsBounded() throws Exception {
+        // virtual threads when supported by the JVM running the tests
+        checkBounded(ExecutorMode.AUTO, 2);
+    }
+
+    @Test
+    public void testExecutorModeValues() throws Exception {
+        assertEquals(ExecutorMode.AUTO, ExecutorMode.fromValue(null));
+        assertEquals(ExecutorMode.PLATFORM, ExecutorMode.fromValue("Platform"));
+        assertEquals(ExecutorMode.VIRTUAL, ExecutorMode.fromValue("virtual"));
+        try {
+            ExecutorMode.fromValue("fork-join");
+            fail("Should raise an error on unknown mode");
+        } catch (DirectoryException e) {
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectory;
+import org.nuxeo.ecm.directory.resilient.ResilientDirectorySession;
+import org.nuxeo.ecm.directory.resilient.ResilientEntryCache;
+import org.nuxeo.ecm.directory.resilient.SubDirectoryHealth;
+import org.nuxeo.ecm.directory.resilient.test.FaultInjectingMemoryDirectory.Fault;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeHarness;
+
+import com.google.inject.Inject;
+
+/**
+ * Reads and writes going on while the master or a slave fails.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(CoreFeature.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory", "org.nuxeo.ecm.core.schema",
+        "org.nuxeo.ecm.directory.types.contrib", "org.nuxeo.ecm.directory.resilient" })
+public class TestResilientFailover {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.resilient.tests";
+
+    private static final int ENTRY_COUNT = 250;
+
+    @Inject
+    DirectoryService directoryService;
+
+    @Inject
+    protected RuntimeHarness harness;
+
+    protected FaultInjectingMemoryDirectory.Descriptor masterDesc;
+
+    protected FaultInjectingMemoryDirectory.Descriptor slaveDesc;
+
+    FaultInjectingMemoryDirectory master;
+
+    FaultInjectingMemoryDirectory slave;
+
+    ResilientDirectory resilientDir;
+
+    @Before
+    public void setUp() throws Exception {
+        harness.deployContrib(TEST_BUNDLE, "schemas-config.xml");
+
+        masterDesc = new FaultInjectingMemoryDirectory.Descriptor();
+        register(masterDesc, "failoverMaster");
+        master = (FaultInjectingMemoryDirectory) directoryService.getDirectory("failoverMaster");
+        slaveDesc = new FaultInjectingMemoryDirectory.Descriptor();
+        register(slaveDesc, "failoverSlave");
+        slave = (FaultInjectingMemoryDirectory) directoryService.getDirectory("failoverSlave");
+
+        for (String name : Arrays.asList("failoverMaster", "failoverSlave")) {
+            try (Session session = directoryService.open(name)) {
+                for (int i = 0; i < ENTRY_COUNT; i++) {
+                    Map<String, Object> e = new HashMap<String, Object>();
+                    e.put("uid", String.valueOf(i));
+                    e.put("foo", "foo" + i);
+                    e.put("bar", "bar" + i);
+                    session.createEntry(e);
+                }
+            }
+        }
+
+        harness.deployContrib(TEST_BUNDLE, "resilient-failover-config.xml");
+        resilientDir = (ResilientDirectory) directoryService.getDirectory("resilientFailover");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        master.inject(Fault.NONE, 0);
+        slave.inject(Fault.NONE, 0);
+        harness.undeployContrib(TEST_BUNDLE, "resilient-failover-config.xml");
+        directoryService.unregisterDirectoryDescriptor(masterDesc);
+        directoryService.unregisterDirectoryDescriptor(slaveDesc);
+    }
+
+    protected void register(FaultInjectingMemoryDirectory.Descriptor desc, String name) {
+        desc.name = name;
+        desc.schemaName = "schema1";
+        desc.schemaSet = new HashSet<String>(Arrays.asList("uid", "foo", "bar"));
+        desc.idField = "uid";
+        desc.passwordField = "foo";
+        directoryService.registerDirectoryDescriptor(desc);
+    }
+
+    @Test
+    public void testIterateEntriesFetchesEntriesByPages() throws Exception {
+        try (ResilientDirectorySession dir = (ResilientDirectorySession) resilientDir.getSession()) {
+            long served = master.getServedCalls();
+            Iterator<DocumentModel> it = dir.iterateEntries(100);
+            // nothing is read upfront
+            assertEquals(served, master.getServedCalls());
+
+            Set<String> ids = new HashSet<String>();
+            ids.add(it.next().getId());
+            assertEquals(served + 1, master.getServedCalls());
+            while (it.hasNext()) {
+                ids.add(it.next().getId());
+            }
+            assertEquals(ENTRY_COUNT, ids.size());
+            // one query per page of 100 entries
+            assertEquals(served + 3, master.getServedCalls());
+            assertEquals(0, slave.getServedCalls());
+        }
+    }
+
+    @Test
+    public void testIterateEntriesFailoverDuringIteration() throws Exception {
+        try (ResilientDirectorySession dir = (ResilientDirectorySession) resilientDir.getSession()) {
+            Iterator<DocumentModel> it = dir.iterateEntries(25);
+            Set<String> ids = new HashSet<String>();
+            for (int i = 0; i < 10; i++) {
+                ids.add(it.next().getId());
+            }
+
+            master.inject(Fault.DOWN, 0);
+            while (it.hasNext()) {
+                DocumentModel entry = it.next();
+                assertEquals("bar" + entry.getId(), entry.getProperty("schema1", "bar"));
+                ids.add(entry.getId());
+            }
+            assertEquals(ENTRY_COUNT, ids.size());
+            // the 9 pages left, then an empty one
+            assertEquals(10, slave.getServedCalls());
+        }
+    }
+
+    @Test
+    public void testGetEntriesQueriesMasterOnce() throws Exception {
+        master.setIdFilterSupported(true);
+        try (ResilientDirectorySession dir = (ResilientDirectorySession) resilientDir.getSession();
+                Session masterSession = directoryService.open("failoverMaster");
+                Session slaveSession = directoryService.open("failoverSlave")) {
+            DocumentModel entry = masterSession.getEntry("5");
+            entry.setProperty("schema1", "bar", "bar5-updated");
+            masterSession.updateEntry(entry);
+            masterSession.deleteEntry("6");
+            long masterServed = master.getServedCalls();
+
+            List<DocumentModel> entries = dir.getEntries(Arrays.asList("5", "6", "7"));
+            assertEquals(2, entries.size());
+            assertEquals("bar5-updated", entries.get(0).getProperty("schema1", "bar"));
+            // the query, then a check that the entry 6 is really missing
+            assertEquals(masterServed + 2, master.getServedCalls());
+            // the slaves are synchronized from the entries read, without reading the master again
+            assertEquals("bar5-updated", slaveSession.getEntry("5").getProperty("schema1", "bar"));
+            assertFalse(slaveSession.hasEntry("6"));
+
+            // once known to support queries by ids, the master is trusted
+            masterServed = master.getServedCalls();
+            entries = dir.getEntries(Arrays.asList("6", "8", "9", "10"));
+            assertEquals(3, entries.size());
+            assertEquals(masterServed + 1, master.getServedCalls());
+        } finally {
+            master.setIdFilterSupported(false);
+        }
+    }
+
+    @Test
+    public void testGetEntriesReadsMasterOncePerEntryWithoutIdFilter() throws Exception {
+        try (ResilientDirectorySession dir = (ResilientDirectorySession) resilientDir.getSession()) {
+            long masterServed = master.getServedCalls();
+            List<DocumentModel> entries = dir.getEntries(Arrays.asList("5", "6", "7"));
+            assertEquals(3, entries.size());
+            // the query misses the entries, read one by one
+            assertEquals(masterServed + 4, master.getServedCalls());
+
+            masterServed = master.getServedCalls();
+            entries = dir.getEntries(Arrays.asList("8", "9"));
+            assertEquals(2, entries.size());
+            assertEquals(masterServed + 2, master.getServedCalls());
+        }
+    }
+
+    @Test
+    public void testGetEntriesFromSlaveWhenMasterIsDown() throws Exception {
+        try (ResilientDirectorySession dir = (ResilientDirectorySession) resilientDir.getSession()) {
+            master.inject(Fault.DOWN, 0);
+            List<DocumentModel> entries = dir.getEntries(Arrays.asList("7", "5", "unknown"));
+            assertEquals(2, entries.size());
+            assertEquals("7", entries.get(0).getId());
+            assertEquals("5", entries.get(1).getId());
+            // the slave misses the entries in a query by ids, read one by one
+            assertEquals(4, slave.getServedCalls());
+        }
+    }
+
+    @Test
+    public void testEntriesReadFromSlaveAreCachedAsStale() throws Exception {
+        ResilientDirectory cachedDir = (ResilientDirectory) directoryService.getDirectory("resilientFailoverCached");
+        ResilientEntryCache cache = cachedDir.getEntryCache();
+        try (Session dir = cachedDir.getSession()) {
+            assertEquals("foo1", dir.getEntry("1").getProperty("schema1", "foo"));
+            assertTrue(cache.isFresh(cache.get("1")));
+
+            master.inject(Fault.DOWN, 0);
+            assertEquals("foo2", dir.getEntry("2").getProperty("schema1", "foo"));
+            // served, but reloaded from the master on the next hit
+            assertFalse(cache.isFresh(cache.get("2")));
+            assertTrue(cache.isFresh(cache.get("1")));
+        }
+    }
+
+    @Test
+    public void testWarmUpWithUnavailableSubDirectories() throws Exception {
+        slave.inject(Fault.DOWN, 0);
+        resilientDir.warmUp();
+        assertTrue(resilientDir.getSubDirectoryHealth("failoverMaster").isAvailable());
+        assertFalse(resilientDir.getSubDirectoryHealth("failoverSlave").isAvailable());
+
+        ResilientDirectory healthCheckDir = (ResilientDirectory) directoryService.getDirectory("resilientHealthCheck");
+        slave.inject(Fault.NONE, 0);
+        master.inject(Fault.SLOW, 2000);
+        long start = System.currentTimeMillis();
+        assertTrue(healthCheckDir.warmUpAsync());
+        // the caller does not wait for the master
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (healthCheckDir.getSubDirectoryHealth("failoverMaster").isAvailable()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(healthCheckDir.getSubDirectoryHealth("failoverMaster").isAvailable());
+        try (Session dir = healthCheckDir.getSession()) {
+            assertEquals("foo1", dir.getEntry("1").getProperty("schema1", "foo"));
+        }
+    }
+
+    @Test
+    public void testReadSkipsUnavailableMaster() throws Exception {
+        try (Session dir = resilientDir.getSession()) {
+            resilientDir.getSubDirectoryHealth("failoverMaster").markUnavailable();
+            long masterServed = master.getServedCalls();
+            long slaveServed = slave.getServedCalls();
+
+            DocumentModel entry = dir.getEntry("1");
+            assertNotNull(entry);
+            assertEquals("bar1", entry.getProperty("schema1", "bar"));
+            // the master is not called at all
+            assertEquals(masterServed, master.getServedCalls());
+            assertEquals(slaveServed + 1, slave.getServedCalls());
+        }
+    }
+
+    @Test
+    public void testWritesReachUnavailableSlave() throws Exception {
+        try (Session dir = resilientDir.getSession(); Session slaveSession = directoryService.open("failoverSlave")) {
+            resilientDir.getSubDirectoryHealth("failoverSlave").markUnavailable();
+
+            DocumentModel entry = dir.getEntry("1");
+            entry.setProperty("schema1", "bar", "bar1-updated");
+            dir.updateEntry(entry);
+            assertEquals("bar1-updated", slaveSession.getEntry("1").getProperty("schema1", "bar"));
+
+            dir.deleteEntry("2");
+            assertFalse(slaveSession.hasEntry("2"));
+        }
+    }
+
+    @Test
+    public void testHealthCheckProbesSubDirectories() throws Exception {
+        ResilientDirectory checkedDir = (ResilientDirectory) directoryService.getDirectory("resilientHealthCheck");
+        // opening a session starts the health checks
+        try (Session dir = checkedDir.getSession()) {
+            SubDirectoryHealth health = checkedDir.getSubDirectoryHealth("failoverMaster");
+            assertTrue(health.isAvailable());
+
+            master.inject(Fault.DOWN, 0);
+            waitForAvailability(health, false);
+            assertFalse(health.isAvailable());
+            assertTrue(checkedDir.getSubDirectoryHealth("failoverSlave").isAvailable());
+
+            // available again on the next successful check, without waiting for the retry delay
+            master.inject(Fault.NONE, 0);
+            waitForAvailability(health, true);
+            assertTrue(health.isAvailable());
+        }
+    }
+
+    protected void waitForAvailability(SubDirectoryHealth health, boolean available) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (health.isAvailable() != available && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.resilient.SlaveSelectionPolicy;
+import org.nuxeo.ecm.directory.resilient.SubDirectoryHealth;
+
+public class TestSubDirectoryHealth {
+
+    @Test
+    public void testUnavailableAfterConsecutiveFailures() throws Exception {
+        SubDirectoryHealth health = new SubDirectoryHealth("dir", 2, 60000);
+        assertTrue(health.isAvailable());
+        health.recordFailure(1000000);
+        assertTrue(health.isAvailable());
+        health.recordSuccess(1000000);
+        health.recordFailure(1000000);
+        assertTrue(health.isAvailable());
+        health.recordFailure(1000000);
+        assertFalse(health.isAvailable());
+        health.recordSuccess(1000000);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    public void testAvailableAgainAfterRetryDelay() throws Exception {
+        SubDirectoryHealth health = new SubDirectoryHealth("dir", 1, 50);
+        health.recordFailure(1000000);
+        assertFalse(health.isAvailable());
+        Thread.sleep(100);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    public void testMarkUnavailable() throws Exception {
+        SubDirectoryHealth health = new SubDirectoryHealth("dir", 3, 60000);
+        health.markUnavailable();
+        assertFalse(health.isAvailable());
+        health.recordSuccess(1000000);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    public void testLatencyAverage() throws Exception {
+        SubDirectoryHealth health = new SubDirectoryHealth("dir", 1, 50);
+        health.recordSuccess(10000000);
+        assertEquals(10.0, health.getLatency(), 0.001);
+        health.recordSuccess(20000000);
+        assertEquals(12.0, health.getLatency(), 0.001);
+    }
+
+    @Test
+    public void testSlaveSelectionPolicyValues() throws Exception {
+        assertEquals(SlaveSelectionPolicy.ORDERED, SlaveSelectionPolicy.fromValue(null));
+        assertEquals(SlaveSelectionPolicy.ROUND_ROBIN, SlaveSelectionPolicy.fromValue("roundRobin"));
+        assertEquals(SlaveSelectionPolicy.LEAST_LATENCY, SlaveSelectionPolicy.fromValue(" leastlatency "));
+        assertEquals(SlaveSelectionPolicy.WEIGHTED, SlaveSelectionPolicy.fromValue("weighted"));
+        try {
+            SlaveSelectionPolicy.fromValue("random");
+            fail("Should raise an error on unknown policy");
+        } catch (DirectoryException e) {
+        }
+    }
+
+}
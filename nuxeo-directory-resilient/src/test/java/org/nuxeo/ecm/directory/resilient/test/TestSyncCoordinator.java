@@ -0,0 +1,193 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.directory.resilient.SyncCoordinator;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+
+/**
+ * Two cluster nodes sharing the same lease directory, stored in the embedded H2 test database.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(CoreFeature.class)
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory", "org.nuxeo.ecm.directory.sql",
+        "org.nuxeo.ecm.directory.resilient" })
+@LocalDeploy("org.nuxeo.ecm.directory.resilient.tests:sql-lease-directory-config.xml")
+public class TestSyncCoordinator {
+
+    protected static final String LEASE_DIRECTORY = "resilientSyncLeases";
+
+    /**
+     * Exposes the stripe of an entry.
+     */
+    protected static class Node extends SyncCoordinator {
+
+        protected Node(String scope, long leaseDuration, String nodeId) {
+            super(LEASE_DIRECTORY, scope, 4, leaseDuration, nodeId);
+        }
+
+        protected int stripe(String entryId) {
+            return getStripe(entryId);
+        }
+    }
+
+    /**
+     * Returns an entry id of another stripe than the given one.
+     */
+    protected static String otherStripeEntry(Node node, String entryId) {
+        for (int i = 0;; i++) {
+            if (node.stripe("other" + i) != node.stripe(entryId)) {
+                return "other" + i;
+            }
+        }
+    }
+
+    /**
+     * Waits for the beginning of the next lease period, so that the test does not straddle two periods.
+     */
+    protected static void waitForNextPeriod(long leaseDuration) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Thread.sleep(leaseDuration - now % leaseDuration + 1);
+    }
+
+    @Test
+    public void testSingleOwnerPerStripe() throws Exception {
+        Node node1 = new Node("single", 60000, "node1");
+        Node node2 = new Node("single", 60000, "node2");
+
+        assertTrue(node1.acquire("user1"));
+        assertFalse(node2.acquire("user1"));
+        // still owned, served from the local lease
+        assertTrue(node1.acquire("user1"));
+        assertFalse(node2.acquire("user1"));
+
+        // entries of other stripes can be owned by other nodes
+        String other = otherStripeEntry(node1, "user1");
+        assertTrue(node2.acquire(other));
+        assertFalse(node1.acquire(other));
+
+        // nodes of other directories don't share the leases
+        assertTrue(new Node("otherDirectory", 60000, "node2").acquire("user1"));
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOver() throws Exception {
+        waitForNextPeriod(200);
+        Node node1 = new Node("expired", 200, "node1");
+        Node node2 = new Node("expired", 200, "node2");
+
+        assertTrue(node1.acquire("user1"));
+        assertFalse(node2.acquire("user1"));
+
+        waitForNextPeriod(200);
+        assertTrue(node2.acquire("user1"));
+        assertFalse(node1.acquire("user1"));
+    }
+
+    @Test
+    public void testNodesRacingOnExpiredLease() throws Exception {
+        final long leaseDuration = 1000;
+        waitForNextPeriod(leaseDuration);
+        final Node node1 = new Node("race", leaseDuration, "node1");
+        final Node node2 = new Node("race", leaseDuration, "node2");
+        assertTrue(node1.acquire("user1"));
+        assertFalse(node2.acquire("user1"));
+
+        waitForNextPeriod(leaseDuration);
+        // both nodes see the lease expired and try to take it over at once
+        final CountDownLatch start = new CountDownLatch(1);
+        final Set<String> owners = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                final Node node = i % 2 == 0 ? node1 : node2;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        boolean owner = node.acquire("user1");
+                        if (owner) {
+                            owners.add(node.getNodeId());
+                        }
+                        return Boolean.valueOf(owner);
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Boolean> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, owners.size());
+        String owner = owners.iterator().next();
+        Node loser = "node1".equals(owner) ? node2 : node1;
+        assertFalse(loser.acquire("user1"));
+    }
+
+    @Test
+    public void testSkippedEntriesAreHandedBack() throws Exception {
+        waitForNextPeriod(200);
+        Node node1 = new Node("deferred", 200, "node1");
+        Node node2 = new Node("deferred", 200, "node2");
+
+        assertTrue(node1.acquire("user1"));
+        assertFalse(node2.acquire("user1"));
+        // only read on node2 while node1 owns the stripe
+        String sameStripe = null;
+        for (int i = 0; sameStripe == null; i++) {
+            if (node2.stripe("user" + i) == node2.stripe("user1") && i != 1) {
+                sameStripe = "user" + i;
+            }
+        }
+        assertFalse(node2.acquire(sameStripe));
+        assertTrue(node1.takeDeferred("user1").isEmpty());
+
+        waitForNextPeriod(200);
+        assertTrue(node2.acquire(sameStripe));
+        assertEquals(Arrays.asList("user1", sameStripe), node2.takeDeferred(sameStripe));
+        assertTrue(node2.takeDeferred(sameStripe).isEmpty());
+    }
+
+}
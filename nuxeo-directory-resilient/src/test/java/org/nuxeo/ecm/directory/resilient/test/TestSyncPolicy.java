@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Maxime Hilaire
+ */
+package org.nuxeo.ecm.directory.resilient.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.resilient.SyncPolicy;
+import org.nuxeo.ecm.directory.resilient.SyncPolicy.Mode;
+import org.nuxeo.ecm.directory.resilient.SyncPolicy.Operation;
+
+public class TestSyncPolicy {
+
+    @Test
+    public void testInlineAndDisabled() throws Exception {
+        assertEquals(Mode.INLINE, SyncPolicy.inline(Operation.GET_ENTRY).decide("1"));
+        assertEquals(Mode.ASYNC, new SyncPolicy(Operation.WRITE, Mode.ASYNC, -1, 0).decide("1"));
+        assertEquals(Mode.DISABLED, new SyncPolicy(Operation.QUERY, Mode.DISABLED, -1, 0).decide("1"));
+    }
+
+    @Test
+    public void testSampledByInterval() throws Exception {
+        SyncPolicy policy = new SyncPolicy(Operation.HAS_ENTRY, Mode.SAMPLED, -1, 60000);
+        assertEquals(Mode.INLINE, policy.decide("1"));
+        assertEquals(Mode.DISABLED, policy.decide("1"));
+        assertEquals(Mode.INLINE, policy.decide("2"));
+    }
+
+    @Test
+    public void testSampledByIntervalConcurrently() throws Exception {
+        final SyncPolicy policy = new SyncPolicy(Operation.GET_ENTRY, Mode.SAMPLED, -1, 60000);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] futures = new Future<?>[8];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(new Callable<Mode>() {
+                    @Override
+                    public Mode call() throws Exception {
+                        start.await();
+                        return policy.decide("1");
+                    }
+                });
+            }
+            start.countDown();
+            int inline = 0;
+            for (Future<?> future : futures) {
+                if (future.get(10, TimeUnit.SECONDS) == Mode.INLINE) {
+                    inline++;
+                }
+            }
+            assertEquals(1, inline);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSampledByIntervalForgetsOldestEntries() throws Exception {
+        SyncPolicy policy = new SyncPolicy(Operation.GET_ENTRY, Mode.SAMPLED, -1, 60000);
+        assertEquals(Mode.INLINE, policy.decide("first"));
+        assertEquals(Mode.DISABLED, policy.decide("first"));
+        // more entries than remembered
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(Mode.INLINE, policy.decide(String.valueOf(i)));
+        }
+        assertEquals(Mode.INLINE, policy.decide("first"));
+        assertEquals(Mode.DISABLED, policy.decide("9999"));
+    }
+
+    @Test
+    public void testSampledByRate() throws Exception {
+        SyncPolicy never = new SyncPolicy(Operation.GET_ENTRY, Mode.SAMPLED, 0, 0);
+        SyncPolicy always = new SyncPolicy(Operation.GET_ENTRY, Mode.SAMPLED, 1, 0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Mode.DISABLED, never.decide("1"));
+            assertEquals(Mode.INLINE, always.decide("1"));
+        }
+    }
+
+    @Test
+    public void testInvalidPolicies() throws Exception {
+        assertEquals(Operation.GET_ENTRY, Operation.fromValue("getentry"));
+        assertEquals(Mode.INLINE, Mode.fromValue(null));
+        try {
+            new SyncPolicy(Operation.WRITE, Mode.SAMPLED, 0.5, 0);
+            fail("Writes can't be sampled");
+        } catch (DirectoryException e) {
+        }
+        try {
+            new SyncPolicy(Operation.QUERY, Mode.SAMPLED, -1, 0);
+            fail("Sampling needs a rate or an interval");
+        } catch (DirectoryException e) {
+        }
+        try {
+            Operation.fromValue("delete");
+            fail("Should raise an error on unknown operation");
+        } catch (DirectoryException e) {
+        }
+    }
+
+}